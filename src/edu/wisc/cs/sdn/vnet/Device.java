@@ -1,17 +1,45 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketPool;
 
-import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import edu.wisc.cs.sdn.vnet.jfr.PacketDroppedEvent;
+import edu.wisc.cs.sdn.vnet.jfr.PacketHandledEvent;
 
 /**
  * @author Aaron Gember-Jacobson
  */
-public abstract class Device 
+public abstract class Device implements DeviceMXBean
 {
+	/** JMX domain under which devices and interfaces are registered */
+	public static final String JMX_DOMAIN = "edu.wisc.cs.sdn.vnet";
+	
+	/** Bytes a frame adds to a packet: an Ethernet header and an 802.1Q
+	 *  tag. A rate limit's burst must hold a frame of its interface's MTU
+	 *  plus these, so every packet can conform. */
+	public static final int FRAME_OVERHEAD = 18;
+	
+	/** Packets a shaper holds back if its queue size is not given */
+	public static final int DEFAULT_SHAPER_QUEUE = 100;
+	
+	/** Largest round robin weight a class of traffic may have */
+	public static final int MAX_WEIGHT = 1000;
+	
 	/** Hostname for the device */
 	private String host;
 	
@@ -22,8 +50,31 @@ public abstract class Device
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
 	
-	/** Virtual Network Simulator communication manager for the device */
-	private VNSComm vnsComm;
+	/** Whether to print a line for each step of handling each packet; off
+	 *  when measuring, since building the lines allocates per packet */
+	private volatile boolean tracing;
+	
+	/** Transport over which the device sends and receives packets */
+	private PacketTransport transport;
+	
+	/** Packets dropped; indexed by the ordinal of the drop reason */
+	private LongAdder[] drops;
+	
+	/** Names under which the device and its interfaces are registered with
+	 *  JMX; null if they are not registered */
+	private ObjectName[] mbeanNames;
+	
+	/** Latency of each stage of packet handling; indexed by the ordinal of 
+	 *  the stage */
+	private LatencyHistogram[] latency;
+	
+	/** Thread handling a received packet, and when the transport read it; 
+	 *  used to time packets from ingress to egress */
+	private volatile Thread receivingThread;
+	private long receivedNanos;
+	
+	/** Number of packets sent while handling the current received packet */
+	private int packetsSent;
 	
 	/**
 	 * Creates a device.
@@ -35,7 +86,36 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
-		this.vnsComm = null;
+		this.transport = null;
+		this.tracing = true;
+		this.drops = new LongAdder[DropReason.values().length];
+		for (int i = 0; i < this.drops.length; i++)
+		{ this.drops[i] = new LongAdder(); }
+		this.mbeanNames = null;
+		this.latency = new LatencyHistogram[LatencyStage.values().length];
+		for (int i = 0; i < this.latency.length; i++)
+		{ this.latency[i] = new LatencyHistogram(); }
+		this.receivingThread = null;
+	}
+	
+	/**
+	 * @param tracing true to print a line for each step of handling each 
+	 *        packet, as the device does by default
+	 */
+	public void setTracing(boolean tracing)
+	{ this.tracing = tracing; }
+	
+	public boolean isTracing()
+	{ return this.tracing; }
+	
+	/**
+	 * Print a line about handling a packet, if tracing. Callers that build 
+	 * the line from the packet should check isTracing() first.
+	 */
+	protected void trace(String message)
+	{
+		if (this.tracing)
+		{ System.out.println(message); }
 	}
 	
 	/**
@@ -66,18 +146,438 @@ public abstract class Device
 	{ return this.interfaces; }
 	
 	/**
-	 * @param vnsComm Virtual Network System communication manager for the router
+	 * @param transport transport over which the device sends and receives 
+	 * 		  packets
 	 */
-	public void setVNSComm(VNSComm vnsComm)
-	{ this.vnsComm = vnsComm; }
+	public void setTransport(PacketTransport transport)
+	{ this.transport = transport; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * @return transport over which the device sends and receives packets
+	 */
+	public PacketTransport getTransport()
+	{ return this.transport; }
+	
+	/**
+	 * Close the PCAP dump file for the router, if logging is enabled, and 
+	 * remove the device's MBeans.
 	 */
 	public void destroy()
 	{
+		for (Iface iface : this.interfaces.values())
+		{ iface.setShaper(null); }
 		if (logfile != null)
 		{ this.logfile.close(); }
+		this.unregisterMBeans();
+	}
+	
+	/**
+	 * Set the MTUs of interfaces as a file directs. Each line gives the 
+	 * largest packet, in bytes, sent out an interface without fragmenting:
+	 * <pre>
+	 *   iface bytes
+	 * </pre>
+	 * Interfaces not listed keep their MTU. Lines starting with # are 
+	 * comments. Load MTUs before rate limits, whose bursts depend on them.
+	 * @param filename name of the file containing the MTUs
+	 * @return true if the MTUs were applied, otherwise false
+	 */
+	public boolean loadMtus(String filename)
+	{
+		List<String[]> mtus = new ArrayList<String[]>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				String text = line.trim();
+				if (text.isEmpty() || text.startsWith("#"))
+				{ continue; }
+				
+				String[] fields = text.split("\\s+");
+				String error = null;
+				if (fields.length != 2)
+				{ error = "wrong number of fields"; }
+				else if (null == this.getInterface(fields[0]))
+				{ error = "invalid interface " + fields[0]; }
+				else
+				{
+					long value = parseQuantity(fields[1]);
+					if (value < Iface.MIN_MTU || value > Iface.MAX_MTU)
+					{ 
+						error = "MTU must be from " + Iface.MIN_MTU + " to " 
+								+ Iface.MAX_MTU; 
+					}
+				}
+				if (error != null)
+				{
+					System.err.println(String.format(
+							"Error loading MTUs, line %d of %s: %s",
+							lineNumber, filename, error));
+					System.err.println("\t" + text);
+					return false;
+				}
+				mtus.add(fields);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		
+		for (String[] fields : mtus)
+		{ this.getInterface(fields[0]).setMtu((int)parseQuantity(fields[1])); }
+		return true;
+	}
+	
+	/**
+	 * Limit the rate of traffic on interfaces as a file directs. Each line
+	 * polices traffic received on, or shapes traffic sent out, an interface,
+	 * or weights a class of traffic a shaper queues:
+	 * <pre>
+	 *   police iface rate burst
+	 *   shape iface rate burst [queue [fifo|strict|drr]]
+	 *   weight iface class weight
+	 * </pre>
+	 * where rate is in bits per second, burst in bytes and queue, the most
+	 * packets a shaper holds back in each queue, in packets; rate and burst 
+	 * may end in k, M or G. A shaper queues in arrival order by default, or
+	 * queues each {@link TrafficClass} separately and serves them by strict
+	 * priority or deficit round robin. Weights apply to the round robin 
+	 * shaper on the interface, given on an earlier line. Bursts must be at
+	 * least the interface's MTU, as set by {@link #loadMtus}, plus 
+	 * FRAME_OVERHEAD. Lines starting with
+	 * # are comments.
+	 * @param filename name of the file containing the rate limits
+	 * @return true if the rate limits were applied, otherwise false
+	 */
+	public boolean loadRateLimits(String filename)
+	{
+		List<String[]> limits = new ArrayList<String[]>();
+		List<Integer> lineNumbers = new ArrayList<Integer>();
+		Map<String,Shaper.Scheduler> schedulers = 
+				new HashMap<String,Shaper.Scheduler>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				String text = line.trim();
+				if (text.isEmpty() || text.startsWith("#"))
+				{ continue; }
+				
+				String[] fields = text.split("\\s+");
+				String error = this.checkRateLimit(fields, schedulers);
+				if (error != null)
+				{
+					System.err.println(String.format(
+							"Error loading rate limits, line %d of %s: %s",
+							lineNumber, filename, error));
+					System.err.println("\t" + text);
+					return false;
+				}
+				limits.add(fields);
+				lineNumbers.add(lineNumber);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		
+		// A burst must hold the largest frame
+		for (int i = 0; i < limits.size(); i++)
+		{
+			String[] fields = limits.get(i);
+			if (!fields[0].equals("police") && !fields[0].equals("shape"))
+			{ continue; }
+			int minBurst = this.getInterface(fields[1]).getMtu() + FRAME_OVERHEAD;
+			if (parseQuantity(fields[3]) < minBurst)
+			{
+				System.err.println(String.format(
+						"Error loading rate limits, line %d of %s: burst must "
+						+ "be at least %d bytes, the MTU of %s plus %d",
+						lineNumbers.get(i), filename, minBurst, fields[1],
+						FRAME_OVERHEAD));
+				System.err.println("\t" + String.join(" ", fields));
+				return false;
+			}
+		}
+		
+		for (String[] fields : limits)
+		{
+			Iface iface = this.getInterface(fields[1]);
+			if (fields[0].equals("weight"))
+			{
+				iface.getShaper().setWeight(parseTrafficClass(fields[2]), 
+						(int)parseQuantity(fields[3]));
+				continue;
+			}
+			
+			long rate = parseQuantity(fields[2]);
+			int burst = (int)parseQuantity(fields[3]);
+			if (fields[0].equals("police"))
+			{ iface.setPolicer(new Policer(rate, burst)); }
+			else
+			{
+				int queueLimit = (fields.length > 4) 
+						? (int)parseQuantity(fields[4]) : DEFAULT_SHAPER_QUEUE;
+				iface.setShaper(new Shaper(this, iface, rate, burst, queueLimit,
+						schedulers.get(fields[1])));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Check a rate limit, noting the scheduler of each shaper it gives.
+	 * @param schedulers schedulers of the shapers on earlier lines, keyed by
+	 *        interface name
+	 * @return description of what is wrong with the rate limit; null if it 
+	 *         is valid
+	 */
+	private String checkRateLimit(String[] fields, 
+			Map<String,Shaper.Scheduler> schedulers)
+	{
+		boolean police = fields[0].equals("police");
+		boolean weight = fields[0].equals("weight");
+		if (!police && !weight && !fields[0].equals("shape"))
+		{ return "expected police, shape or weight"; }
+		if (fields.length < 4 || fields.length > ((police || weight) ? 4 : 6))
+		{ return "wrong number of fields"; }
+		if (null == this.getInterface(fields[1]))
+		{ return "invalid interface " + fields[1]; }
+		
+		if (weight)
+		{
+			if (schedulers.get(fields[1]) != Shaper.Scheduler.DRR)
+			{ return "no round robin shaper on " + fields[1]; }
+			if (null == parseTrafficClass(fields[2]))
+			{ return "invalid class " + fields[2]; }
+			long value = parseQuantity(fields[3]);
+			if (value <= 0 || value > MAX_WEIGHT)
+			{ return "weight must be from 1 to " + MAX_WEIGHT; }
+			return null;
+		}
+		
+		if (parseQuantity(fields[2]) <= 0)
+		{ return "invalid rate " + fields[2]; }
+		long burst = parseQuantity(fields[3]);
+		if (burst <= 0 || burst > Integer.MAX_VALUE)
+		{ return "invalid burst " + fields[3]; }
+		if (police)
+		{ return null; }
+		
+		long queue = (fields.length > 4) ? parseQuantity(fields[4]) 
+				: DEFAULT_SHAPER_QUEUE;
+		if (queue <= 0 || queue > Integer.MAX_VALUE)
+		{ return "invalid queue " + fields[4]; }
+		Shaper.Scheduler scheduler = Shaper.Scheduler.FIFO;
+		if (fields.length > 5)
+		{
+			try
+			{ scheduler = Shaper.Scheduler.valueOf(fields[5].toUpperCase()); }
+			catch (IllegalArgumentException e)
+			{ return "invalid scheduler " + fields[5]; }
+		}
+		schedulers.put(fields[1], scheduler);
+		return null;
+	}
+	
+	/**
+	 * @return the class with a name, in any case; null if there is none
+	 */
+	private static TrafficClass parseTrafficClass(String text)
+	{
+		try
+		{ return TrafficClass.valueOf(text.toUpperCase()); }
+		catch (IllegalArgumentException e)
+		{ return null; }
+	}
+	
+	/**
+	 * @return a number, optionally ending in k, M or G; -1 if the text is not
+	 *         such a number
+	 */
+	private static long parseQuantity(String text)
+	{
+		long multiplier = 1;
+		char suffix = text.charAt(text.length() - 1);
+		if ('k' == suffix)
+		{ multiplier = 1000L; }
+		else if ('M' == suffix)
+		{ multiplier = 1000000L; }
+		else if ('G' == suffix)
+		{ multiplier = 1000000000L; }
+		if (multiplier > 1)
+		{ text = text.substring(0, text.length() - 1); }
+		try
+		{ return Long.parseLong(text) * multiplier; }
+		catch (NumberFormatException e)
+		{ return -1; }
+	}
+	
+	/**
+	 * Count a packet the device discarded, and trace why.
+	 * @param reason why the packet was discarded
+	 */
+	public void countDrop(DropReason reason)
+	{
+		this.drops[reason.ordinal()].increment();
+		if (this.tracing)
+		{ System.out.println("Dropped: " + reason.getDescription()); }
+		
+		PacketDroppedEvent event = new PacketDroppedEvent();
+		if (event.shouldCommit())
+		{
+			event.device = this.host;
+			event.reason = reason.name();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @param reason a drop reason
+	 * @return number of packets dropped for the reason
+	 */
+	public long getDropCount(DropReason reason)
+	{ return this.drops[reason.ordinal()].sum(); }
+	
+	public long getDroppedPackets()
+	{
+		long total = 0;
+		for (LongAdder count : this.drops)
+		{ total += count.sum(); }
+		return total;
+	}
+	
+	public Map<String,Long> getDrops()
+	{
+		Map<String,Long> counts = new LinkedHashMap<String,Long>();
+		for (DropReason reason : DropReason.values())
+		{ counts.put(reason.getDescription(), this.getDropCount(reason)); }
+		return counts;
+	}
+	
+	public long getRxPackets()
+	{
+		long total = 0;
+		for (Iface iface : this.interfaces.values())
+		{ total += iface.getRxPackets(); }
+		return total;
+	}
+	
+	public long getTxPackets()
+	{
+		long total = 0;
+		for (Iface iface : this.interfaces.values())
+		{ total += iface.getTxPackets(); }
+		return total;
+	}
+	
+	/**
+	 * @param stage a stage of packet handling
+	 * @return histogram of the stage's latency
+	 */
+	public LatencyHistogram getLatencyHistogram(LatencyStage stage)
+	{ return this.latency[stage.ordinal()]; }
+	
+	/**
+	 * Record the latency of a stage of packet handling.
+	 * @param stage the stage
+	 * @param startNanos when the stage started, from {@link System#nanoTime}
+	 */
+	public void recordLatency(LatencyStage stage, long startNanos)
+	{ this.latency[stage.ordinal()].recordSince(startNanos); }
+	
+	public Map<String,String> getLatency()
+	{
+		Map<String,String> summary = new LinkedHashMap<String,String>();
+		for (LatencyStage stage : LatencyStage.values())
+		{ summary.put(stage.name(), this.getLatencyHistogram(stage).toString()); }
+		return summary;
+	}
+	
+	public long getLatencyPercentile(String stage, double percentile)
+	{ 
+		return this.getLatencyHistogram(LatencyStage.valueOf(stage))
+				.getPercentile(percentile); 
+	}
+	
+	public void resetLatency()
+	{
+		for (LatencyHistogram histogram : this.latency)
+		{ histogram.reset(); }
+	}
+	
+	public void resetCounters()
+	{
+		for (LongAdder count : this.drops)
+		{ count.reset(); }
+		for (Iface iface : this.interfaces.values())
+		{ iface.resetCounters(); }
+	}
+	
+	/**
+	 * Register the device and its interfaces with the platform MBean server,
+	 * so their counters can be watched with JConsole or any JMX client. Call
+	 * once the device's interfaces are known.
+	 * @return true if the MBeans were registered, otherwise false
+	 */
+	public boolean registerMBeans()
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName[] names = new ObjectName[1 + this.interfaces.size()];
+		try
+		{
+			names[0] = new ObjectName(JMX_DOMAIN + ":type=Device,name=" 
+					+ this.host);
+			server.registerMBean(this, names[0]);
+			int i = 1;
+			for (Iface iface : this.interfaces.values())
+			{
+				names[i] = new ObjectName(JMX_DOMAIN + ":type=Iface,device=" 
+						+ this.host + ",name=" + iface.getName());
+				server.registerMBean(iface, names[i]);
+				i++;
+			}
+		}
+		catch (JMException e)
+		{
+			System.err.println("Failed to register MBeans for " + this.host 
+					+ ": " + e.getMessage());
+			this.mbeanNames = names;
+			this.unregisterMBeans();
+			return false;
+		}
+		this.mbeanNames = names;
+		return true;
+	}
+	
+	/**
+	 * Remove the device's MBeans, if they are registered.
+	 */
+	public void unregisterMBeans()
+	{
+		if (null == this.mbeanNames)
+		{ return; }
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : this.mbeanNames)
+		{
+			try
+			{
+				if (name != null && server.isRegistered(name))
+				{ server.unregisterMBean(name); }
+			}
+			catch (JMException e) { }
+		}
+		this.mbeanNames = null;
 	}
 	
 	/**
@@ -108,7 +608,134 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		Shaper shaper = iface.getShaper();
+		if (shaper != null)
+		{ return shaper.send(etherPacket); }
+		return this.transmit(etherPacket, iface);
+	}
+	
+	/**
+	 * Send an Ethernet packet out a specific interface now, bypassing the
+	 * interface's shaper; called by shapers.
+	 * @param etherPacket the packet
+	 * @param iface interface on which to send the packet
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	boolean transmit(Ethernet etherPacket, Iface iface)
+	{
+		if (this.logfile != null)
+		{ this.logfile.dump(etherPacket); }
+		if (!this.transport.sendPacket(etherPacket, iface))
+		{
+			this.countDrop(DropReason.SEND_FAILED);
+			return false;
+		}
+		if (Thread.currentThread() == this.receivingThread)
+		{ 
+			this.recordLatency(LatencyStage.FORWARD, this.receivedNanos);
+			this.packetsSent++;
+		}
+		return true;
+	}
+	
+	/**
+	 * Called by the device's transport when a packet arrives. Packets that 
+	 * arrive on an unknown interface are dropped.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 */
+	public void receivePacket(Ethernet etherPacket, Iface inIface)
+	{ this.receivePacket(etherPacket, inIface, System.nanoTime()); }
 	
+	/**
+	 * Called by the device's transport when a packet arrives. Once the 
+	 * packet has been handled it is returned to the {@link PacketPool}, so 
+	 * with pooling enabled handlePacket must not keep a reference to it.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 * @param receivedNanos when the transport read the packet, from 
+	 *        {@link System#nanoTime}; every packet sent while handling this 
+	 *        one is timed from then
+	 */
+	public void receivePacket(Ethernet etherPacket, Iface inIface, 
+			long receivedNanos)
+	{
+		if (null == inIface)
+		{
+			this.countDrop(DropReason.UNKNOWN_IFACE);
+			PacketPool.release(etherPacket);
+			return;
+		}
+		Policer policer = inIface.getPolicer();
+		if (policer != null && !policer.admit(etherPacket.getSerializedLength()))
+		{
+			this.countDrop(DropReason.POLICED);
+			PacketPool.release(etherPacket);
+			return;
+		}
+		if (this.logfile != null)
+		{ this.logfile.dump(etherPacket); }
+		
+		PacketHandledEvent event = new PacketHandledEvent();
+		event.begin();
+		this.receivedNanos = receivedNanos;
+		this.packetsSent = 0;
+		this.receivingThread = Thread.currentThread();
+		try
+		{ this.handlePacket(etherPacket, inIface); }
+		finally
+		{ this.receivingThread = null; }
+		
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.device = this.host;
+			event.iface = inIface.getName();
+			event.etherType = String.format("0x%04x", 
+					etherPacket.getEtherType() & 0xffff);
+			event.packetsSent = this.packetsSent;
+			event.commit();
+		}
+		PacketPool.release(etherPacket);
+	}
+	
+	/**
+	 * Called by the device's transport when several packets arrive at once.
+	 * Packets are handled in order; devices that can process a batch more 
+	 * efficiently than one packet at a time may override this.
+	 * @param etherPackets the Ethernet packets that were received
+	 * @param inIfaces the interface on which each packet was received
+	 * @param count number of packets in the batch
+	 */
+	public void receivePackets(Ethernet[] etherPackets, Iface[] inIfaces, 
+			int count)
+	{ this.receivePackets(etherPackets, inIfaces, null, count); }
+	
+	/**
+	 * Called by the device's transport when several packets arrive at once.
+	 * @param etherPackets the Ethernet packets that were received
+	 * @param inIfaces the interface on which each packet was received
+	 * @param receivedNanos when the transport read each packet, from 
+	 *        {@link System#nanoTime}; null to use the time each packet is 
+	 *        handled
+	 * @param count number of packets in the batch
+	 */
+	public void receivePackets(Ethernet[] etherPackets, Iface[] inIfaces, 
+			long[] receivedNanos, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			this.receivePacket(etherPackets[i], inIfaces[i], 
+					(null == receivedNanos) ? System.nanoTime() 
+							: receivedNanos[i]); 
+		}
+	}
+	
+	/**
+	 * Handle an Ethernet packet received on a specific interface.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 */
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -0,0 +1,43 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing a device's traffic and drop counters and
+ * latency histograms over JMX. Per-interface counters are exposed by each interface's
+ * {@link IfaceMXBean}.
+ */
+public interface DeviceMXBean
+{
+	public String getHost();
+
+	/** @return packets received on all interfaces */
+	public long getRxPackets();
+
+	/** @return packets sent out all interfaces */
+	public long getTxPackets();
+
+	/** @return packets dropped for any reason */
+	public long getDroppedPackets();
+
+	/** @return packets dropped; maps descriptions of drop reasons to 
+	 *  counts */
+	public Map<String,Long> getDrops();
+
+	/** @return summary of the latency of each stage of packet handling; maps
+	 *  stage names to summaries */
+	public Map<String,String> getLatency();
+
+	/**
+	 * @param stage name of a {@link LatencyStage}
+	 * @param percentile a percentile between 0 and 100
+	 * @return latency of the stage at the percentile, in nanoseconds
+	 */
+	public long getLatencyPercentile(String stage, double percentile);
+
+	/** Discard all recorded latencies. */
+	public void resetLatency();
+
+	/** Zero the device's drop counters and all interface counters. */
+	public void resetCounters();
+}
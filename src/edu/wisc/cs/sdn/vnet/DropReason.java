@@ -0,0 +1,50 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Reasons a device discards a packet. Devices count every drop by reason so
+ * loss can be monitored without reading the device's log.
+ */
+public enum DropReason
+{
+	/** Packet arrived on an interface the device does not have */
+	UNKNOWN_IFACE("Unknown interface"),
+	/** Transport could not send the packet */
+	SEND_FAILED("Failed to forward packet"),
+	/** Router received a packet that is not IPv4 */
+	NOT_IPV4("Not an IPv4 packet"),
+	/** IPv4 header checksum does not match */
+	BAD_CHECKSUM("Invalid checksum"),
+	/** IPv4 TTL reached zero */
+	TTL_EXPIRED("TTL expired"),
+	/** Packet is addressed to one of the router's interfaces */
+	LOCAL_DESTINATION("Packet addressed to router"),
+	/** No route matches the destination */
+	NO_ROUTE("No route to destination"),
+	/** Next hop MAC address is not in the ARP cache */
+	NO_ARP_ENTRY("Destination MAC not found in ARP cache"),
+	/** An access list rule denies the packet */
+	ACL_DENIED("Denied by access list"),
+	/** NAT could not translate a packet leaving its outside interface */
+	NAT_FAILED("Could not translate address"),
+	/** Packet exceeds the outgoing interface's MTU and may not be fragmented */
+	FRAGMENTATION_NEEDED("Fragmentation needed"),
+	/** Packet received faster than the interface's policer allows */
+	POLICED("Exceeded ingress rate limit"),
+	/** Egress shaping queue had no room for the packet */
+	SHAPER_QUEUE_FULL("Egress shaping queue full"),
+	/** Switch received a frame in a VLAN its port does not carry */
+	VLAN_FILTERED("VLAN not carried by port"),
+	/** Switch received a frame on a port the spanning tree has not let forward */
+	STP_BLOCKED("Port blocked by spanning tree");
+
+	private String description;
+
+	private DropReason(String description)
+	{ this.description = description; }
+
+	/**
+	 * @return human-readable description of the reason
+	 */
+	public String getDescription()
+	{ return this.description; }
+}
@@ -1,5 +1,9 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -7,27 +11,82 @@ import net.floodlightcontroller.packet.MACAddress;
  * An interface on a router.
  * @author Aaron Gember-Jacobson
  */
-public class Iface 
+public class Iface implements IfaceMXBean
 {
+	/** Value of the MAC address when none has been set */
+	public static final long NO_MAC_ADDRESS = -1;
+	
+	/** MTU of an interface unless set otherwise: Ethernet's, in bytes */
+	public static final int DEFAULT_MTU = 1500;
+	
+	/** Smallest and largest MTUs: the least every IPv4 link must carry 
+	 *  (RFC 791), and the largest IPv4 packet */
+	public static final int MIN_MTU = 68;
+	public static final int MAX_MTU = 65535;
+	
 	private String name;
-	private MACAddress macAddress;
+	
+	/** MAC address in the lower 48 bits; NO_MAC_ADDRESS if not set */
+	private long macAddress;
 	private int ipAddress;
 	private int subnetMask;
 	
+	/** Largest IPv4 packet sent out the interface without fragmenting */
+	private int mtu;
+	
+	/** Traffic counters; striped so concurrent transports do not contend */
+	private LongAdder rxPackets;
+	private LongAdder rxBytes;
+	private LongAdder txPackets;
+	private LongAdder txBytes;
+	
+	/** Packets split to fit the MTU, fragments they were split into, and
+	 *  packets dropped because they may not be fragmented */
+	private LongAdder fragmentedPackets;
+	private LongAdder fragmentsSent;
+	private LongAdder fragmentationNeeded;
+	
+	/** Rate limits for traffic received and sent; null if not limited */
+	private volatile Policer policer;
+	private volatile Shaper shaper;
+	
 	public Iface(String name)
 	{
 		this.name = name;
-		this.macAddress = null;
+		this.macAddress = NO_MAC_ADDRESS;
 		this.ipAddress = 0;
+		this.mtu = DEFAULT_MTU;
+		this.rxPackets = new LongAdder();
+		this.rxBytes = new LongAdder();
+		this.txPackets = new LongAdder();
+		this.txBytes = new LongAdder();
+		this.fragmentedPackets = new LongAdder();
+		this.fragmentsSent = new LongAdder();
+		this.fragmentationNeeded = new LongAdder();
 	}
 	
 	public String getName()
 	{ return this.name; }
 	
 	public void setMacAddress(MACAddress mac)
+	{ this.macAddress = (null == mac) ? NO_MAC_ADDRESS : mac.toLong(); }
+	
+	public void setMacAddress(long mac)
 	{ this.macAddress = mac; }
 	
+	/**
+	 * @return the MAC address; null if not set
+	 */
 	public MACAddress getMacAddress()
+	{ 
+		return (NO_MAC_ADDRESS == this.macAddress) ? null 
+				: MACAddress.valueOf(this.macAddress); 
+	}
+	
+	/**
+	 * @return the MAC address in the lower 48 bits; NO_MAC_ADDRESS if not set
+	 */
+	public long getMacAddressLong()
 	{ return this.macAddress; }
 
 	public void setIpAddress(int ip)
@@ -41,16 +100,159 @@ public class Iface
 	
 	public int getSubnetMask()
 	{ return this.subnetMask; }
+	
+	public int getMtu()
+	{ return this.mtu; }
+	
+	/**
+	 * @param mtu largest IPv4 packet, in bytes, to send out the interface
+	 *        without fragmenting; from MIN_MTU to MAX_MTU
+	 */
+	public void setMtu(int mtu)
+	{ this.mtu = mtu; }
+	
+	/**
+	 * Count a frame received on the interface; called by transports.
+	 * @param bytes length of the frame
+	 */
+	public void countReceived(int bytes)
+	{
+		this.rxPackets.increment();
+		this.rxBytes.add(bytes);
+	}
+	
+	/**
+	 * Count a frame sent out the interface; called by transports.
+	 * @param bytes length of the frame
+	 */
+	public void countSent(int bytes)
+	{
+		this.txPackets.increment();
+		this.txBytes.add(bytes);
+	}
+	
+	public long getRxPackets()
+	{ return this.rxPackets.sum(); }
+	
+	public long getRxBytes()
+	{ return this.rxBytes.sum(); }
+	
+	public long getTxPackets()
+	{ return this.txPackets.sum(); }
+	
+	public long getTxBytes()
+	{ return this.txBytes.sum(); }
+	
+	/**
+	 * Count a packet split into fragments to fit the MTU.
+	 * @param fragments number of fragments the packet was split into
+	 */
+	public void countFragmented(int fragments)
+	{
+		this.fragmentedPackets.increment();
+		this.fragmentsSent.add(fragments);
+	}
+	
+	/**
+	 * Count a packet dropped because it exceeds the MTU and may not be 
+	 * fragmented.
+	 */
+	public void countFragmentationNeeded()
+	{ this.fragmentationNeeded.increment(); }
+	
+	public long getFragmentedPackets()
+	{ return this.fragmentedPackets.sum(); }
+	
+	public long getFragmentsSent()
+	{ return this.fragmentsSent.sum(); }
+	
+	public long getFragmentationNeeded()
+	{ return this.fragmentationNeeded.sum(); }
+	
+	/**
+	 * @return policer for traffic received on the interface; null if the
+	 *         traffic is not policed
+	 */
+	public Policer getPolicer()
+	{ return this.policer; }
+	
+	public void setPolicer(Policer policer)
+	{ this.policer = policer; }
+	
+	/**
+	 * @return shaper for traffic sent out the interface; null if the
+	 *         traffic is not shaped
+	 */
+	public Shaper getShaper()
+	{ return this.shaper; }
+	
+	/**
+	 * @param shaper shaper for traffic sent out the interface; null to stop
+	 *        shaping. A shaper being replaced is closed.
+	 */
+	public void setShaper(Shaper shaper)
+	{
+		Shaper previous = this.shaper;
+		this.shaper = shaper;
+		if (previous != null)
+		{ previous.close(); }
+	}
+	
+	public Map<String,Long> getRateLimitCounters()
+	{
+		Map<String,Long> counts = new LinkedHashMap<String,Long>();
+		Policer policer = this.policer;
+		if (policer != null)
+		{
+			counts.put("policer.conforming", policer.getConforming());
+			counts.put("policer.exceeding", policer.getExceeding());
+		}
+		Shaper shaper = this.shaper;
+		if (shaper != null)
+		{
+			counts.put("shaper.conforming", shaper.getConforming());
+			counts.put("shaper.exceeding", shaper.getExceeding());
+			counts.put("shaper.dropped", shaper.getDropped());
+			counts.put("shaper.queued", (long)shaper.getQueueDepth());
+			for (Map.Entry<String,Long> count : shaper.getClassCounters().entrySet())
+			{ counts.put("shaper." + count.getKey(), count.getValue()); }
+		}
+		return counts;
+	}
+	
+	public Map<String,String> getShaperSojournTimes()
+	{
+		Shaper shaper = this.shaper;
+		return (null == shaper) ? new LinkedHashMap<String,String>()
+				: shaper.getSojournTimes();
+	}
+	
+	public void resetCounters()
+	{
+		this.rxPackets.reset();
+		this.rxBytes.reset();
+		this.txPackets.reset();
+		this.txBytes.reset();
+		this.fragmentedPackets.reset();
+		this.fragmentsSent.reset();
+		this.fragmentationNeeded.reset();
+		Policer policer = this.policer;
+		if (policer != null)
+		{ policer.resetCounters(); }
+		Shaper shaper = this.shaper;
+		if (shaper != null)
+		{ shaper.resetCounters(); }
+	}
 
 	public String toString()
 	{
-		if ((null == this.macAddress) || (0 == this.ipAddress)
+		if ((NO_MAC_ADDRESS == this.macAddress) || (0 == this.ipAddress)
 				|| (0 == this.subnetMask))
 		{ return this.name; }
 		else
 		{
 			return String.format("%s\tHWaddr %s\n\tinet addr:%s Mask:%s",
-					this.name, this.macAddress.toString(), 
+					this.name, MACAddress.toString(this.macAddress), 
 					IPv4.fromIPv4Address(this.ipAddress),
 					IPv4.fromIPv4Address(this.subnetMask));
 		}
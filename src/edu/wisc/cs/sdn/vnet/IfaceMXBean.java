@@ -0,0 +1,49 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing an interface's traffic counters over JMX.
+ */
+public interface IfaceMXBean
+{
+	public String getName();
+
+	/** @return packets received on the interface */
+	public long getRxPackets();
+
+	/** @return bytes received on the interface */
+	public long getRxBytes();
+
+	/** @return packets sent out the interface */
+	public long getTxPackets();
+
+	/** @return bytes sent out the interface */
+	public long getTxBytes();
+
+	/** @return largest IPv4 packet sent out the interface unfragmented */
+	public int getMtu();
+
+	/** @return packets split into fragments to fit the MTU */
+	public long getFragmentedPackets();
+
+	/** @return fragments the split packets were sent as */
+	public long getFragmentsSent();
+
+	/** @return packets dropped because they exceed the MTU and may not be
+	 *  fragmented */
+	public long getFragmentationNeeded();
+
+	/** @return counts of policed packets that conformed and exceeded, and
+	 *  of shaped packets sent at once, delayed and dropped, plus the shaping
+	 *  queue depth, in total and for each traffic class; empty if traffic 
+	 *  on the interface is not limited */
+	public Map<String,Long> getRateLimitCounters();
+
+	/** @return summary of the time packets waited in each of the shaper's
+	 *  queues, keyed by traffic class; empty if traffic is not shaped */
+	public Map<String,String> getShaperSojournTimes();
+
+	/** Zero the interface's counters. */
+	public void resetCounters();
+}
@@ -0,0 +1,156 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with log-linear buckets, in the style of
+ * HdrHistogram. Each power of two is split into {@link #SUB_BUCKETS} equal
+ * buckets, so every recorded value is reported within about 3% of its true
+ * value from 1 ns up to {@link #MAX_VALUE}. Recording is lock-free, never
+ * allocates, and may be done from several threads at once.
+ */
+public class LatencyHistogram
+{
+	/** Number of bits of precision kept for each value */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/** Number of buckets each power of two is split into */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Largest value tracked, about 18 minutes in nanoseconds; larger values
+	 *  are counted as this value */
+	public static final long MAX_VALUE = (1L << 40) - 1;
+
+	/** Number of buckets needed to cover values up to the maximum */
+	private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+	private AtomicLongArray counts;
+	private AtomicLong totalCount;
+	private AtomicLong totalValue;
+	private AtomicLong maxValue;
+
+	public LatencyHistogram()
+	{
+		this.counts = new AtomicLongArray(BUCKET_COUNT);
+		this.totalCount = new AtomicLong();
+		this.totalValue = new AtomicLong();
+		this.maxValue = new AtomicLong();
+	}
+
+	/**
+	 * Values below 2 * SUB_BUCKETS get a bucket each; above that, a value
+	 * is bucketed by its highest bit and the SUB_BUCKET_BITS bits below it.
+	 */
+	private static int bucketIndex(long value)
+	{
+		if (value < 2 * SUB_BUCKETS)
+		{ return (int)value; }
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+	}
+
+	/**
+	 * @return the largest value that falls in a bucket
+	 */
+	private static long highestValueInBucket(int index)
+	{
+		if (index < 2 * SUB_BUCKETS)
+		{ return index; }
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long mantissa = index - ((long)shift << SUB_BUCKET_BITS);
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency, in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		this.counts.incrementAndGet(bucketIndex(value));
+		this.totalCount.incrementAndGet();
+		this.totalValue.addAndGet(value);
+
+		long max;
+		while (value > (max = this.maxValue.get()))
+		{
+			if (this.maxValue.compareAndSet(max, value))
+			{ break; }
+		}
+	}
+
+	/**
+	 * Record the time elapsed since a start time.
+	 * @param startNanos start time, from {@link System#nanoTime}
+	 */
+	public void recordSince(long startNanos)
+	{ this.record(System.nanoTime() - startNanos); }
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long getCount()
+	{ return this.totalCount.get(); }
+
+	/**
+	 * @return largest value recorded, in nanoseconds
+	 */
+	public long getMax()
+	{ return this.maxValue.get(); }
+
+	/**
+	 * @return mean of the values recorded, in nanoseconds; 0 if none
+	 */
+	public double getMean()
+	{
+		long count = this.totalCount.get();
+		return (0 == count) ? 0 : this.totalValue.get() / (double)count;
+	}
+
+	/**
+	 * @param percentile a percentile between 0 and 100
+	 * @return the value at or below which the given percentage of recorded
+	 *         values fall, in nanoseconds; 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long count = this.totalCount.get();
+		if (0 == count)
+		{ return 0; }
+		long rank = (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+		rank = Math.max(rank, 1);
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += this.counts.get(i);
+			if (seen >= rank)
+			{ return Math.min(highestValueInBucket(i), this.maxValue.get()); }
+		}
+		return this.maxValue.get();
+	}
+
+	/**
+	 * Discard all recorded values. Values recorded while the histogram is
+	 * being reset may be partly lost.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{ this.counts.set(i, 0); }
+		this.totalCount.set(0);
+		this.totalValue.set(0);
+		this.maxValue.set(0);
+	}
+
+	public String toString()
+	{
+		return String.format("count %d mean %.2f p50 %.2f p90 %.2f p99 %.2f "
+				+ "p99.9 %.2f max %.2f us", this.getCount(), this.getMean() / 1e3,
+				this.getPercentile(50) / 1e3, this.getPercentile(90) / 1e3,
+				this.getPercentile(99) / 1e3, this.getPercentile(99.9) / 1e3,
+				this.getMax() / 1e3);
+	}
+}
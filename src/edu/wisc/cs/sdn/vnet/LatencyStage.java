@@ -0,0 +1,29 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Stages of packet handling whose latency devices track.
+ */
+public enum LatencyStage
+{
+	/** From the transport reading a frame to the device sending the packet
+	 *  it produced; includes time spent waiting in a receive batch */
+	FORWARD,
+	/** Transport decoding a frame into an Ethernet packet */
+	PARSE,
+	/** Router verifying and recomputing the IPv4 header checksum */
+	CHECKSUM,
+	/** Router checking a packet against its access lists */
+	FILTER,
+	/** Router finding the route to the destination */
+	ROUTE_LOOKUP,
+	/** Router translating addresses and ports for NAT */
+	TRANSLATE,
+	/** Router finding the next hop's MAC address */
+	ARP_LOOKUP,
+	/** Router splitting a packet into fragments that fit the outgoing MTU */
+	FRAGMENT,
+	/** Packet waiting in an egress shaping queue */
+	SHAPING,
+	/** Transport encoding a packet into a frame */
+	SERIALIZE
+}
@@ -0,0 +1,256 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sim.Topology;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Runs many routers and switches in one JVM, each with its own session to
+ * the VNS server, so a large topology shares one heap and one set of
+ * JIT-compiled code instead of starting a JVM per device. Each device reads
+ * from its session on its own thread: a virtual thread when the JVM
+ * supports them (Java 21 and later), otherwise a platform thread with a
+ * small stack. RIP timers for all routers run on one shared thread.
+ */
+public class Launcher
+{
+	private static final short COMM_PORT = 8888;
+	private static final String COMM_ADDRESS = "localhost";
+
+	/** Stack size of platform threads that run devices */
+	private static final long DEVICE_STACK_SIZE = 256 * 1024;
+
+	/** Interval at which routers check their RIP timers, in milliseconds */
+	private static final long RIP_TICK_MS = 100;
+
+	private String serverAddress;
+	private short serverPort;
+
+	/** Directory holding rtable.<host> files; null to run RIP everywhere */
+	private String routingDir;
+
+	/** ARP cache loaded into every router; null for none */
+	private String arpConfig;
+
+	/** Directory to write <host>.pcap packet logs to; null for none */
+	private String logDir;
+
+	/** Whether devices print a trace of every packet they handle */
+	private boolean tracing;
+
+	private ScheduledExecutorService ripTimer;
+
+	/** Number of devices whose sessions are open */
+	private AtomicInteger activeDevices;
+
+	public Launcher(String serverAddress, short serverPort, String routingDir,
+			String arpConfig, String logDir)
+	{
+		this.serverAddress = serverAddress;
+		this.serverPort = serverPort;
+		this.routingDir = routingDir;
+		this.arpConfig = arpConfig;
+		this.logDir = logDir;
+		this.tracing = true;
+		this.activeDevices = new AtomicInteger();
+		this.ripTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "rip-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Create an executor that runs each task on a new virtual thread if the
+	 * JVM supports them, otherwise on a new platform thread.
+	 */
+	static ExecutorService newDeviceExecutor()
+	{
+		try
+		{
+			Method method = Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		}
+		catch (ReflectiveOperationException e) { }
+
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> new Thread(null, r,
+				"device-" + count.incrementAndGet(), DEVICE_STACK_SIZE);
+		return Executors.newCachedThreadPool(factory);
+	}
+
+	/**
+	 * @param tracing true to have devices print a trace of every packet they
+	 *        handle, as they do by default
+	 */
+	public void setTracing(boolean tracing)
+	{ this.tracing = tracing; }
+
+	/**
+	 * Connect a device to the server and handle its packets until the
+	 * server closes the session.
+	 * @param nodeId ID of the device, beginning with 's' or 'r'
+	 */
+	public void runDevice(String nodeId)
+	{
+		DumpFile packetDump = null;
+		if (this.logDir != null)
+		{
+			String packetLog = new File(this.logDir, nodeId + ".pcap").getPath();
+			packetDump = DumpFile.open(packetLog);
+			if (null == packetDump)
+			{
+				System.err.println("Failed to open log file: " + packetLog);
+				return;
+			}
+		}
+
+		Device device;
+		if (nodeId.startsWith("s"))
+		{ device = new Switch(nodeId, packetDump); }
+		else if (nodeId.startsWith("r"))
+		{ device = new Router(nodeId, packetDump); }
+		else
+		{
+			System.err.println("Invalid device ID " + nodeId
+					+ " - must begin with 's' or 'r'");
+			return;
+		}
+		device.setTracing(this.tracing);
+
+		VNSComm networkComm = new VNSComm(device);
+		if (!networkComm.connectToServer(this.serverPort, this.serverAddress))
+		{
+			System.err.println("Failed to connect " + nodeId);
+			device.destroy();
+			return;
+		}
+		networkComm.readFromServerExpect(Command.VNS_HW_INFO);
+		device.registerMBeans();
+
+		ScheduledFuture<?> ripTick = null;
+		if (device instanceof Router)
+		{
+			final Router router = (Router)device;
+			File routingConfig = (null == this.routingDir) ? null
+					: new File(this.routingDir, "rtable." + nodeId);
+			if (routingConfig != null && routingConfig.isFile())
+			{ router.loadRouteTable(routingConfig.getPath()); }
+			else
+			{
+				router.startRIPTable();
+				ripTick = this.ripTimer.scheduleAtFixedRate(
+						router::checkLastRIPTime, RIP_TICK_MS, RIP_TICK_MS,
+						TimeUnit.MILLISECONDS);
+			}
+			if (this.arpConfig != null)
+			{ router.loadArpCache(this.arpConfig); }
+		}
+
+		System.out.println(">>> " + nodeId + " initialized and ready ("
+				+ this.activeDevices.incrementAndGet() + " devices) <<<");
+		while (networkComm.readFromServer())
+		{
+			// Process packets until server disconnects
+		}
+
+		if (ripTick != null)
+		{ ripTick.cancel(false); }
+		this.activeDevices.decrementAndGet();
+		device.destroy();
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		List<String> nodeIds = new ArrayList<String>();
+		String topoFile = null;
+		String serverAddress = COMM_ADDRESS;
+		short serverPort = COMM_PORT;
+		String routingDir = null;
+		String arpConfig = null;
+		String logDir = null;
+		boolean tracing = true;
+
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				showHelp();
+				return;
+			}
+			else if (arg.equals("-v"))
+			{
+				for (String nodeId : args[++i].split(","))
+				{
+					if (!nodeId.isEmpty())
+					{ nodeIds.add(nodeId); }
+				}
+			}
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-p"))
+			{ serverPort = Short.parseShort(args[++i]); }
+			else if (arg.equals("-s"))
+			{ serverAddress = args[++i]; }
+			else if (arg.equals("-r"))
+			{ routingDir = args[++i]; }
+			else if (arg.equals("-a"))
+			{ arpConfig = args[++i]; }
+			else if (arg.equals("-l"))
+			{ logDir = args[++i]; }
+			else if (arg.equals("-quiet"))
+			{ tracing = false; }
+		}
+
+		if (topoFile != null)
+		{
+			Topology topo = Topology.load(topoFile);
+			if (null == topo)
+			{ System.exit(1); }
+			nodeIds.addAll(topo.getRouters().keySet());
+			nodeIds.addAll(topo.getSwitches());
+		}
+
+		if (nodeIds.isEmpty())
+		{
+			showHelp();
+			return;
+		}
+
+		final Launcher launcher = new Launcher(serverAddress, serverPort,
+				routingDir, arpConfig, logDir);
+		launcher.setTracing(tracing);
+		System.out.println("Starting " + nodeIds.size() + " devices, connecting to "
+				+ serverAddress + ":" + serverPort);
+		ExecutorService executor = newDeviceExecutor();
+		for (final String nodeId : nodeIds)
+		{ executor.execute(() -> launcher.runDevice(nodeId)); }
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	static void showHelp()
+	{
+		System.out.println("SDN Virtual Network Multi-Device Client");
+		System.out.println("Usage: Launcher (-v host[,host...] | -t topo_file) [-s server] [-p port]");
+		System.out.println("       [-r rtable_dir] [-a arp_cache] [-l log_dir] [-quiet] [-h]");
+		System.out.println("Routers with an rtable.<host> file in rtable_dir use it; others run RIP");
+		System.out.println("Default: server=" + COMM_ADDRESS + ", port=" + COMM_PORT);
+	}
+}
@@ -1,4 +1,5 @@
 package edu.wisc.cs.sdn.vnet;
+import edu.wisc.cs.sdn.vnet.rt.ConfigWatcher;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -15,10 +16,19 @@ public class Main
 		String serverAddress = COMM_ADDRESS;
 		String routingConfig = null;
 		String arpConfig = null;
+		String aclConfig = null;
 		String packetLog = null;
+		String natIface = null;
+		String rateConfig = null;
+		String mtuConfig = null;
+		String vlanConfig = null;
+		boolean watchConfig = false;
+		boolean spanningTree = false;
+		boolean tracing = true;
 		short serverPort = COMM_PORT;
 		VNSComm networkComm = null;
 		Device networkNode = null;
+		ConfigWatcher configWatcher = null;
 		
 		// Process command line args
 		for(int i = 0; i < args.length; i++)
@@ -41,6 +51,22 @@ public class Main
 			{ routingConfig = args[++i]; }
 			else if (currentArg.equals("-a"))
 			{ arpConfig = args[++i]; }
+			else if (currentArg.equals("-f"))
+			{ aclConfig = args[++i]; }
+			else if (currentArg.equals("-w"))
+			{ watchConfig = true; }
+			else if (currentArg.equals("-n"))
+			{ natIface = args[++i]; }
+			else if (currentArg.equals("-q"))
+			{ rateConfig = args[++i]; }
+			else if (currentArg.equals("-mtu"))
+			{ mtuConfig = args[++i]; }
+			else if (currentArg.equals("-vlan"))
+			{ vlanConfig = args[++i]; }
+			else if (currentArg.equals("-stp"))
+			{ spanningTree = true; }
+			else if (currentArg.equals("-quiet"))
+			{ tracing = false; }
 		}
 		
 		if (nodeId == null)
@@ -72,6 +98,8 @@ public class Main
 			return;
 		}
 		
+		networkNode.setTracing(tracing);
+		
 		// Establish connection to network simulator
 		System.out.println("Initializing connection to " + serverAddress + ":" + serverPort);
 		networkComm = new VNSComm(networkNode);
@@ -79,6 +107,39 @@ public class Main
 		{ System.exit(1); }
 		networkComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
+		// Set interface MTUs, which rate limits' bursts must hold
+		if (mtuConfig != null)
+		{
+			if (!networkNode.loadMtus(mtuConfig))
+			{
+				System.err.println("Failed to load MTUs from " + mtuConfig);
+				System.exit(1);
+			}
+			System.out.println("MTUs loaded successfully");
+		}
+		
+		// Limit interface rates
+		if (rateConfig != null)
+		{
+			if (!networkNode.loadRateLimits(rateConfig))
+			{
+				System.err.println("Failed to load rate limits from " + rateConfig);
+				System.exit(1);
+			}
+			System.out.println("Rate limits loaded successfully");
+		}
+		
+		// Expose packet and drop counters over JMX
+		networkNode.registerMBeans();
+		
+		// Configure switch-specific options if applicable
+		if (networkNode instanceof Switch && vlanConfig != null
+				&& !((Switch)networkNode).loadVlans(vlanConfig))
+		{ System.exit(1); }
+		
+		if (networkNode instanceof Switch && spanningTree)
+		{ ((Switch)networkNode).enableSpanningTree(); }
+		
 		// Configure router-specific options if applicable
 		if (networkNode instanceof Router) 
 		{
@@ -91,6 +152,20 @@ public class Main
 			
 			if (arpConfig != null)
 			{ routerNode.loadArpCache(arpConfig); }
+			
+			if (aclConfig != null)
+			{ routerNode.loadAccessList(aclConfig); }
+			
+			if (natIface != null && !routerNode.enableNat(natIface))
+			{ System.exit(1); }
+			
+			// Reload the static tables when their files change
+			if (watchConfig && (routingConfig != null || arpConfig != null
+					|| aclConfig != null))
+			{ 
+				configWatcher = ConfigWatcher.start(routerNode, routingConfig, 
+						arpConfig, aclConfig); 
+			}
 		}
 		
 		System.out.println(">>> Network device initialized and ready <<<");
@@ -99,6 +174,9 @@ public class Main
 		if (routingConfig == null && networkNode instanceof Router) {
 			handleRIPUpdates((Router)networkNode, networkComm);
 		}
+		else if (spanningTree && networkNode instanceof Switch) {
+			handleSpanningTree((Switch)networkNode, networkComm);
+		}
 		else {
 			while (networkComm.readFromServer()) {
 				// Process packets until server disconnects
@@ -106,6 +184,8 @@ public class Main
 		}
 		
 		// Clean up resources
+		if (configWatcher != null)
+		{ configWatcher.close(); }
 		networkNode.destroy();
 	}
 	
@@ -139,11 +219,46 @@ public class Main
 		}
 	}
 	
+	private static void handleSpanningTree(Switch sw, VNSComm comm) {
+		boolean[] active = {true};
+		
+		Thread timerThread = new Thread(() -> {
+			while (active[0]) {
+				try {
+					sw.checkSpanningTree();
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					System.err.println("Spanning tree thread terminated");
+					active[0] = false;
+				}
+			}
+		});
+		
+		timerThread.start();
+		
+		while (comm.readFromServer()) {
+			// Process packets while running the spanning tree timers
+		}
+		
+		active[0] = false;
+		try {
+			timerThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	static void showHelp()
 	{
 		System.out.println("SDN Virtual Network Client");
 		System.out.println("Usage: VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("       [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("       [-r routing_table] [-a arp_cache] [-f access_list] [-w]");
+		System.out.println("       [-n nat_outside_iface] [-q rate_limits] [-mtu mtu_config]");
+		System.out.println("       [-vlan vlan_config] [-stp] [-quiet] [-l log_file]");
+		System.out.println("-w reloads routing_table, arp_cache and access_list when they change");
+		System.out.println("-mtu mtu_config sets interface MTUs, one \"iface bytes\" per line");
+		System.out.println("-stp runs the rapid spanning tree protocol on a switch");
+		System.out.println("-quiet stops printing a trace of every packet handled");
 		System.out.println("Default: server=" + COMM_ADDRESS + ", port=" + COMM_PORT);
 	}
 }
@@ -0,0 +1,27 @@
+package edu.wisc.cs.sdn.vnet;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Carries packets between a device and the network it is attached to. A
+ * transport hands packets that arrive on an interface to the device through
+ * {@link Device#receivePacket} or, when several packets are ready at once,
+ * {@link Device#receivePackets}, and sends packets the device emits.
+ * <p>
+ * {@link edu.wisc.cs.sdn.vnet.vns.VNSComm} carries packets over a session
+ * with the VNS server. To run devices in memory, without Mininet or POX, 
+ * use {@link edu.wisc.cs.sdn.vnet.sim.DeviceNode}: the simulator connects 
+ * nodes by virtual links, and each node delivers frames to its device on 
+ * an executor, so devices may send from any thread, including a shaper's.
+ */
+public interface PacketTransport
+{
+	/**
+	 * Send an Ethernet packet out a specific interface.
+	 * @param etherPacket an Ethernet packet with all fields, encapsulated
+	 * 		  headers, and payloads completed
+	 * @param iface interface on which to send the packet
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface iface);
+}
@@ -0,0 +1,155 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Reads back the Ethernet frames in a pcap file, such as one written by
+ * {@link DumpFile}. Files in either byte order, with microsecond or
+ * nanosecond timestamps, are accepted.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NANO = 0xa1b23c4d;
+	private static final int LINKTYPE_ETHERNET = 1;
+
+	/** A frame read from the file */
+	public static class Record
+	{
+		/** Capture time, in nanoseconds since the epoch */
+		public long timestamp;
+
+		/** Captured bytes of the frame */
+		public byte[] data;
+
+		/** Length of the frame on the wire, which may exceed the bytes captured */
+		public int originalLength;
+	}
+
+	private DataInputStream inStream;
+
+	/** True if the file was written in the opposite byte order */
+	private boolean swapped;
+
+	/** Nanoseconds per unit of the sub-second timestamp field */
+	private long fractionNanos;
+
+	private PcapReader(DataInputStream inStream)
+	{ this.inStream = inStream; }
+
+	/**
+	 * Open a pcap file and read its header.
+	 * @param filename name of the file; "-" for standard input
+	 * @return a reader positioned at the first frame; null if the file cannot
+	 *         be read or does not hold Ethernet frames
+	 */
+	public static PcapReader open(String filename)
+	{
+		PcapReader reader;
+		if (filename.equals("-"))
+		{
+			reader = new PcapReader(new DataInputStream(
+					new BufferedInputStream(System.in)));
+		}
+		else
+		{
+			try
+			{
+				reader = new PcapReader(new DataInputStream(
+						new BufferedInputStream(new FileInputStream(filename))));
+			}
+			catch (FileNotFoundException e)
+			{
+				System.err.println("Cannot open " + filename);
+				return null;
+			}
+		}
+
+		if (!reader.readHeader())
+		{
+			System.err.println("Not an Ethernet pcap file: " + filename);
+			reader.close();
+			return null;
+		}
+		return reader;
+	}
+
+	private boolean readHeader()
+	{
+		try
+		{
+			int magic = this.inStream.readInt();
+			if (TCPDUMP_MAGIC == magic || TCPDUMP_MAGIC_NANO == magic)
+			{ this.swapped = false; }
+			else if (TCPDUMP_MAGIC == Integer.reverseBytes(magic)
+					|| TCPDUMP_MAGIC_NANO == Integer.reverseBytes(magic))
+			{
+				this.swapped = true;
+				magic = Integer.reverseBytes(magic);
+			}
+			else
+			{ return false; }
+			this.fractionNanos = (TCPDUMP_MAGIC_NANO == magic) ? 1 : 1000;
+
+			// Skip the version, time zone, significant figures and snap length
+			this.inStream.readFully(new byte[4 + 4 + 4 + 4]);
+			return (LINKTYPE_ETHERNET == this.readInt());
+		}
+		catch (IOException e)
+		{ return false; }
+	}
+
+	private int readInt() throws IOException
+	{
+		int value = this.inStream.readInt();
+		return this.swapped ? Integer.reverseBytes(value) : value;
+	}
+
+	/**
+	 * Read the next frame in the file.
+	 * @return the frame; null at the end of the file or on error
+	 */
+	public Record read()
+	{
+		try
+		{
+			int sec;
+			try
+			{ sec = this.readInt(); }
+			catch (EOFException e)
+			{ return null; }
+
+			Record record = new Record();
+			long fraction = this.readInt() & 0xffffffffL;
+			record.timestamp = (sec & 0xffffffffL) * 1000000000L
+					+ fraction * this.fractionNanos;
+			int capturedLength = this.readInt();
+			record.originalLength = this.readInt();
+			if (capturedLength < 0)
+			{
+				System.err.println("Invalid captured length " + capturedLength);
+				return null;
+			}
+			record.data = new byte[capturedLength];
+			this.inStream.readFully(record.data);
+			return record;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Truncated pcap file");
+			return null;
+		}
+	}
+
+	public void close()
+	{
+		try
+		{ this.inStream.close(); }
+		catch (IOException e) { }
+	}
+}
@@ -0,0 +1,58 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of traffic received on an interface, dropping packets
+ * that exceed it.
+ */
+public class Policer
+{
+	private TokenBucket bucket;
+
+	/** Packets within the rate, and packets over it, which were dropped */
+	private LongAdder conforming;
+	private LongAdder exceeding;
+
+	/**
+	 * @param rate rate in bits per second
+	 * @param burst burst size in bytes
+	 */
+	public Policer(long rate, int burst)
+	{
+		this.bucket = new TokenBucket(rate, burst);
+		this.conforming = new LongAdder();
+		this.exceeding = new LongAdder();
+	}
+
+	/**
+	 * Check a received packet against the rate.
+	 * @param bytes length of the frame
+	 * @return true if the packet conforms; false if it should be dropped
+	 */
+	public boolean admit(int bytes)
+	{
+		if (this.bucket.tryConsume(bytes, System.nanoTime()))
+		{
+			this.conforming.increment();
+			return true;
+		}
+		this.exceeding.increment();
+		return false;
+	}
+
+	public long getConforming()
+	{ return this.conforming.sum(); }
+
+	public long getExceeding()
+	{ return this.exceeding.sum(); }
+
+	public void resetCounters()
+	{
+		this.conforming.reset();
+		this.exceeding.reset();
+	}
+
+	public String toString()
+	{ return "police " + this.bucket.toString(); }
+}
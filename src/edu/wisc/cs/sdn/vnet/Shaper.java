@@ -0,0 +1,365 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Limits the rate of traffic sent out an interface, delaying packets that
+ * exceed it. A packet that conforms while nothing is waiting is sent at
+ * once; otherwise a copy waits in a bounded queue, which a timer shared by
+ * all shapers drains as tokens allow. Packets that find their queue full
+ * are dropped. The queues and their bounds are lock-free, so senders never
+ * block.
+ *
+ * A FIFO shaper has one queue. Other schedulers give each
+ * {@link TrafficClass} its own queue: strict priority always serves the
+ * highest-priority class with packets waiting, and deficit round robin
+ * serves classes in turn, each sending up to its weight in full-sized
+ * frames per turn. Each queue tracks its depth and the time its packets
+ * wait.
+ */
+public class Shaper
+{
+	/** How a shaper chooses the next packet to send */
+	public enum Scheduler
+	{
+		/** One queue, in arrival order */
+		FIFO,
+		/** A queue per class, always serving the highest priority first */
+		STRICT,
+		/** A queue per class, served in turn by deficit round robin */
+		DRR
+	}
+
+	/** Time between drains of each shaper's queues */
+	private static final long DRAIN_INTERVAL_MICROS = 1000;
+
+	/** Bytes a class may send per turn for each unit of its weight */
+	private static final int QUANTUM = 1514;
+
+	/** Deficit round robin weight of each class, by ordinal */
+	private static final int[] DEFAULT_WEIGHTS = { 4, 4, 2, 1, 1 };
+
+	/** Timer that drains every shaper's queues */
+	private static final ScheduledExecutorService timer =
+			Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "shaper");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	/** A packet waiting to be sent */
+	private static class Queued
+	{
+		Ethernet etherPacket;
+		int length;
+		long enqueuedNanos;
+	}
+
+	/** Packets of one class waiting, and the class's statistics */
+	private static class ClassQueue
+	{
+		Queue<Queued> packets = new ConcurrentLinkedQueue<Queued>();
+		AtomicInteger depth = new AtomicInteger();
+		int limit;
+
+		/** Bytes sent per turn, and bytes the class may still send this
+		 *  turn; used only by deficit round robin */
+		int quantum;
+		int deficit;
+
+		LongAdder sent = new LongAdder();
+		LongAdder dropped = new LongAdder();
+		LatencyHistogram sojourn = new LatencyHistogram();
+	}
+
+	private Device device;
+	private Iface iface;
+	private TokenBucket bucket;
+	private Scheduler scheduler;
+
+	/** Queues, in order of priority; one for a FIFO shaper */
+	private ClassQueue[] queues;
+
+	/** Packets waiting in all queues; stays above zero until the packet
+	 *  being drained has been sent, so nothing overtakes it */
+	private AtomicInteger queued;
+
+	/** Queue whose turn it is, and whether it has had its quantum for this
+	 *  turn; used only by deficit round robin */
+	private int current;
+	private boolean credited;
+
+	/** Packets sent at once, delayed, and dropped because a queue was full */
+	private LongAdder conforming;
+	private LongAdder exceeding;
+	private LongAdder dropped;
+
+	private ScheduledFuture<?> drainer;
+
+	/**
+	 * Create a FIFO shaper.
+	 * @param device device whose packets are shaped
+	 * @param iface interface the packets are sent out
+	 * @param rate rate in bits per second
+	 * @param burst burst size in bytes
+	 * @param queueLimit most packets that may wait
+	 */
+	public Shaper(Device device, Iface iface, long rate, int burst,
+			int queueLimit)
+	{ this(device, iface, rate, burst, queueLimit, Scheduler.FIFO); }
+
+	/**
+	 * @param device device whose packets are shaped
+	 * @param iface interface the packets are sent out
+	 * @param rate rate in bits per second
+	 * @param burst burst size in bytes
+	 * @param queueLimit most packets that may wait in each queue
+	 * @param scheduler how to choose the next packet to send
+	 */
+	public Shaper(Device device, Iface iface, long rate, int burst,
+			int queueLimit, Scheduler scheduler)
+	{
+		this.device = device;
+		this.iface = iface;
+		this.bucket = new TokenBucket(rate, burst);
+		this.scheduler = scheduler;
+		this.queues = new ClassQueue[(Scheduler.FIFO == scheduler) ? 1
+				: TrafficClass.values().length];
+		for (int i = 0; i < this.queues.length; i++)
+		{
+			this.queues[i] = new ClassQueue();
+			this.queues[i].limit = queueLimit;
+			this.queues[i].quantum = DEFAULT_WEIGHTS[i] * QUANTUM;
+		}
+		this.queued = new AtomicInteger();
+		this.conforming = new LongAdder();
+		this.exceeding = new LongAdder();
+		this.dropped = new LongAdder();
+		this.drainer = timer.scheduleAtFixedRate(this::drain,
+				DRAIN_INTERVAL_MICROS, DRAIN_INTERVAL_MICROS, TimeUnit.MICROSECONDS);
+	}
+
+	public Scheduler getScheduler()
+	{ return this.scheduler; }
+
+	/**
+	 * Set the deficit round robin weight of a class.
+	 * @param trafficClass the class
+	 * @param weight full-sized frames the class may send per turn
+	 */
+	public void setWeight(TrafficClass trafficClass, int weight)
+	{
+		if (this.queues.length > 1)
+		{ this.queues[trafficClass.ordinal()].quantum = weight * QUANTUM; }
+	}
+
+	/**
+	 * Send a packet, or queue it if it exceeds the rate.
+	 * @param etherPacket the packet; it is copied if queued, so the caller
+	 *        may reuse it
+	 * @return true if the packet was sent or queued, otherwise false
+	 */
+	public boolean send(Ethernet etherPacket)
+	{
+		int length = etherPacket.getSerializedLength();
+		long now = System.nanoTime();
+		if (0 == this.queued.get() && this.bucket.tryConsume(length, now))
+		{
+			this.conforming.increment();
+			return this.device.transmit(etherPacket, this.iface);
+		}
+
+		ClassQueue queue = this.queues[(1 == this.queues.length) ? 0
+				: TrafficClass.classify(etherPacket).ordinal()];
+		if (queue.depth.incrementAndGet() > queue.limit)
+		{
+			queue.depth.decrementAndGet();
+			queue.dropped.increment();
+			this.dropped.increment();
+			this.device.countDrop(DropReason.SHAPER_QUEUE_FULL);
+			return false;
+		}
+		byte[] frame = etherPacket.serialize();
+		Queued entry = new Queued();
+		entry.etherPacket = new Ethernet();
+		entry.etherPacket.deserialize(frame, 0, frame.length);
+		entry.length = length;
+		entry.enqueuedNanos = now;
+		this.queued.incrementAndGet();
+		queue.packets.offer(entry);
+		this.exceeding.increment();
+		return true;
+	}
+
+	/**
+	 * Send waiting packets while tokens allow; run only by the timer.
+	 */
+	private void drain()
+	{
+		long now = System.nanoTime();
+		while (this.queued.get() > 0)
+		{
+			ClassQueue queue = (Scheduler.DRR == this.scheduler)
+					? this.nextRoundRobin() : this.nextByPriority();
+			if (null == queue)
+			{ return; }
+			Queued head = queue.packets.peek();
+			if (!this.bucket.tryConsume(head.length, now))
+			{ return; }
+
+			queue.packets.poll();
+			queue.deficit -= head.length;
+			long sojourn = now - head.enqueuedNanos;
+			queue.sojourn.record(sojourn);
+			this.device.getLatencyHistogram(LatencyStage.SHAPING).record(sojourn);
+			this.device.transmit(head.etherPacket, this.iface);
+			queue.sent.increment();
+			queue.depth.decrementAndGet();
+			this.queued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the highest-priority queue with packets waiting; null if none
+	 */
+	private ClassQueue nextByPriority()
+	{
+		for (ClassQueue queue : this.queues)
+		{
+			if (queue.packets.peek() != null)
+			{ return queue; }
+		}
+		return null;
+	}
+
+	/**
+	 * Advance through the queues in turn, crediting each with its quantum
+	 * when its turn starts, until one has a packet its deficit covers.
+	 * @return the queue; null if no packets are waiting
+	 */
+	private ClassQueue nextRoundRobin()
+	{
+		// A queue is credited at most once per pass, and a quantum covers a
+		// full-sized frame, so two passes always find a packet if any wait
+		for (int visits = 0; visits <= 2 * this.queues.length; visits++)
+		{
+			ClassQueue queue = this.queues[this.current];
+			Queued head = queue.packets.peek();
+			if (null == head)
+			{ queue.deficit = 0; }
+			else
+			{
+				if (!this.credited)
+				{
+					queue.deficit += queue.quantum;
+					this.credited = true;
+				}
+				if (head.length <= queue.deficit)
+				{ return queue; }
+			}
+			this.current = (this.current + 1) % this.queues.length;
+			this.credited = false;
+		}
+		return null;
+	}
+
+	/**
+	 * Stop draining the queues; packets still waiting are discarded.
+	 */
+	public void close()
+	{
+		this.drainer.cancel(false);
+		for (ClassQueue queue : this.queues)
+		{
+			queue.packets.clear();
+			queue.depth.set(0);
+		}
+		this.queued.set(0);
+	}
+
+	/**
+	 * @return number of packets waiting in all queues
+	 */
+	public int getQueueDepth()
+	{ return this.queued.get(); }
+
+	public long getConforming()
+	{ return this.conforming.sum(); }
+
+	public long getExceeding()
+	{ return this.exceeding.sum(); }
+
+	public long getDropped()
+	{ return this.dropped.sum(); }
+
+	/**
+	 * @return depth and packets sent and dropped of each class's queue,
+	 *         keyed by class and statistic, such as "control.queued"; empty
+	 *         for a FIFO shaper
+	 */
+	public Map<String,Long> getClassCounters()
+	{
+		Map<String,Long> counts = new LinkedHashMap<String,Long>();
+		if (1 == this.queues.length)
+		{ return counts; }
+		for (TrafficClass trafficClass : TrafficClass.values())
+		{
+			ClassQueue queue = this.queues[trafficClass.ordinal()];
+			String name = trafficClass.name().toLowerCase();
+			counts.put(name + ".queued", (long)queue.depth.get());
+			counts.put(name + ".sent", queue.sent.sum());
+			counts.put(name + ".dropped", queue.dropped.sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * @return summary of the time packets waited in each queue, keyed by
+	 *         class; "all" for a FIFO shaper
+	 */
+	public Map<String,String> getSojournTimes()
+	{
+		Map<String,String> summary = new LinkedHashMap<String,String>();
+		if (1 == this.queues.length)
+		{ summary.put("all", this.queues[0].sojourn.toString()); }
+		else
+		{
+			for (TrafficClass trafficClass : TrafficClass.values())
+			{
+				summary.put(trafficClass.name().toLowerCase(),
+						this.queues[trafficClass.ordinal()].sojourn.toString());
+			}
+		}
+		return summary;
+	}
+
+	public void resetCounters()
+	{
+		this.conforming.reset();
+		this.exceeding.reset();
+		this.dropped.reset();
+		for (ClassQueue queue : this.queues)
+		{
+			queue.sent.reset();
+			queue.dropped.reset();
+			queue.sojourn.reset();
+		}
+	}
+
+	public String toString()
+	{
+		return String.format("shape %s, %s queue %d", this.bucket.toString(),
+				this.scheduler.name().toLowerCase(), this.queues[0].limit);
+	}
+}
@@ -0,0 +1,80 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits traffic to a rate, allowing bursts up to a
+ * size. Rather than a token count refilled over time, the bucket keeps the
+ * time at which it would be full again if no more traffic arrived, and a
+ * packet conforms if sending it would not put that time more than a burst
+ * ahead of now (the equivalent GCRA form). A packet larger than the burst
+ * conforms only when the bucket is full, and leaves it in debt, so it is
+ * delayed rather than refused forever. The state is a single long
+ * updated by compare-and-set, so threads never block on the bucket.
+ */
+public class TokenBucket
+{
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	/** Rate in bits per second */
+	private final long rate;
+
+	/** Burst size in bytes, and the time sending it takes at the rate */
+	private final int burst;
+	private final long burstNanos;
+
+	/** Time, from {@link System#nanoTime}, at which the bucket is full */
+	private final AtomicLong fullAt;
+
+	/**
+	 * Create a full bucket.
+	 * @param rate rate in bits per second
+	 * @param burst burst size in bytes
+	 */
+	public TokenBucket(long rate, int burst)
+	{
+		this.rate = rate;
+		this.burst = burst;
+		this.burstNanos = this.nanosFor(burst);
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	public long getRate()
+	{ return this.rate; }
+
+	public int getBurst()
+	{ return this.burst; }
+
+	/**
+	 * @return time sending a number of bytes takes at the rate, in
+	 *         nanoseconds
+	 */
+	private long nanosFor(int bytes)
+	{ return (bytes * 8L * NANOS_PER_SECOND) / this.rate; }
+
+	/**
+	 * Take tokens for a packet if there are enough; a packet larger than
+	 * the burst takes them all once the bucket is full.
+	 * @param bytes length of the packet
+	 * @param now current time, from {@link System#nanoTime}
+	 * @return true if the packet conforms and its tokens were taken;
+	 *         false if it exceeds the rate, in which case no tokens are taken
+	 */
+	public boolean tryConsume(int bytes, long now)
+	{
+		long cost = this.nanosFor(bytes);
+		long limit = Math.max(cost, this.burstNanos);
+		while (true)
+		{
+			long fullAt = this.fullAt.get();
+			long start = (fullAt - now < 0) ? now : fullAt;
+			if (start + cost - now > limit)
+			{ return false; }
+			if (this.fullAt.compareAndSet(fullAt, start + cost))
+			{ return true; }
+		}
+	}
+
+	public String toString()
+	{ return String.format("%d bit/s, burst %d bytes", this.rate, this.burst); }
+}
@@ -0,0 +1,54 @@
+package edu.wisc.cs.sdn.vnet;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Classes of traffic a shaper queues separately, in order of priority.
+ * Packets are classified by their DSCP (RFC 4594), except that RIP, ICMP
+ * and non-IP traffic such as ARP is always control traffic.
+ */
+public enum TrafficClass
+{
+	/** Routing protocols, ICMP, ARP, and DSCP CS6 and CS7 */
+	CONTROL,
+	/** Expedited forwarding (EF), voice admit and CS5 */
+	EXPEDITED,
+	/** Assured forwarding (AF11 to AF43) and CS2 to CS4 */
+	ASSURED,
+	/** Default forwarding */
+	BEST_EFFORT,
+	/** Lower effort: CS1 */
+	BULK;
+
+	private static final int DSCP_CS1 = 8;
+	private static final int DSCP_CS5 = 40;
+	private static final int DSCP_CS6 = 48;
+
+	/**
+	 * @param etherPacket a packet
+	 * @return the packet's class
+	 */
+	public static TrafficClass classify(Ethernet etherPacket)
+	{
+		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return CONTROL; }
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		if (IPv4.PROTOCOL_ICMP == ipPacket.getProtocol()
+				|| (IPv4.PROTOCOL_UDP == ipPacket.getProtocol()
+				&& (short)ipPacket.getTransportPorts() == UDP.RIP_PORT))
+		{ return CONTROL; }
+
+		int dscp = (ipPacket.getDiffServ() & 0xff) >>> 2;
+		if (dscp >= DSCP_CS6)
+		{ return CONTROL; }
+		else if (dscp >= DSCP_CS5)
+		{ return EXPEDITED; }
+		else if (dscp > DSCP_CS1)
+		{ return ASSURED; }
+		else if (DSCP_CS1 == dscp)
+		{ return BULK; }
+		return BEST_EFFORT;
+	}
+}
@@ -0,0 +1,22 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An ARP cache lookup that found no entry.
+ */
+@Name("edu.wisc.cs.sdn.vnet.ArpMiss")
+@Label("ARP Miss")
+@Category({"VNet", "Routing"})
+@Description("An ARP cache lookup that found no entry.")
+@Enabled(false)
+public class ArpMissEvent extends Event
+{
+	@Label("Address")
+	public String address;
+}
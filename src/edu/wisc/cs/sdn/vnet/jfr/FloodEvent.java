@@ -0,0 +1,36 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A switch flooding a frame whose destination it has not learned.
+ */
+@Name("edu.wisc.cs.sdn.vnet.Flood")
+@Label("Flood")
+@Category({"VNet", "Switching"})
+@Description("A switch flooding a frame whose destination it has not learned.")
+@Enabled(false)
+public class FloodEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Destination MAC Address")
+	public String destination;
+
+	@Label("Input Interface")
+	public String iface;
+
+	@Label("Ports")
+	@Description("Number of interfaces the frame was sent out")
+	public int ports;
+
+	@Label("VLAN")
+	@Description("VLAN the frame was flooded in; -1 if the switch has no VLANs")
+	public short vlan;
+}
@@ -0,0 +1,32 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A switch binding a new source MAC address to an interface.
+ */
+@Name("edu.wisc.cs.sdn.vnet.MacLearned")
+@Label("MAC Learned")
+@Category({"VNet", "Switching"})
+@Description("A switch binding a new source MAC address to an interface.")
+@Enabled(false)
+public class MacLearnedEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("MAC Address")
+	public String mac;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("VLAN")
+	@Description("VLAN the address was learned in; -1 if the switch has no VLANs")
+	public short vlan;
+}
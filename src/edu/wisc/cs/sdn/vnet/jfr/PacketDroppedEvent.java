@@ -0,0 +1,25 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A packet discarded by a device.
+ */
+@Name("edu.wisc.cs.sdn.vnet.PacketDropped")
+@Label("Packet Dropped")
+@Category({"VNet", "Forwarding"})
+@Description("A packet discarded by a device.")
+@Enabled(false)
+public class PacketDroppedEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Reason")
+	public String reason;
+}
@@ -0,0 +1,38 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A device handling a received packet, including sending any packets it
+ * produced. Only recorded when it takes longer than the threshold, 1 ms by
+ * default.
+ */
+@Name("edu.wisc.cs.sdn.vnet.PacketHandled")
+@Label("Packet Handled")
+@Category({"VNet", "Forwarding"})
+@Description("A device handling a received packet, including sending any packets it produced.")
+@Enabled(false)
+@StackTrace(false)
+@Threshold("1 ms")
+public class PacketHandledEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Input Interface")
+	public String iface;
+
+	@Label("EtherType")
+	@Description("EtherType of the packet, in hexadecimal")
+	public String etherType;
+
+	@Label("Packets Sent")
+	public int packetsSent;
+}
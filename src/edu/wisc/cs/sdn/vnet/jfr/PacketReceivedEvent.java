@@ -0,0 +1,30 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A frame read from the VNS server.
+ */
+@Name("edu.wisc.cs.sdn.vnet.PacketReceived")
+@Label("Packet Received")
+@Category({"VNet", "Forwarding"})
+@Description("A frame read from the VNS server.")
+@Enabled(false)
+public class PacketReceivedEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("Size")
+	@DataAmount
+	public int size;
+}
@@ -0,0 +1,35 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A frame serialized and written to the VNS server. Only recorded when it
+ * takes longer than the threshold, 1 ms by default.
+ */
+@Name("edu.wisc.cs.sdn.vnet.PacketSent")
+@Label("Packet Sent")
+@Category({"VNet", "Forwarding"})
+@Description("A frame serialized and written to the VNS server.")
+@Enabled(false)
+@StackTrace(false)
+@Threshold("1 ms")
+public class PacketSentEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Interface")
+	public String iface;
+
+	@Label("Size")
+	@DataAmount
+	public int size;
+}
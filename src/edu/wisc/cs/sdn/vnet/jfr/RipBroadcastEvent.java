@@ -0,0 +1,34 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A router sending its RIP table out every interface.
+ */
+@Name("edu.wisc.cs.sdn.vnet.RipBroadcast")
+@Label("RIP Broadcast")
+@Category({"VNet", "Routing"})
+@Description("A router sending its RIP table out every interface.")
+@Enabled(false)
+@StackTrace(false)
+public class RipBroadcastEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Command")
+	@Description("request or response")
+	public String command;
+
+	@Label("Routes")
+	public int routes;
+
+	@Label("Interfaces")
+	public int interfaces;
+}
@@ -0,0 +1,38 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A route added to or updated in a router's RIP table.
+ */
+@Name("edu.wisc.cs.sdn.vnet.RipTableChange")
+@Label("RIP Table Change")
+@Category({"VNet", "Routing"})
+@Description("A route added to or updated in a router's RIP table.")
+@Enabled(false)
+public class RipTableChangeEvent extends Event
+{
+	@Label("Device")
+	public String device;
+
+	@Label("Change")
+	@Description("added or updated")
+	public String change;
+
+	@Label("Network")
+	public String network;
+
+	@Label("Mask")
+	public String mask;
+
+	@Label("Metric")
+	public int metric;
+
+	@Label("Next Hop")
+	public String nextHop;
+}
@@ -0,0 +1,41 @@
+package edu.wisc.cs.sdn.vnet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A longest-prefix match in a static route table. Only recorded when it
+ * takes longer than the threshold, 10 us by default.
+ */
+@Name("edu.wisc.cs.sdn.vnet.RouteLookup")
+@Label("Route Lookup")
+@Category({"VNet", "Routing"})
+@Description("A longest-prefix match in a static route table.")
+@Enabled(false)
+@StackTrace(false)
+@Threshold("10 us")
+public class RouteLookupEvent extends Event
+{
+	@Label("Destination")
+	public String destination;
+
+	@Label("Matched")
+	public boolean matched;
+
+	@Label("Route")
+	@Description("Destination of the matching route")
+	public String route;
+
+	@Label("Output Interface")
+	public String iface;
+
+	@Label("Routes")
+	@Description("Number of routes in the table")
+	public int routes;
+}
@@ -0,0 +1,7 @@
+/**
+ * JDK Flight Recorder events for the forwarding and routing paths. All
+ * events are disabled by default and cost nothing until a recording enables
+ * them; the vnet.jfc settings file at the top of the source tree enables
+ * them with thresholds suited to continuous recording.
+ */
+package edu.wisc.cs.sdn.vnet.jfr;
@@ -0,0 +1,324 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Access lists that filter the packets a router receives and the packets
+ * it forwards. Rules are read from a file, one per line:
+ * <pre>
+ *   (in|out) (permit|deny) src dst [protocol [src_port [dst_port]]]
+ * </pre>
+ * where src and dst are "any", an IP address or a prefix such as
+ * 10.0.1.0/24; protocol is "any", "icmp", "tcp", "udp" or a number; and
+ * ports, which only TCP and UDP rules may give, are "any" or a number.
+ * Lines starting with # are comments. Rules for each direction apply in
+ * the order they appear, the first match deciding; a packet no rule matches
+ * is permitted. Fragments other than the first have no ports, so only rules
+ * without ports match them.
+ *
+ * Rules are compiled into an {@link AclClassifier} for each direction, and
+ * a new file replaces both in one step, so packets are never checked
+ * against a mix of old and new rules. Each rule counts the packets it
+ * matched.
+ */
+public class AccessList
+{
+	/** Direction of the packets an access list applies to */
+	public enum Direction
+	{
+		/** Packets received by the router */
+		IN,
+		/** Packets the router forwards, once their route is found */
+		OUT
+	}
+
+	/** Protocol or port of a rule that matches any value */
+	public static final int ANY = -1;
+
+	/** Rules for packets in each direction, indexed by ordinal */
+	private volatile AclClassifier[] classifiers;
+
+	/**
+	 * Initialize an access list with no rules, which permits everything.
+	 */
+	public AccessList()
+	{
+		List<Rule> none = new ArrayList<Rule>();
+		this.classifiers = new AclClassifier[] { new AclClassifier(none),
+				new AclClassifier(none) };
+	}
+
+	/**
+	 * @return true if there are rules for a direction
+	 */
+	public boolean hasRules(Direction direction)
+	{ return this.classifiers[direction.ordinal()].size() > 0; }
+
+	/**
+	 * Check whether the rules permit a packet, counting the rule that
+	 * matched.
+	 * @param direction direction the packet is travelling
+	 * @param ipPacket the packet
+	 * @return true if the packet is permitted, otherwise false
+	 */
+	public boolean permits(Direction direction, IPv4 ipPacket)
+	{
+		Rule rule = this.classifiers[direction.ordinal()].classify(
+				ipPacket.getSourceAddress(), ipPacket.getDestinationAddress(),
+				ipPacket.getProtocol() & 0xff, ipPacket.getTransportPorts());
+		return (null == rule || rule.isPermit());
+	}
+
+	/**
+	 * Replace the rules with those in a file. If the file cannot be read or
+	 * has an invalid rule, the current rules are kept.
+	 * @param filename name of the file containing the rules
+	 * @return true if the rules were replaced, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		List<List<Rule>> rules = new ArrayList<List<Rule>>();
+		for (int i = 0; i < Direction.values().length; i++)
+		{ rules.add(new ArrayList<Rule>()); }
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				String text = line.trim();
+				if (text.isEmpty() || text.startsWith("#"))
+				{ continue; }
+
+				String[] fields = text.split("\\s+");
+				Direction direction = parseDirection(fields[0]);
+				Rule rule = Rule.parse(fields, text);
+				if (null == direction || null == rule)
+				{
+					System.err.println(String.format(
+							"Error loading access list, line %d of %s: invalid rule",
+							lineNumber, filename));
+					System.err.println("\t" + text);
+					return false;
+				}
+				rules.get(direction.ordinal()).add(rule);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+
+		AclClassifier[] compiled = new AclClassifier[rules.size()];
+		for (int i = 0; i < compiled.length; i++)
+		{ compiled[i] = new AclClassifier(rules.get(i)); }
+		this.classifiers = compiled;
+		return true;
+	}
+
+	private static Direction parseDirection(String text)
+	{
+		if (text.equals("in"))
+		{ return Direction.IN; }
+		else if (text.equals("out"))
+		{ return Direction.OUT; }
+		return null;
+	}
+
+	public String toString()
+	{
+		AclClassifier[] classifiers = this.classifiers;
+		StringBuilder result = new StringBuilder();
+		for (Direction direction : Direction.values())
+		{
+			AclClassifier classifier = classifiers[direction.ordinal()];
+			result.append(String.format("%s: %d rules in %d tuples\n", direction,
+					classifier.size(), classifier.tupleCount()));
+			for (int i = 0; i < classifier.size(); i++)
+			{
+				result.append(String.format("%10d  %s\n", classifier.getHits(i),
+						classifier.getRule(i)));
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * A rule in an access list.
+	 */
+	static class Rule
+	{
+		private boolean permit;
+		private int srcIp;
+		private int srcLength;
+		private int dstIp;
+		private int dstLength;
+		private int protocol;
+		private int srcPort;
+		private int dstPort;
+
+		/** The rule as written */
+		private String text;
+
+		/**
+		 * Parse the fields of a rule, after its direction.
+		 * @return the rule; null if it is invalid
+		 */
+		static Rule parse(String[] fields, String text)
+		{
+			if (fields.length < 4 || fields.length > 7)
+			{ return null; }
+
+			Rule rule = new Rule();
+			rule.text = text;
+			if (fields[1].equals("permit"))
+			{ rule.permit = true; }
+			else if (!fields[1].equals("deny"))
+			{ return null; }
+
+			long src = parsePrefix(fields[2]);
+			long dst = parsePrefix(fields[3]);
+			if (src < 0 || dst < 0)
+			{ return null; }
+			rule.srcIp = (int)src;
+			rule.srcLength = (int)(src >>> 32);
+			rule.dstIp = (int)dst;
+			rule.dstLength = (int)(dst >>> 32);
+
+			rule.protocol = (fields.length > 4) ? parseProtocol(fields[4]) : ANY;
+			rule.srcPort = (fields.length > 5) ? parseNumber(fields[5], 0xffff) : ANY;
+			rule.dstPort = (fields.length > 6) ? parseNumber(fields[6], 0xffff) : ANY;
+			if (rule.protocol < ANY || rule.srcPort < ANY || rule.dstPort < ANY)
+			{ return null; }
+
+			// Only TCP and UDP packets have ports
+			if ((rule.srcPort != ANY || rule.dstPort != ANY)
+					&& rule.protocol != IPv4.PROTOCOL_TCP
+					&& rule.protocol != IPv4.PROTOCOL_UDP)
+			{ return null; }
+			return rule;
+		}
+
+		/**
+		 * @return prefix length in the upper 32 bits and the address, with
+		 *         the bits past the prefix cleared, in the lower 32 bits; -1
+		 *         if the text is not a prefix
+		 */
+		private static long parsePrefix(String text)
+		{
+			if (text.equals("any"))
+			{ return 0; }
+
+			int length = 32;
+			int slash = text.indexOf('/');
+			if (slash >= 0)
+			{
+				length = parseNumber(text.substring(slash + 1), 32);
+				if (length < 0)
+				{ return -1; }
+				text = text.substring(0, slash);
+			}
+
+			int ip;
+			try
+			{ ip = IPv4.toIPv4Address(text); }
+			catch (IllegalArgumentException e)
+			{ return -1; }
+			return ((long)length << 32) | (ip & prefixMask(length) & 0xffffffffL);
+		}
+
+		/**
+		 * @return the protocol number; ANY for any protocol; less than ANY
+		 *         if the text is not a protocol
+		 */
+		private static int parseProtocol(String text)
+		{
+			if (text.equals("icmp"))
+			{ return IPv4.PROTOCOL_ICMP; }
+			else if (text.equals("tcp"))
+			{ return IPv4.PROTOCOL_TCP; }
+			else if (text.equals("udp"))
+			{ return IPv4.PROTOCOL_UDP; }
+			return parseNumber(text, 0xff);
+		}
+
+		/**
+		 * @return the number; ANY for "any"; less than ANY if the text is not
+		 *         a number from 0 to max
+		 */
+		private static int parseNumber(String text, int max)
+		{
+			if (text.equals("any"))
+			{ return ANY; }
+			try
+			{
+				int value = Integer.parseInt(text);
+				return (value >= 0 && value <= max) ? value : ANY - 1;
+			}
+			catch (NumberFormatException e)
+			{ return ANY - 1; }
+		}
+
+		private static int prefixMask(int length)
+		{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+		/**
+		 * @return source and destination addresses combined into a key
+		 */
+		static long addressKey(int srcIp, int dstIp)
+		{ return ((long)srcIp << 32) | (dstIp & 0xffffffffL); }
+
+		/**
+		 * @return protocol and ports combined into a key
+		 */
+		static long fieldKey(int protocol, int ports)
+		{ return ((long)protocol << 32) | (ports & 0xffffffffL); }
+
+		/**
+		 * @return the rule's addresses as a key
+		 */
+		long addressKey()
+		{ return addressKey(this.srcIp, this.dstIp); }
+
+		/**
+		 * @return the rule's protocol and ports as a key, with 0 for any
+		 */
+		long fieldKey()
+		{
+			return fieldKey((ANY == this.protocol) ? 0 : this.protocol,
+					(((ANY == this.srcPort) ? 0 : this.srcPort) << 16)
+					| ((ANY == this.dstPort) ? 0 : this.dstPort));
+		}
+
+		/**
+		 * @return mask of the address bits the rule matches on
+		 */
+		long addressMask()
+		{ return addressKey(prefixMask(this.srcLength), prefixMask(this.dstLength)); }
+
+		/**
+		 * @return mask of the protocol and port bits the rule matches on
+		 */
+		long fieldMask()
+		{
+			return fieldKey((ANY == this.protocol) ? 0 : 0xff,
+					((ANY == this.srcPort) ? 0 : 0xffff0000)
+					| ((ANY == this.dstPort) ? 0 : 0xffff));
+		}
+
+		boolean isPermit()
+		{ return this.permit; }
+
+		public String toString()
+		{ return this.text; }
+	}
+}
@@ -0,0 +1,196 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An ordered list of access list rules compiled for tuple space search.
+ * Rules that specify the same fields, with the same prefix lengths, form a
+ * tuple; each tuple is a hash table keyed by those fields, holding the
+ * first rule for each key. A packet is classified by masking its fields for
+ * each tuple and probing that tuple's table, so the cost grows with the
+ * number of distinct tuples, not the number of rules. Tuples are probed in
+ * order of their first rule, and probing stops once no remaining tuple can
+ * hold an earlier rule than the best match so far. Classifying never
+ * allocates; the compiled form is immutable except for its hit counters.
+ */
+class AclClassifier
+{
+	/** Rules in the order they are applied */
+	private final AccessList.Rule[] rules;
+
+	/** Packets matched by each rule */
+	private final AtomicLongArray hits;
+
+	/** Tuples, in order of their first rule */
+	private final Tuple[] tuples;
+
+	/**
+	 * Compile a list of rules.
+	 * @param rules the rules; the first that matches a packet applies
+	 */
+	AclClassifier(List<AccessList.Rule> rules)
+	{
+		this.rules = rules.toArray(new AccessList.Rule[rules.size()]);
+		this.hits = new AtomicLongArray(this.rules.length);
+
+		// Group rules by the fields they specify
+		Map<List<Long>,List<Integer>> groups =
+				new LinkedHashMap<List<Long>,List<Integer>>();
+		for (int i = 0; i < this.rules.length; i++)
+		{
+			List<Long> masks = new ArrayList<Long>(2);
+			masks.add(this.rules[i].addressMask());
+			masks.add(this.rules[i].fieldMask());
+			List<Integer> group = groups.get(masks);
+			if (null == group)
+			{
+				group = new ArrayList<Integer>();
+				groups.put(masks, group);
+			}
+			group.add(i);
+		}
+
+		// Groups were created in order of their first rule
+		this.tuples = new Tuple[groups.size()];
+		int t = 0;
+		for (Map.Entry<List<Long>,List<Integer>> group : groups.entrySet())
+		{
+			this.tuples[t++] = new Tuple(group.getKey().get(0),
+					group.getKey().get(1), this.rules, group.getValue());
+		}
+	}
+
+	/**
+	 * @return number of rules
+	 */
+	int size()
+	{ return this.rules.length; }
+
+	/**
+	 * @return number of tuples a packet may be checked against
+	 */
+	int tupleCount()
+	{ return this.tuples.length; }
+
+	/**
+	 * @return the rule at a position
+	 */
+	AccessList.Rule getRule(int index)
+	{ return this.rules[index]; }
+
+	/**
+	 * @return packets matched by the rule at a position
+	 */
+	long getHits(int index)
+	{ return this.hits.get(index); }
+
+	/**
+	 * Find the first rule that matches a packet, and count the match.
+	 * @param srcIp source IP address
+	 * @param dstIp destination IP address
+	 * @param protocol IP protocol number
+	 * @param ports source port in the upper 16 bits and destination port in
+	 *        the lower 16 bits; 0 if the packet has no ports
+	 * @return the rule; null if none matches
+	 */
+	AccessList.Rule classify(int srcIp, int dstIp, int protocol, int ports)
+	{
+		long addresses = AccessList.Rule.addressKey(srcIp, dstIp);
+		long fields = AccessList.Rule.fieldKey(protocol, ports);
+		int best = Integer.MAX_VALUE;
+		for (Tuple tuple : this.tuples)
+		{
+			if (tuple.firstRule >= best)
+			{ break; }
+			int rule = tuple.find(addresses & tuple.addressMask,
+					fields & tuple.fieldMask);
+			if (rule < best)
+			{ best = rule; }
+		}
+		if (Integer.MAX_VALUE == best)
+		{ return null; }
+		this.hits.incrementAndGet(best);
+		return this.rules[best];
+	}
+
+	private static int hash(long addresses, long fields)
+	{
+		long hash = (addresses * 0x9e3779b97f4a7c15L) ^ fields;
+		hash *= 0xbf58476d1ce4e5b9L;
+		return (int)(hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * Rules that specify the same fields with the same prefix lengths.
+	 */
+	private static class Tuple
+	{
+		final long addressMask;
+		final long fieldMask;
+
+		/** Position of the tuple's first rule */
+		final int firstRule;
+
+		/** Open-addressed table of keys and the first rule, plus one, with
+		 *  each key; 0 marks an empty slot */
+		final long[] addressKeys;
+		final long[] fieldKeys;
+		final int[] slots;
+		final int mask;
+
+		/**
+		 * @param rules all rules
+		 * @param members positions of the rules in the tuple, in order
+		 */
+		Tuple(long addressMask, long fieldMask, AccessList.Rule[] rules,
+				List<Integer> members)
+		{
+			this.addressMask = addressMask;
+			this.fieldMask = fieldMask;
+			this.firstRule = members.get(0);
+
+			int size = Integer.highestOneBit(members.size() * 2 - 1) * 2;
+			this.addressKeys = new long[size];
+			this.fieldKeys = new long[size];
+			this.slots = new int[size];
+			this.mask = size - 1;
+			for (int rule : members)
+			{
+				// Keep only the first rule with each key
+				long addresses = rules[rule].addressKey();
+				long fields = rules[rule].fieldKey();
+				int slot = hash(addresses, fields) & this.mask;
+				while (this.slots[slot] != 0
+						&& (this.addressKeys[slot] != addresses
+						|| this.fieldKeys[slot] != fields))
+				{ slot = (slot + 1) & this.mask; }
+				if (0 == this.slots[slot])
+				{
+					this.addressKeys[slot] = addresses;
+					this.fieldKeys[slot] = fields;
+					this.slots[slot] = rule + 1;
+				}
+			}
+		}
+
+		/**
+		 * @return the first rule with a key; Integer.MAX_VALUE if none
+		 */
+		int find(long addresses, long fields)
+		{
+			int slot = hash(addresses, fields) & this.mask;
+			while (this.slots[slot] != 0)
+			{
+				if (this.addressKeys[slot] == addresses
+						&& this.fieldKeys[slot] == fields)
+				{ return this.slots[slot] - 1; }
+				slot = (slot + 1) & this.mask;
+			}
+			return Integer.MAX_VALUE;
+		}
+	}
+}
@@ -1,25 +1,22 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.jfr.ArpMissEvent;
+
 /**
  * A cache of MAC address to IP address mappings.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/** Entries in the cache; maps an IP address to an entry. Replaced 
+	 *  as a whole by {@link #reload}. */
+	private volatile Map<Integer,ArpEntry> entries;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
@@ -33,7 +30,7 @@ public class ArpCache
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
-	public void insert(MACAddress mac, int ip)
+	public synchronized void insert(MACAddress mac, int ip)
 	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
 	
 	/**
@@ -42,97 +39,95 @@ public class ArpCache
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		ArpEntry entry = this.entries.get(ip);
+		if (null == entry)
+		{
+			ArpMissEvent event = new ArpMissEvent();
+			if (event.shouldCommit())
+			{
+				event.address = IPv4.fromIPv4Address(ip);
+				event.commit();
+			}
+		}
+		return entry;
+	}
 	
 	/**
-	 * Populate the ARP cache from a file.
-	 * @param filename name of the file containing the static route table
-	 * @param router the route table is associated with
-	 * @return true if route table was successfully loaded, otherwise false
+	 * Populate the ARP cache from a file with one IP address and MAC
+	 * address per line.
+	 * @param filename name of the file containing the static ARP cache
+	 * @return true if ARP cache was successfully loaded, otherwise false
 	 */
-	public boolean load(String filename)
+	public synchronized boolean load(String filename)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
-		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
+		long[] loaded = TableParser.readArp(filename);
+		if (null == loaded)
+		{ return false; }
+		
+		// Add entries to the ARP cache
+		for (int i = 0; i < loaded.length; i += 2)
 		{
-			System.err.println(e.toString());
-			return false;
+			int ip = (int)loaded[i];
+			this.entries.put(ip, new ArpEntry(loaded[i + 1], ip));
 		}
+		return true;
+	}
+	
+	/**
+	 * Replace the entries in the ARP cache with those in a file. Unchanged
+	 * entries are kept, and the new entries are published in one step, so
+	 * lookups never see a partly replaced cache. If the file cannot be read
+	 * the ARP cache is left as it is.
+	 * @param filename name of the file containing the static ARP cache
+	 * @return a summary of what changed; null if the file could not be 
+	 *         loaded
+	 */
+	public synchronized String reload(String filename)
+	{
+		long[] loaded = TableParser.readArp(filename);
+		if (null == loaded)
+		{ return null; }
 		
-		while (true)
+		Map<Integer,ArpEntry> current = this.entries;
+		Map<Integer,ArpEntry> replacement = 
+				new ConcurrentHashMap<Integer,ArpEntry>(loaded.length);
+		int added = 0;
+		int changed = 0;
+		for (int i = 0; i < loaded.length; i += 2)
 		{
-			// Read an ARP entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-			
-			// Parse fields for ARP entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String macByte = "[a-fA-F0-9]{2}";
-			String macPattern = "("+macByte+":"+macByte+":"+macByte
-					+":"+macByte+":"+macByte+":"+macByte+")";
-			Pattern pattern = Pattern.compile(String.format(
-					"%s\\s+%s", ipPattern, macPattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 2)
-			{
-				System.err.println("Invalid entry in ARP cache file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			int ip = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == ip)
+			int ip = (int)loaded[i];
+			long mac = loaded[i + 1];
+			ArpEntry entry = current.get(ip);
+			if (null == entry)
 			{
-				System.err.println("Error loading ARP cache, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				added++;
+				entry = new ArpEntry(mac, ip);
 			}
-			
-			MACAddress mac = null;
-			try
-			{ mac = MACAddress.valueOf(matcher.group(2)); }
-			catch(IllegalArgumentException iae)
+			else if (entry.getMacLong() != mac)
 			{
-				System.err.println("Error loading ARP cache, cannot convert " 
-						+ matcher.group(3) + " to valid MAC");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				changed++;
+				entry = new ArpEntry(mac, ip);
 			}
-			
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			replacement.put(ip, entry);
 		}
-	
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
-		return true;
+		int removed = 0;
+		for (Integer ip : current.keySet())
+		{
+			if (!replacement.containsKey(ip))
+			{ removed++; }
+		}
+		
+		this.entries = replacement;
+		return String.format("%d entries: %d added, %d removed, %d changed",
+				replacement.size(), added, removed, changed);
 	}
 	
 	public String toString()
 	{
-		String result = "IP\t\tMAC\n";
+		StringBuilder result = new StringBuilder("IP\t\tMAC\n");
 		for (ArpEntry entry : this.entries.values())
-		{
-			result += entry.toString()+"\n";
-		}
-		return result;
+		{ result.append(entry.toString()).append("\n"); }
+		return result.toString();
 	}
 }
@@ -9,8 +9,8 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class ArpEntry 
 {
-	/** MAC address corresponding to IP address */
-	private MACAddress mac;
+	/** MAC address corresponding to IP address, in the lower 48 bits */
+	private long mac;
 	
 	/** IP address corresponding to MAC address */
 	private int ip;
@@ -24,6 +24,14 @@ public class ArpEntry
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac.toLong(), ip); }
+	
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address, in the lower 48 bits
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public ArpEntry(long mac, int ip)
 	{
 		this.mac = mac;
 		this.ip = ip;
@@ -34,6 +42,12 @@ public class ArpEntry
 	 * @return MAC address corresponding to IP address
 	 */
 	public MACAddress getMac()
+	{ return MACAddress.valueOf(this.mac); }
+	
+	/**
+	 * @return MAC address corresponding to IP address, in the lower 48 bits
+	 */
+	public long getMacLong()
 	{ return this.mac; }
 	
 	/**
@@ -51,6 +65,6 @@ public class ArpEntry
 	public String toString()
 	{
 		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
-				this.mac.toString());
+				MACAddress.toString(this.mac));
 	}
 }
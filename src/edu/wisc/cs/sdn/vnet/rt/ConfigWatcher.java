@@ -0,0 +1,153 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a router's static route table, ARP cache and access list files
+ * and reloads them into the router when they change. Reloads run on the
+ * watcher's own thread and swap the tables in one step, so the router keeps
+ * forwarding while a file is read; a file that fails to load leaves its
+ * table as it was.
+ */
+public class ConfigWatcher implements Runnable
+{
+	/** Time to wait for a file to stop changing before reloading it, so a
+	 *  file is not read while an editor is still writing it */
+	private static final long SETTLE_MS = 200;
+
+	private Router router;
+
+	/** Files to watch; null if not watched */
+	private Path routeFile;
+	private Path arpFile;
+	private Path aclFile;
+
+	private WatchService watcher;
+
+	/** Directory watched by each key */
+	private Map<WatchKey,Path> directories;
+
+	private Thread thread;
+
+	private ConfigWatcher(Router router, Path routeFile, Path arpFile,
+			Path aclFile)
+	{
+		this.router = router;
+		this.routeFile = routeFile;
+		this.arpFile = arpFile;
+		this.aclFile = aclFile;
+		this.directories = new HashMap<WatchKey,Path>();
+	}
+
+	/**
+	 * Start watching the files a router's tables were loaded from.
+	 * @param router the router to reload the tables of
+	 * @param routeFile route table file; null to not watch one
+	 * @param arpFile ARP cache file; null to not watch one
+	 * @param aclFile access list file; null to not watch one
+	 * @return the watcher; null if the files could not be watched
+	 */
+	public static ConfigWatcher start(Router router, String routeFile,
+			String arpFile, String aclFile)
+	{
+		ConfigWatcher watcher = new ConfigWatcher(router, toPath(routeFile),
+				toPath(arpFile), toPath(aclFile));
+		try
+		{
+			watcher.watcher = FileSystems.getDefault().newWatchService();
+			watcher.register(watcher.routeFile);
+			watcher.register(watcher.arpFile);
+			watcher.register(watcher.aclFile);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to watch configuration files: " + e.toString());
+			watcher.close();
+			return null;
+		}
+
+		watcher.thread = new Thread(watcher, "config-watcher");
+		watcher.thread.setDaemon(true);
+		watcher.thread.start();
+		return watcher;
+	}
+
+	private static Path toPath(String file)
+	{ return (null == file) ? null : Paths.get(file).toAbsolutePath().normalize(); }
+
+	/**
+	 * Watch the directory holding a file, unless it is already watched.
+	 */
+	private void register(Path file) throws IOException
+	{
+		if (null == file || this.directories.containsValue(file.getParent()))
+		{ return; }
+		WatchKey key = file.getParent().register(this.watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.directories.put(key, file.getParent());
+	}
+
+	/**
+	 * Stop watching.
+	 */
+	public void close()
+	{
+		try
+		{
+			if (this.watcher != null)
+			{ this.watcher.close(); }
+		}
+		catch (IOException e) { }
+	}
+
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				// Wait for a change, then until changes stop
+				boolean reloadRoutes = false;
+				boolean reloadArp = false;
+				boolean reloadAcl = false;
+				WatchKey key = this.watcher.take();
+				while (key != null)
+				{
+					Path dir = this.directories.get(key);
+					for (WatchEvent<?> event : key.pollEvents())
+					{
+						if (null == dir || !(event.context() instanceof Path))
+						{ continue; }
+						Path changed = dir.resolve((Path)event.context());
+						reloadRoutes |= changed.equals(this.routeFile);
+						reloadArp |= changed.equals(this.arpFile);
+						reloadAcl |= changed.equals(this.aclFile);
+					}
+					key.reset();
+					key = this.watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+				}
+
+				if (reloadRoutes)
+				{ this.router.reloadRouteTable(this.routeFile.toString()); }
+				if (reloadArp)
+				{ this.router.reloadArpCache(this.arpFile.toString()); }
+				if (reloadAcl)
+				{ this.router.reloadAccessList(this.aclFile.toString()); }
+			}
+		}
+		catch (InterruptedException e) { }
+		catch (ClosedWatchServiceException e) { }
+	}
+}
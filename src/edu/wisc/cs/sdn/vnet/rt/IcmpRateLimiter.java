@@ -0,0 +1,65 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.TokenBucket;
+
+/**
+ * Limits the ICMP messages a router sends, both to each destination and in
+ * total, so a flood of packets that draw errors cannot keep the router busy
+ * generating them. Destinations are hashed onto a fixed set of token
+ * buckets, so memory stays bounded however many sources there are; sources
+ * that share a bucket share its rate. Buckets count messages, not bytes.
+ */
+class IcmpRateLimiter
+{
+	/** Number of per-destination buckets; a power of two */
+	private static final int BUCKETS = 1024;
+
+	/** Messages per second, and burst, allowed to each destination */
+	private static final int RATE = 10;
+	private static final int BURST = 10;
+
+	/** Messages per second, and burst, allowed in total */
+	private static final int TOTAL_RATE = 1000;
+	private static final int TOTAL_BURST = 100;
+
+	private final TokenBucket[] buckets;
+	private final TokenBucket total;
+
+	/** Messages not sent because a limit was reached */
+	private final LongAdder suppressed;
+
+	IcmpRateLimiter()
+	{
+		// A bucket's rate is in bits per second and its burst in bytes, so
+		// counting each message as one byte makes the rate 8 bits a message
+		this.buckets = new TokenBucket[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+		{ this.buckets[i] = new TokenBucket(RATE * 8L, BURST); }
+		this.total = new TokenBucket(TOTAL_RATE * 8L, TOTAL_BURST);
+		this.suppressed = new LongAdder();
+	}
+
+	/**
+	 * Take a token for a message, if the limits allow one.
+	 * @param destinationIp address the message would be sent to
+	 * @return true if the message may be sent, otherwise false
+	 */
+	boolean allow(int destinationIp)
+	{
+		long now = System.nanoTime();
+		int hash = destinationIp * 0x9e3779b9;
+		TokenBucket bucket = this.buckets[(hash ^ (hash >>> 16)) & (BUCKETS - 1)];
+		if (bucket.tryConsume(1, now) && this.total.tryConsume(1, now))
+		{ return true; }
+		this.suppressed.increment();
+		return false;
+	}
+
+	/**
+	 * @return number of messages not sent because a limit was reached
+	 */
+	long getSuppressed()
+	{ return this.suppressed.sum(); }
+}
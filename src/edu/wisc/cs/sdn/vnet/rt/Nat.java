@@ -0,0 +1,124 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Network address and port translation for a router's outside interface.
+ * TCP and UDP packets forwarded out of that interface from other interfaces
+ * take its address as their source, and a source port chosen for the
+ * connection; packets arriving on it for a translated connection are
+ * rewritten back to the inside address and port. Other packets the router
+ * forwards out of the outside interface cannot be translated and are
+ * dropped.
+ *
+ * Connections are kept in a {@link NatTable}, and are evicted once idle for
+ * the timeouts RFC 5382 and RFC 4787 recommend for TCP and UDP. Checksums
+ * are adjusted for the rewritten fields rather than recomputed.
+ */
+public class Nat
+{
+	/** Default most connections to translate at once */
+	public static final int DEFAULT_MAX_CONNECTIONS = 1 << 18;
+
+	/** Idle time after which a TCP connection is evicted (RFC 5382) */
+	public static final long TCP_TIMEOUT = (2 * 60 + 4) * 60 * 1000L;
+
+	/** Idle time after which a UDP connection is evicted (RFC 4787) */
+	public static final long UDP_TIMEOUT = 2 * 60 * 1000L;
+
+	private Iface outsideIface;
+
+	private NatTable table;
+
+	/**
+	 * @param outsideIface interface whose address packets take as they leave
+	 */
+	public Nat(Iface outsideIface)
+	{ this(outsideIface, DEFAULT_MAX_CONNECTIONS); }
+
+	/**
+	 * @param outsideIface interface whose address packets take as they leave
+	 * @param maxConnections most connections to translate at once
+	 */
+	public Nat(Iface outsideIface, int maxConnections)
+	{
+		this.outsideIface = outsideIface;
+		this.table = new NatTable(maxConnections, TCP_TIMEOUT, UDP_TIMEOUT);
+	}
+
+	public Iface getOutsideIface()
+	{ return this.outsideIface; }
+
+	/**
+	 * @return number of connections being translated
+	 */
+	public int getConnectionCount()
+	{ return this.table.size(); }
+
+	/**
+	 * Rewrite the source of a packet leaving through the outside interface,
+	 * adding a connection if the packet starts a new one.
+	 * @param ipPacket the packet
+	 * @return true if the packet was rewritten; false if it is not a TCP or
+	 *         UDP packet with ports, or no connection could be added
+	 */
+	public boolean translateOutbound(IPv4 ipPacket)
+	{
+		int ports = ipPacket.getTransportPorts();
+		if (0 == ports)
+		{ return false; }
+
+		int outsidePort = this.table.outbound(ipPacket.getProtocol(),
+				ipPacket.getSourceAddress(), ports >>> 16,
+				ipPacket.getDestinationAddress(), ports & 0xffff,
+				System.currentTimeMillis());
+		if (outsidePort < 0)
+		{ return false; }
+		ipPacket.rewriteSource(this.outsideIface.getIpAddress(),
+				(short)outsidePort);
+		return true;
+	}
+
+	/**
+	 * Rewrite the destination of a packet that arrived on the outside
+	 * interface for a connection being translated.
+	 * @param ipPacket the packet
+	 * @return true if the packet was rewritten; false if it is not for a
+	 *         connection being translated
+	 */
+	public boolean translateInbound(IPv4 ipPacket)
+	{
+		if (ipPacket.getDestinationAddress() != this.outsideIface.getIpAddress())
+		{ return false; }
+		int ports = ipPacket.getTransportPorts();
+		if (0 == ports)
+		{ return false; }
+
+		long inside = this.table.inbound(ipPacket.getProtocol(), ports & 0xffff,
+				ipPacket.getSourceAddress(), ports >>> 16,
+				System.currentTimeMillis());
+		// Inside addresses from 128.0.0.0 up make the result negative
+		if (NatTable.NOT_FOUND == inside)
+		{ return false; }
+		ipPacket.rewriteDestination((int)((inside >>> 32) & 0xffffffffL),
+				(short)inside);
+		return true;
+	}
+
+	/**
+	 * Evict every idle connection.
+	 * @return number of connections evicted
+	 */
+	public int expire()
+	{ return this.table.expire(System.currentTimeMillis()); }
+
+	public String toString()
+	{
+		return String.format("NAT on %s (%s): %d connections",
+				this.outsideIface.getName(),
+				IPv4.fromIPv4Address(this.outsideIface.getIpAddress()),
+				this.table.size());
+	}
+}
@@ -0,0 +1,479 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * The connections a NAT translates, each mapping an inside address and port
+ * talking to a remote address and port to a port on the outside address.
+ * Connections are keyed by all of these, so one outside port serves many
+ * connections as long as they talk to different remote ports, and the table
+ * is not limited to the 64K ports of the outside address.
+ *
+ * The table is split into segments, each guarded by its own lock, chosen by
+ * the remote address and port, which packets in both directions carry; a
+ * connection and both of its indexes live in one segment. Each segment keeps
+ * its connections in primitive arrays, with open-addressed indexes from the
+ * inside and the outside key to a connection's position, so a lookup neither
+ * allocates nor follows pointers. The number of connections is bounded; idle
+ * connections are evicted a few at a time as new ones are added, and all at
+ * once when the table is full.
+ */
+class NatTable
+{
+	/** Number of segments; a power of two */
+	private static final int SEGMENTS = 16;
+
+	/** Initial number of connections a segment has room for */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Number of connections checked for idleness each time one is added */
+	private static final int SWEEP_BATCH = 4;
+
+	/** Lowest and highest outside port given to connections */
+	static final int FIRST_PORT = 1024;
+	static final int LAST_PORT = 0xffff;
+
+	/** Returned by inbound when there is no connection; since the port only
+	 *  fills the lower 16 bits, no address and port pack to this value */
+	static final long NOT_FOUND = -1L;
+
+	private final Segment[] segments;
+
+	/** Connections in all segments, and the most there may be */
+	private final AtomicInteger size;
+	private final int maxSize;
+
+	/** Idle time after which TCP and UDP connections are evicted */
+	private final long tcpTimeout;
+	private final long udpTimeout;
+
+	/**
+	 * @param maxSize most connections the table may hold
+	 * @param tcpTimeout idle time, in milliseconds, after which TCP
+	 *        connections are evicted
+	 * @param udpTimeout idle time, in milliseconds, after which UDP
+	 *        connections are evicted
+	 */
+	NatTable(int maxSize, long tcpTimeout, long udpTimeout)
+	{
+		this.maxSize = maxSize;
+		this.tcpTimeout = tcpTimeout;
+		this.udpTimeout = udpTimeout;
+		this.size = new AtomicInteger();
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+		{ this.segments[i] = new Segment(); }
+	}
+
+	/**
+	 * @return number of connections
+	 */
+	int size()
+	{ return this.size.get(); }
+
+	/**
+	 * Find the outside port of a connection from the inside, adding the
+	 * connection if it is new.
+	 * @param protocol IP protocol number
+	 * @param insideIp inside address
+	 * @param insidePort inside port
+	 * @param remoteIp remote address
+	 * @param remotePort remote port
+	 * @param now current time in milliseconds
+	 * @return the outside port; -1 if the connection is new and the table is
+	 *         full or no outside port is free
+	 */
+	int outbound(int protocol, int insideIp, int insidePort, int remoteIp,
+			int remotePort, long now)
+	{
+		Segment segment = this.segments[segment(protocol, remoteIp, remotePort)];
+		int port = segment.outbound(protocol, insideIp, insidePort, remoteIp,
+				remotePort, now);
+		if (port < 0 && this.size.get() >= this.maxSize)
+		{
+			// Make room by evicting every idle connection, then try again;
+			// segments are locked one at a time, so this is done here
+			this.expire(now);
+			port = segment.outbound(protocol, insideIp, insidePort, remoteIp,
+					remotePort, now);
+		}
+		return port;
+	}
+
+	/**
+	 * Find the inside address and port of a connection from the outside.
+	 * @param protocol IP protocol number
+	 * @param outsidePort outside port the packet is addressed to
+	 * @param remoteIp remote address
+	 * @param remotePort remote port
+	 * @param now current time in milliseconds
+	 * @return the inside address in the upper 32 bits and the inside port in
+	 *         the lower 16 bits; {@link #NOT_FOUND} if there is no such
+	 *         connection
+	 */
+	long inbound(int protocol, int outsidePort, int remoteIp, int remotePort,
+			long now)
+	{
+		return this.segments[segment(protocol, remoteIp, remotePort)].inbound(
+				protocol, outsidePort, remoteIp, remotePort, now);
+	}
+
+	/**
+	 * Evict every idle connection.
+	 * @param now current time in milliseconds
+	 * @return number of connections evicted
+	 */
+	int expire(long now)
+	{
+		int evicted = 0;
+		for (Segment segment : this.segments)
+		{ evicted += segment.expire(now); }
+		return evicted;
+	}
+
+	private static int segment(int protocol, int remoteIp, int remotePort)
+	{ return mix(remoteIp * 31 + (remotePort << 8) + protocol) & (SEGMENTS - 1); }
+
+	private static int mix(int hash)
+	{
+		// MurmurHash3 finalizer
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	private static int insideHash(int protocol, int insideIp, int insidePort,
+			int remoteIp, int remotePort)
+	{
+		return mix(((insideIp * 31 + insidePort) * 31 + remoteIp) * 31
+				+ ((remotePort << 8) | protocol));
+	}
+
+	private static int outsideHash(int protocol, int outsidePort, int remoteIp,
+			int remotePort)
+	{ return mix((remoteIp * 31 + outsidePort) * 31 + ((remotePort << 8) | protocol)); }
+
+	/**
+	 * A share of the connections, and the indexes to them.
+	 */
+	private class Segment
+	{
+		/** Connection fields, by position */
+		private int[] insideIps;
+		private int[] remoteIps;
+		/** Inside port in the upper 16 bits, remote port in the lower */
+		private int[] ports;
+		private char[] outsidePorts;
+		private byte[] protocols;
+		private long[] lastUsed;
+
+		/** Positions ever used, and unused positions below that */
+		private int used;
+		private int[] free;
+		private int freeCount;
+
+		/** Open-addressed indexes holding a connection's position plus one;
+		 *  0 marks an empty slot */
+		private int[] insideIndex;
+		private int[] outsideIndex;
+
+		/** Next outside port to try, and next position to check for idleness */
+		private int nextPort;
+		private int sweepPosition;
+
+		Segment()
+		{
+			this.allocate(INITIAL_CAPACITY);
+			this.nextPort = FIRST_PORT;
+		}
+
+		private void allocate(int capacity)
+		{
+			this.insideIps = new int[capacity];
+			this.remoteIps = new int[capacity];
+			this.ports = new int[capacity];
+			this.outsidePorts = new char[capacity];
+			this.protocols = new byte[capacity];
+			this.lastUsed = new long[capacity];
+			this.free = new int[capacity];
+			this.insideIndex = new int[capacity * 2];
+			this.outsideIndex = new int[capacity * 2];
+		}
+
+		synchronized int outbound(int protocol, int insideIp, int insidePort,
+				int remoteIp, int remotePort, long now)
+		{
+			int position = this.findInside(protocol, insideIp, insidePort,
+					remoteIp, remotePort);
+			if (position >= 0)
+			{
+				this.lastUsed[position] = now;
+				return this.outsidePorts[position];
+			}
+
+			this.sweep(SWEEP_BATCH, now);
+			if (!reserve())
+			{ return -1; }
+
+			int outsidePort = this.choosePort(protocol, insidePort, remoteIp,
+					remotePort);
+			if (outsidePort < 0)
+			{
+				size.decrementAndGet();
+				return -1;
+			}
+			this.add(protocol, insideIp, insidePort, remoteIp, remotePort,
+					outsidePort, now);
+			return outsidePort;
+		}
+
+		synchronized long inbound(int protocol, int outsidePort, int remoteIp,
+				int remotePort, long now)
+		{
+			int position = this.findOutside(protocol, outsidePort, remoteIp,
+					remotePort);
+			if (position < 0)
+			{ return NOT_FOUND; }
+			this.lastUsed[position] = now;
+			return ((this.insideIps[position] & 0xffffffffL) << 32)
+					| (this.ports[position] >>> 16);
+		}
+
+		synchronized int expire(long now)
+		{ return this.sweep(this.used, now); }
+
+		/**
+		 * Count a connection against the table's bound.
+		 * @return true if there was room for it
+		 */
+		private boolean reserve()
+		{
+			int current;
+			do
+			{
+				current = size.get();
+				if (current >= maxSize)
+				{ return false; }
+			}
+			while (!size.compareAndSet(current, current + 1));
+			return true;
+		}
+
+		/**
+		 * Choose an outside port no connection with the same remote address
+		 * and port uses, keeping the inside port where possible.
+		 * @return the port; -1 if every port is in use
+		 */
+		private int choosePort(int protocol, int insidePort, int remoteIp,
+				int remotePort)
+		{
+			if (insidePort >= FIRST_PORT && this.findOutside(protocol,
+					insidePort, remoteIp, remotePort) < 0)
+			{ return insidePort; }
+
+			for (int tries = LAST_PORT - FIRST_PORT + 1; tries > 0; tries--)
+			{
+				int port = this.nextPort;
+				this.nextPort = (LAST_PORT == port) ? FIRST_PORT : port + 1;
+				if (this.findOutside(protocol, port, remoteIp, remotePort) < 0)
+				{ return port; }
+			}
+			return -1;
+		}
+
+		private void add(int protocol, int insideIp, int insidePort,
+				int remoteIp, int remotePort, int outsidePort, long now)
+		{
+			int position;
+			if (this.freeCount > 0)
+			{ position = this.free[--this.freeCount]; }
+			else
+			{
+				if (this.used == this.insideIps.length)
+				{ this.grow(); }
+				position = this.used++;
+			}
+
+			this.insideIps[position] = insideIp;
+			this.remoteIps[position] = remoteIp;
+			this.ports[position] = (insidePort << 16) | remotePort;
+			this.outsidePorts[position] = (char)outsidePort;
+			this.protocols[position] = (byte)protocol;
+			this.lastUsed[position] = now;
+			this.insert(this.insideIndex, this.insideHash(position), position);
+			this.insert(this.outsideIndex, this.outsideHash(position), position);
+		}
+
+		/**
+		 * Double the room for connections and rebuild the indexes.
+		 */
+		private void grow()
+		{
+			int[] insideIps = this.insideIps;
+			int[] remoteIps = this.remoteIps;
+			int[] ports = this.ports;
+			char[] outsidePorts = this.outsidePorts;
+			byte[] protocols = this.protocols;
+			long[] lastUsed = this.lastUsed;
+			int[] free = this.free;
+			int capacity = insideIps.length;
+
+			this.allocate(capacity * 2);
+			System.arraycopy(insideIps, 0, this.insideIps, 0, capacity);
+			System.arraycopy(remoteIps, 0, this.remoteIps, 0, capacity);
+			System.arraycopy(ports, 0, this.ports, 0, capacity);
+			System.arraycopy(outsidePorts, 0, this.outsidePorts, 0, capacity);
+			System.arraycopy(protocols, 0, this.protocols, 0, capacity);
+			System.arraycopy(lastUsed, 0, this.lastUsed, 0, capacity);
+			System.arraycopy(free, 0, this.free, 0, this.freeCount);
+
+			// Free positions are marked by a zero protocol
+			for (int position = 0; position < this.used; position++)
+			{
+				if (this.protocols[position] != 0)
+				{
+					this.insert(this.insideIndex, this.insideHash(position), position);
+					this.insert(this.outsideIndex, this.outsideHash(position), position);
+				}
+			}
+		}
+
+		/**
+		 * Evict idle connections among the next positions.
+		 * @param count number of positions to check
+		 * @return number of connections evicted
+		 */
+		private int sweep(int count, long now)
+		{
+			int evicted = 0;
+			for (int i = 0; i < count && this.used > 0; i++)
+			{
+				if (this.sweepPosition >= this.used)
+				{ this.sweepPosition = 0; }
+				int position = this.sweepPosition++;
+				int protocol = this.protocols[position];
+				if (0 == protocol)
+				{ continue; }
+				long timeout = (IPv4.PROTOCOL_TCP == protocol) ? tcpTimeout : udpTimeout;
+				if (now - this.lastUsed[position] >= timeout)
+				{
+					this.remove(position);
+					evicted++;
+				}
+			}
+			return evicted;
+		}
+
+		private void remove(int position)
+		{
+			this.delete(this.insideIndex, this.insideHash(position), position);
+			this.delete(this.outsideIndex, this.outsideHash(position), position);
+			this.protocols[position] = 0;
+			this.free[this.freeCount++] = position;
+			size.decrementAndGet();
+		}
+
+		private int insideHash(int position)
+		{
+			return NatTable.insideHash(this.protocols[position],
+					this.insideIps[position], this.ports[position] >>> 16,
+					this.remoteIps[position], this.ports[position] & 0xffff);
+		}
+
+		private int outsideHash(int position)
+		{
+			return NatTable.outsideHash(this.protocols[position],
+					this.outsidePorts[position], this.remoteIps[position],
+					this.ports[position] & 0xffff);
+		}
+
+		/**
+		 * @return position of a connection; -1 if there is none
+		 */
+		private int findInside(int protocol, int insideIp, int insidePort,
+				int remoteIp, int remotePort)
+		{
+			int[] index = this.insideIndex;
+			int mask = index.length - 1;
+			int portKey = (insidePort << 16) | remotePort;
+			int slot = NatTable.insideHash(protocol, insideIp, insidePort,
+					remoteIp, remotePort) & mask;
+			while (index[slot] != 0)
+			{
+				int position = index[slot] - 1;
+				if (this.insideIps[position] == insideIp
+						&& this.remoteIps[position] == remoteIp
+						&& this.ports[position] == portKey
+						&& this.protocols[position] == (byte)protocol)
+				{ return position; }
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return position of a connection; -1 if there is none
+		 */
+		private int findOutside(int protocol, int outsidePort, int remoteIp,
+				int remotePort)
+		{
+			int[] index = this.outsideIndex;
+			int mask = index.length - 1;
+			int slot = NatTable.outsideHash(protocol, outsidePort, remoteIp,
+					remotePort) & mask;
+			while (index[slot] != 0)
+			{
+				int position = index[slot] - 1;
+				if (this.outsidePorts[position] == outsidePort
+						&& this.remoteIps[position] == remoteIp
+						&& (this.ports[position] & 0xffff) == remotePort
+						&& this.protocols[position] == (byte)protocol)
+				{ return position; }
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		private void insert(int[] index, int hash, int position)
+		{
+			int mask = index.length - 1;
+			int slot = hash & mask;
+			while (index[slot] != 0)
+			{ slot = (slot + 1) & mask; }
+			index[slot] = position + 1;
+		}
+
+		/**
+		 * Remove a position from an index, shifting back later entries of the
+		 * same probe sequence so no tombstones are needed.
+		 */
+		private void delete(int[] index, int hash, int position)
+		{
+			int mask = index.length - 1;
+			int hole = hash & mask;
+			while (index[hole] != position + 1)
+			{ hole = (hole + 1) & mask; }
+
+			boolean inside = (index == this.insideIndex);
+			for (int slot = (hole + 1) & mask; index[slot] != 0;
+					slot = (slot + 1) & mask)
+			{
+				int other = index[slot] - 1;
+				int home = (inside ? this.insideHash(other)
+						: this.outsideHash(other)) & mask;
+				// Move the entry if the hole lies between its home and its slot
+				if (((slot - home) & mask) >= ((slot - hole) & mask))
+				{
+					index[hole] = index[slot];
+					hole = slot;
+				}
+			}
+			index[hole] = 0;
+		}
+	}
+}
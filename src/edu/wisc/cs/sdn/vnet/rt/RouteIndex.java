@@ -0,0 +1,172 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+
+/**
+ * An immutable index over the entries of a route table that answers the
+ * same question as a scan of the entries: which entry's destination shares
+ * the most leading bytes with an address, preferring the earliest entry
+ * when several share as many. Entries are hashed by each of their 1- to
+ * 4-byte destination prefixes, so a lookup probes at most four open-addressed
+ * tables and never allocates. Entries with the same destination and mask
+ * form an equal-cost set, and a lookup picks one of the set by a flow hash.
+ */
+class RouteIndex
+{
+	/** Entries in table order */
+	private final RouteEntry[] entries;
+
+	/** For each prefix length in bytes, less one, a table of entry indexes
+	 *  plus one; 0 marks an empty slot */
+	private final int[][] slots;
+
+	/** For each prefix length in bytes, less one, the table size less one */
+	private final int[] masks;
+	
+	/** For the first entry of each destination and mask shared by several
+	 *  entries, those entries in table order; null if no entries share a 
+	 *  destination and mask */
+	private final RouteEntry[][] groups;
+
+	/**
+	 * Index the entries of a route table.
+	 * @param entries the entries, in table order
+	 */
+	RouteIndex(List<RouteEntry> entries)
+	{
+		this.entries = entries.toArray(new RouteEntry[entries.size()]);
+		this.slots = new int[4][];
+		this.masks = new int[4];
+		for (int bytes = 1; bytes <= 4; bytes++)
+		{
+			// Keep the tables at most half full
+			int distinct = (bytes < 4) ? Math.min(this.entries.length, 1 << (8 * bytes))
+					: this.entries.length;
+			int size = Integer.highestOneBit(Math.max(distinct, 1) * 2 - 1) * 2;
+			this.slots[bytes - 1] = new int[size];
+			this.masks[bytes - 1] = size - 1;
+		}
+
+		for (int i = 0; i < this.entries.length; i++)
+		{
+			int dstIp = this.entries[i].getDestinationAddress();
+			for (int bytes = 1; bytes <= 4; bytes++)
+			{
+				int slot = this.probe(bytes, prefix(dstIp, bytes));
+				if (0 == this.slots[bytes - 1][slot])
+				{ this.slots[bytes - 1][slot] = i + 1; }
+			}
+		}
+		this.groups = groupEqualCost(this.entries);
+	}
+	
+	/**
+	 * Find the entries that share a destination and mask with another.
+	 * @return for the first entry of each such set, the set; null if there
+	 *         are none
+	 */
+	private static RouteEntry[][] groupEqualCost(RouteEntry[] entries)
+	{
+		// Chain entries with the same destination and mask, in table order
+		int size = Integer.highestOneBit(Math.max(entries.length, 1) * 2 - 1) * 2;
+		int mask = size - 1;
+		int[] first = new int[size];
+		int[] last = new int[size];
+		int[] next = new int[entries.length];
+		boolean shared = false;
+		for (int i = 0; i < entries.length; i++)
+		{
+			int dstIp = entries[i].getDestinationAddress();
+			int maskIp = entries[i].getMaskAddress();
+			int hash = (dstIp * 31 + maskIp) * 0x9e3779b9;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (first[slot] != 0
+					&& (entries[first[slot] - 1].getDestinationAddress() != dstIp
+					|| entries[first[slot] - 1].getMaskAddress() != maskIp))
+			{ slot = (slot + 1) & mask; }
+			if (0 == first[slot])
+			{ first[slot] = i + 1; }
+			else
+			{
+				next[last[slot] - 1] = i + 1;
+				shared = true;
+			}
+			last[slot] = i + 1;
+		}
+		if (!shared)
+		{ return null; }
+		
+		RouteEntry[][] groups = new RouteEntry[entries.length][];
+		for (int slot = 0; slot < size; slot++)
+		{
+			if (0 == first[slot] || first[slot] == last[slot])
+			{ continue; }
+			int count = 0;
+			for (int i = first[slot]; i != 0; i = next[i - 1])
+			{ count++; }
+			RouteEntry[] group = new RouteEntry[count];
+			count = 0;
+			for (int i = first[slot]; i != 0; i = next[i - 1])
+			{ group[count++] = entries[i - 1]; }
+			groups[first[slot] - 1] = group;
+		}
+		return groups;
+	}
+
+	/**
+	 * @return the leading bytes of an address
+	 */
+	private static int prefix(int ip, int bytes)
+	{ return ip >>> (32 - 8 * bytes); }
+
+	/**
+	 * @return the slot holding the entry with a prefix, or the empty slot
+	 *         where it belongs
+	 */
+	private int probe(int bytes, int key)
+	{
+		int[] table = this.slots[bytes - 1];
+		int mask = this.masks[bytes - 1];
+		int hash = key * 0x9e3779b9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (table[slot] != 0
+				&& prefix(this.entries[table[slot] - 1].getDestinationAddress(),
+						bytes) != key)
+		{ slot = (slot + 1) & mask; }
+		return slot;
+	}
+
+	/**
+	 * @return number of entries indexed
+	 */
+	int size()
+	{ return this.entries.length; }
+
+	/**
+	 * Find the entry whose destination shares the most leading bytes with
+	 * an address. If other entries have the same destination and mask, 
+	 * choose among them by a flow hash.
+	 * @param ip IP address
+	 * @param flowHash hash of the packet's flow
+	 * @return the matching entry; null if no destination shares even the
+	 *         first byte, or the address is 0
+	 */
+	RouteEntry lookup(int ip, int flowHash)
+	{
+		if (0 == ip)
+		{ return null; }
+		for (int bytes = 4; bytes >= 1; bytes--)
+		{
+			int index = this.slots[bytes - 1][this.probe(bytes, prefix(ip, bytes))];
+			if (index != 0)
+			{
+				RouteEntry[] group = (null == this.groups) ? null 
+						: this.groups[index - 1];
+				if (null == group)
+				{ return this.entries[index - 1]; }
+				return group[(flowHash & 0x7fffffff) % group.length];
+			}
+		}
+		return null;
+	}
+}
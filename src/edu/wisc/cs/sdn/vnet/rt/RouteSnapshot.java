@@ -0,0 +1,257 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A binary snapshot of a route table, which loads without parsing text by
+ * memory-mapping the file. All integers are big-endian:
+ * <pre>
+ *   int    magic ("VRT1")
+ *   int    version
+ *   int    number of routes
+ *   int    number of interfaces
+ *   byte[16] per interface: its name, padded with zeros
+ *   int[4] per route, sorted by destination and then mask: destination,
+ *          mask, gateway, index of the interface
+ *   int    CRC32 of all preceding bytes
+ * </pre>
+ * Routes are sorted, so where several routes match a destination equally
+ * well, the one with the lowest destination is used rather than the first
+ * in the text file the snapshot was made from.
+ */
+public class RouteSnapshot
+{
+	public static final int MAGIC = 0x56525431;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 * 4;
+	private static final int NAME_SIZE = 16;
+	private static final int ROUTE_SIZE = 4 * 4;
+	private static final int CHECKSUM_SIZE = 4;
+
+	/**
+	 * @param filename name of a file
+	 * @return true if the file starts with the snapshot magic number
+	 */
+	public static boolean isSnapshot(String filename)
+	{
+		try (DataInputStream in = new DataInputStream(
+				new FileInputStream(filename)))
+		{ return (MAGIC == in.readInt()); }
+		catch (IOException e)
+		{ return false; }
+	}
+
+	/**
+	 * Write a snapshot of routes.
+	 * @param filename name of the file to write
+	 * @param routes the routes; they are written sorted
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public static boolean write(String filename, List<RouteEntry> routes)
+	{
+		List<RouteEntry> sorted = new ArrayList<RouteEntry>(routes);
+		sorted.sort(Comparator
+				.comparingLong((RouteEntry r) -> r.getDestinationAddress() & 0xffffffffL)
+				.thenComparingLong(r -> r.getMaskAddress() & 0xffffffffL));
+
+		Map<String,Integer> ifaceIndexes = new LinkedHashMap<String,Integer>();
+		for (RouteEntry route : sorted)
+		{
+			String name = route.getInterface().getName();
+			if (name.length() > NAME_SIZE)
+			{
+				System.err.println("Interface name too long for snapshot: " + name);
+				return false;
+			}
+			if (!ifaceIndexes.containsKey(name))
+			{ ifaceIndexes.put(name, ifaceIndexes.size()); }
+		}
+
+		CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(filename)), crc)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(sorted.size());
+			out.writeInt(ifaceIndexes.size());
+			for (String name : ifaceIndexes.keySet())
+			{
+				byte[] padded = new byte[NAME_SIZE];
+				byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+				System.arraycopy(bytes, 0, padded, 0, bytes.length);
+				out.write(padded);
+			}
+			for (RouteEntry route : sorted)
+			{
+				out.writeInt(route.getDestinationAddress());
+				out.writeInt(route.getMaskAddress());
+				out.writeInt(route.getGatewayAddress());
+				out.writeInt(ifaceIndexes.get(route.getInterface().getName()));
+			}
+			out.flush();
+			out.writeInt((int)crc.getValue());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to write route snapshot: " + e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the routes in a snapshot.
+	 * @param filename name of the snapshot file
+	 * @param router router whose interfaces the routes use
+	 * @return the routes, sorted; null if the file could not be read, is not
+	 *         a valid snapshot, or names an interface the router lacks
+	 */
+	static List<RouteEntry> read(String filename, Router router)
+	{
+		MappedByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size < HEADER_SIZE + CHECKSUM_SIZE || size > Integer.MAX_VALUE)
+			{
+				System.err.println("Invalid route snapshot size " + size);
+				return null;
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+		{
+			System.err.println("Not a version " + VERSION + " route snapshot: "
+					+ filename);
+			return null;
+		}
+		int routeCount = buf.getInt(8);
+		int ifaceCount = buf.getInt(12);
+		long expectedSize = HEADER_SIZE + (long)ifaceCount * NAME_SIZE
+				+ (long)routeCount * ROUTE_SIZE + CHECKSUM_SIZE;
+		if (routeCount < 0 || ifaceCount < 0 || expectedSize != buf.capacity())
+		{
+			System.err.println("Truncated route snapshot: " + filename);
+			return null;
+		}
+
+		ByteBuffer body = buf.duplicate();
+		body.position(0);
+		body.limit(buf.capacity() - CHECKSUM_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int)crc.getValue() != buf.getInt(buf.capacity() - CHECKSUM_SIZE))
+		{
+			System.err.println("Route snapshot checksum mismatch: " + filename);
+			return null;
+		}
+
+		// Resolve interface names
+		Iface[] ifaces = new Iface[ifaceCount];
+		byte[] nameBytes = new byte[NAME_SIZE];
+		for (int i = 0; i < ifaceCount; i++)
+		{
+			buf.position(HEADER_SIZE + i * NAME_SIZE);
+			buf.get(nameBytes);
+			int length = 0;
+			while (length < NAME_SIZE && nameBytes[length] != 0)
+			{ length++; }
+			String name = new String(nameBytes, 0, length,
+					StandardCharsets.US_ASCII);
+			ifaces[i] = router.getInterface(name);
+			if (null == ifaces[i])
+			{
+				System.err.println("Error loading route snapshot, invalid interface "
+						+ name);
+				return null;
+			}
+		}
+
+		List<RouteEntry> routes = new ArrayList<RouteEntry>(routeCount);
+		int offset = HEADER_SIZE + ifaceCount * NAME_SIZE;
+		for (int i = 0; i < routeCount; i++, offset += ROUTE_SIZE)
+		{
+			int ifaceIndex = buf.getInt(offset + 12);
+			if (ifaceIndex < 0 || ifaceIndex >= ifaceCount)
+			{
+				System.err.println("Invalid interface index in route snapshot");
+				return null;
+			}
+			routes.add(new RouteEntry(buf.getInt(offset), buf.getInt(offset + 8),
+					buf.getInt(offset + 4), ifaces[ifaceIndex]));
+		}
+		return routes;
+	}
+
+	/**
+	 * Convert a text route table file to a snapshot.
+	 */
+	public static void main(String[] args)
+	{
+		String textFile = null;
+		String snapshotFile = null;
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				showHelp();
+				return;
+			}
+			else if (arg.equals("-i"))
+			{ textFile = args[++i]; }
+			else if (arg.equals("-o"))
+			{ snapshotFile = args[++i]; }
+		}
+		if (null == textFile || null == snapshotFile)
+		{
+			showHelp();
+			System.exit(1);
+		}
+
+		long start = System.nanoTime();
+		List<RouteEntry> routes = TableParser.readRoutes(textFile, null);
+		if (null == routes)
+		{ System.exit(1); }
+		if (!write(snapshotFile, routes))
+		{ System.exit(1); }
+		System.out.println(String.format("Wrote %d routes to %s in %.1f ms",
+				routes.size(), snapshotFile, (System.nanoTime() - start) / 1e6));
+	}
+
+	static void showHelp()
+	{
+		System.out.println("Route Table Snapshot Converter");
+		System.out.println("Usage: RouteSnapshot -i rtable_file -o snapshot_file [-h]");
+		System.out.println("Routers load a snapshot wherever a route table file is accepted");
+	}
+}
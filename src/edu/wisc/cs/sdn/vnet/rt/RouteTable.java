@@ -1,17 +1,14 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import net.floodlightcontroller.packet.IPv4;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.jfr.RouteLookupEvent;
 
 /**
  * Route table for a router.
@@ -22,11 +19,15 @@ public class RouteTable
 	/** Entries in the route table */
 	private List<RouteEntry> entries; 
 	
+	/** Index used for lookups; rebuilt from the entries by the first lookup
+	 *  after they change, and null until then */
+	private volatile RouteIndex index;
+	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this.entries = new ArrayList<RouteEntry>(); }
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -34,160 +35,158 @@ public class RouteTable
 	 * @return the matching route entry, null if none exists
 	 */
 	public RouteEntry lookup(int ip)
+	{ return this.lookup(ip, 0); }
+	
+	/**
+	 * Lookup the route entry that matches a given IP address. Where several
+	 * entries have the destination and mask that match best, they are equal
+	 * cost paths, and one is chosen by a hash of the packet's flow so every
+	 * packet of a flow takes the same path.
+	 * @param ip IP address
+	 * @param flowHash hash of the packet's flow, e.g., from 
+	 *        {@link IPv4#flowHash()}
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip, int flowHash)
 	{
-		synchronized(this.entries)
+		RouteLookupEvent event = new RouteLookupEvent();
+		event.begin();
+		RouteEntry match = this.findMatch(ip, flowHash);
+		event.end();
+		if (event.shouldCommit())
 		{
-			
-			// Initialize
-			int max_match = 0;
-			RouteEntry matching_ip = null;
-			int dst_ip = 0;
-			int[] dst_ip_bytes = new int[4];
-
-			// Check if the route table is empty
-			if (this.entries.isEmpty())
-			{ return null; }
-
-			// Check if the IP address is 0
-			if (ip == 0)
-			{ return null; }
-
-			// Break up the IP address into 4 bytes
-			int[] ip_bytes = new int[4];
-			ip_bytes[0] = (ip >> 24) & 0xFF;
-			ip_bytes[1] = (ip >> 16) & 0xFF;
-			ip_bytes[2] = (ip >> 8) & 0xFF;
-			ip_bytes[3] = ip & 0xFF;	
-
-			// Iterate through the route table
-			for (RouteEntry entry : this.entries)
+			event.destination = IPv4.fromIPv4Address(ip);
+			event.matched = (match != null);
+			if (match != null)
 			{
-				
-				// Get the destination IP
-				dst_ip = entry.getDestinationAddress();
-
-				// Break up the destination IP address into 4 bytes
-				dst_ip_bytes[0] = (int) ((dst_ip >> 24) & 0xFF);
-				dst_ip_bytes[1] = (int) ((dst_ip >> 16) & 0xFF);
-				dst_ip_bytes[2] = (int) ((dst_ip >> 8)  & 0xFF);
-				dst_ip_bytes[3] = (int) ( dst_ip        & 0xFF);
-				
-				// Loop over bytes and compare to determine if they match
-				for (int i = 0; i < 4; i++)
+				event.route = IPv4.fromIPv4Address(match.getDestinationAddress());
+				event.iface = match.getInterface().getName();
+			}
+			event.routes = this.entries.size();
+			event.commit();
+		}
+		return match;
+	}
+	
+	/**
+	 * Find the entry whose destination shares the most leading bytes with
+	 * the IP address; among equally good entries, the first in the table,
+	 * or for entries with the same destination and mask, one chosen by the
+	 * flow hash.
+	 */
+	private RouteEntry findMatch(int ip, int flowHash)
+	{
+		RouteIndex index = this.index;
+		if (null == index)
+		{
+			synchronized(this.entries)
+			{
+				index = this.index;
+				if (null == index)
 				{
-					if (ip_bytes[i] == dst_ip_bytes[i])
-					{
-						// Check if the prefix match is longer than the current max
-						if (i >= max_match)
-						{
-							max_match = i+1;
-							matching_ip = entry;
-						}
-					}
-					else
-					{break;}
-
-					// If full match then return
-					if (max_match == 4)
-					{return matching_ip;}
+					index = new RouteIndex(this.entries);
+					this.index = index;
 				}
 			}
-
-			// Return the best matching IP
-			return matching_ip;
-			
 		}
+		return index.lookup(ip, flowHash);
 	}
 	
 	/**
-	 * Populate the route table from a file.
+	 * Populate the route table from a file, either a text file with one 
+	 * route per line or a snapshot written by {@link RouteSnapshot}.
 	 * @param filename name of the file containing the static route table
 	 * @param router the route table is associated with
 	 * @return true if route table was successfully loaded, otherwise false
 	 */
 	public boolean load(String filename, Router router)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
-		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
+		List<RouteEntry> loaded;
+		if (RouteSnapshot.isSnapshot(filename))
+		{ loaded = RouteSnapshot.read(filename, router); }
+		else
+		{ loaded = TableParser.readRoutes(filename, router); }
+		if (null == loaded)
+		{ return false; }
+		
+		synchronized(this.entries)
 		{
-			System.err.println(e.toString());
-			return false;
+			this.entries.addAll(loaded);
+			this.index = new RouteIndex(this.entries);
 		}
+		return true;
+	}
+	
+	/**
+	 * Replace the routes in the route table with those in a file. Entries
+	 * whose destination, mask, gateway and interface are unchanged are kept;
+	 * the new table and its index are published in one step, so lookups
+	 * neither wait nor see a partly replaced table. If the file cannot be
+	 * read the route table is left as it is.
+	 * @param filename name of the file containing the static route table
+	 * @param router the route table is associated with
+	 * @return a summary of what changed; null if the file could not be 
+	 *         loaded
+	 */
+	public String reload(String filename, Router router)
+	{
+		List<RouteEntry> loaded;
+		if (RouteSnapshot.isSnapshot(filename))
+		{ loaded = RouteSnapshot.read(filename, router); }
+		else
+		{ loaded = TableParser.readRoutes(filename, router); }
+		if (null == loaded)
+		{ return null; }
 		
-		while (true)
+		int added = 0;
+		int changed = 0;
+		int removed;
+		synchronized(this.entries)
 		{
-			// Read a route entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-			
-			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-					"%s\\s+%s\\s+%s\\s+%s", 
-					ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
-			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == dstIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
-			
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
-			if (0 == maskIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+			Map<Long,RouteEntry> current = new HashMap<Long,RouteEntry>();
+			for (RouteEntry entry : this.entries)
+			{ current.putIfAbsent(key(entry), entry); }
 			
-			String ifaceName = matcher.group(4).trim();
-			Iface iface = router.getInterface(ifaceName);
-			if (null == iface)
+			List<RouteEntry> replacement = new ArrayList<RouteEntry>(loaded.size());
+			for (RouteEntry entry : loaded)
 			{
-				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				RouteEntry old = current.remove(key(entry));
+				if (null == old)
+				{ added++; }
+				else if (old.getGatewayAddress() == entry.getGatewayAddress()
+						&& old.getInterface() == entry.getInterface())
+				{ entry = old; }
+				else
+				{ changed++; }
+				replacement.add(entry);
 			}
+			removed = current.size();
 			
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			RouteIndex index = new RouteIndex(replacement);
+			this.entries.clear();
+			this.entries.addAll(replacement);
+			this.index = index;
 		}
+		return String.format("%d routes: %d added, %d removed, %d changed",
+				loaded.size(), added, removed, changed);
+	}
 	
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
-		return true;
+	/**
+	 * @return the destination and mask of an entry, in one value
+	 */
+	private static long key(RouteEntry entry)
+	{
+		return ((long)entry.getDestinationAddress() << 32)
+				| (entry.getMaskAddress() & 0xffffffffL);
+	}
+	
+	/**
+	 * @return a copy of the entries in the route table, in table order
+	 */
+	public List<RouteEntry> getEntries()
+	{
+		synchronized(this.entries)
+		{ return new ArrayList<RouteEntry>(this.entries); }
 	}
 	
 	/**
@@ -204,6 +203,7 @@ public class RouteTable
 		synchronized(this.entries)
 		{ 
 			this.entries.add(entry);
+			this.index = null;
 		}
 	}
 	
@@ -220,6 +220,7 @@ public class RouteTable
 			RouteEntry entry = this.find(dstIp, maskIp);
 			if (null == entry) { return false; }
 			this.entries.remove(entry);
+			this.index = null;
 		}
 		return true;
 	}
@@ -271,10 +272,11 @@ public class RouteTable
 			if (0 == this.entries.size())
 			{ return " WARNING: route table empty"; }
 			
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
+			StringBuilder result = new StringBuilder(
+					"Destination\tGateway\t\tMask\t\tIface\n");
 			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
+			{ result.append(entry.toString()).append("\n"); }
+			return result.toString();
 		}
 	}
 }
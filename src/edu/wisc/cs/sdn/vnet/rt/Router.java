@@ -1,12 +1,22 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DropReason;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.LatencyStage;
+import edu.wisc.cs.sdn.vnet.jfr.RipBroadcastEvent;
+import edu.wisc.cs.sdn.vnet.jfr.RipTableChangeEvent;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
+import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 import net.floodlightcontroller.packet.UDP;
@@ -17,10 +27,20 @@ public class Router extends Device
 {	
 	private RouteTable forwardingTable;
 	private ArpCache addressTable;
+	private AccessList accessList;
+	/** Translation for the outside interface; null if NAT is not enabled */
+	private Nat nat;
+	/** Limits the ICMP messages the router sends */
+	private IcmpRateLimiter icmpLimiter;
 
 	private boolean ripEnabled = false;
 	private RIPv2 ripDatabase;
 	private long ripLastUpdateTimestamp;
+	/** Equal-cost alternatives to RIP routes, learned from other neighbors
+	 *  than the route's next hop; keyed by network address. Arrays are
+	 *  replaced, not modified, while holding the map's lock. */
+	private Map<Integer,RIPv2Entry[]> ripAlternates = 
+			new ConcurrentHashMap<Integer,RIPv2Entry[]>();
 	private IPv4 cachedIpPacket;
 	private Ethernet cachedEthernetFrame;
 	private Iface cachedInterface;
@@ -29,13 +49,38 @@ public class Router extends Device
 	{
 		super(hostname, packetLog);
 		this.forwardingTable = new RouteTable();
+		this.accessList = new AccessList();
 		this.addressTable = new ArpCache();
+		this.icmpLimiter = new IcmpRateLimiter();
 	}
 	
 	public RouteTable getRouteTable()
 	{ 
 		return this.forwardingTable; 
 	}
+
+	public AccessList getAccessList()
+	{
+		return this.accessList;
+	}
+
+	/**
+	 * @return NAT for the outside interface; null if NAT is not enabled
+	 */
+	public Nat getNat()
+	{
+		return this.nat;
+	}
+
+	public ArpCache getArpCache()
+	{ 
+		return this.addressTable; 
+	}
+
+	public RIPv2 getRipTable()
+	{ 
+		return this.ripDatabase; 
+	}
 	
 	public void loadRouteTable(String configFile)
 	{
@@ -91,13 +136,104 @@ public class Router extends Device
 		System.out.println("----------------------------------");
 	}
 
+	public void loadAccessList(String aclFile)
+	{
+		if (!this.accessList.load(aclFile))
+		{
+			System.err.println("Failed to initialize access list from " + aclFile);
+			System.exit(1);
+		}
+		
+		System.out.println("Access list loaded successfully");
+		System.out.println("----------------------------------");
+		System.out.print(this.accessList.toString());
+		System.out.println("----------------------------------");
+	}
+
+	/**
+	 * Translate addresses and ports of packets forwarded out of an 
+	 * interface to that interface's address.
+	 * @param ifaceName name of the outside interface
+	 * @return true if NAT was enabled, otherwise false
+	 */
+	public boolean enableNat(String ifaceName)
+	{
+		Iface outsideIface = this.getInterface(ifaceName);
+		if (null == outsideIface)
+		{
+			System.err.println("Failed to enable NAT, invalid interface " + ifaceName);
+			return false;
+		}
+		this.nat = new Nat(outsideIface);
+		System.out.println(this.nat.toString());
+		return true;
+	}
+
+	/**
+	 * Replace the access list rules with those in a file, keeping the 
+	 * current rules if the file cannot be loaded.
+	 * @param aclFile name of the access list file
+	 * @return true if the rules were replaced, otherwise false
+	 */
+	public boolean reloadAccessList(String aclFile)
+	{
+		if (!this.accessList.load(aclFile))
+		{
+			System.err.println("Kept the current access list; failed to reload "
+					+ aclFile);
+			return false;
+		}
+		System.out.println("Access list reloaded");
+		return true;
+	}
+
+	/**
+	 * Replace the static route table with the routes in a file, keeping 
+	 * the current table if the file cannot be loaded.
+	 * @param configFile name of the route table file
+	 * @return true if the route table was replaced, otherwise false
+	 */
+	public boolean reloadRouteTable(String configFile)
+	{
+		String summary = this.forwardingTable.reload(configFile, this);
+		if (null == summary)
+		{
+			System.err.println("Kept the current route table; failed to reload " 
+					+ configFile);
+			return false;
+		}
+		System.out.println("Static route table reloaded: " + summary);
+		return true;
+	}
+
+	/**
+	 * Replace the static ARP cache with the entries in a file, keeping the
+	 * current cache if the file cannot be loaded.
+	 * @param cacheFile name of the ARP cache file
+	 * @return true if the ARP cache was replaced, otherwise false
+	 */
+	public boolean reloadArpCache(String cacheFile)
+	{
+		String summary = this.addressTable.reload(cacheFile);
+		if (null == summary)
+		{
+			System.err.println("Kept the current ARP cache; failed to reload " 
+					+ cacheFile);
+			return false;
+		}
+		System.out.println("Static ARP cache reloaded: " + summary);
+		return true;
+	}
+
 	public void handlePacket(Ethernet etherPacket, Iface incomingIface)
 	{
-		System.out.println("→ Received: " + etherPacket.toString().replace("\n", "\n\t"));
+		if (this.isTracing()) {
+			this.trace("→ Received: " + etherPacket.toString().replace("\n", "\n\t"));
+		}
 		
 		// Only handle IPv4 packets
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4) {
-			System.out.println("Dropped: Not an IPv4 packet");
+			this.countDrop(DropReason.NOT_IPV4);
 			return;
 		}
 
@@ -105,15 +241,17 @@ public class Router extends Device
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 
 		// Validate checksum
-		if (!validateChecksum(ipPacket)) {
-			System.out.println("Dropped: Invalid checksum");
+		long stageStart = System.nanoTime();
+		boolean validChecksum = validateChecksum(ipPacket);
+		long checksumNanos = System.nanoTime() - stageStart;
+		if (!validChecksum) {
+			this.countDrop(DropReason.BAD_CHECKSUM);
+			this.getLatencyHistogram(LatencyStage.CHECKSUM).record(checksumNanos);
 			return;
 		}
 
-		// Update TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl() - 1));
-		if (ipPacket.getTtl() == 0) {
-			System.out.println("Dropped: TTL expired");
+		// Filter incoming packets
+		if (!this.filter(AccessList.Direction.IN, ipPacket)) {
 			return;
 		}
 
@@ -124,63 +262,350 @@ public class Router extends Device
 			cachedInterface = incomingIface;
 
 			if (processRipPacket()) {
-				System.out.println("RIP packet processed");
+				this.trace("RIP packet processed");
 				clearCachedPackets();
 				return;
 			}
 			clearCachedPackets();
 		}
 
-		// Recalculate checksum
-		ipPacket.resetChecksum();
-		ipPacket.serialize();
+		// Translate packets for inside hosts that arrive on the outside
+		// interface, before checking whether they are for the router; the
+		// original destination is kept so ICMP errors can quote the packet 
+		// as its source sent it
+		int originalDestination = 0;
+		short originalPort = 0;
+		if (this.nat != null && incomingIface == this.nat.getOutsideIface()) {
+			stageStart = System.nanoTime();
+			int destination = ipPacket.getDestinationAddress();
+			short port = (short)ipPacket.getTransportPorts();
+			if (this.nat.translateInbound(ipPacket)) {
+				originalDestination = destination;
+				originalPort = port;
+			}
+			this.recordLatency(LatencyStage.TRANSLATE, stageStart);
+		}
 
-		// Don't forward packets destined for router interfaces
+		// Don't forward packets destined for router interfaces; answer pings
+		// and tell UDP senders, such as traceroute, the port is unreachable
 		for (Iface routerIface : this.interfaces.values()) {
 			if (ipPacket.getDestinationAddress() == routerIface.getIpAddress()) {
-				System.out.println("Dropped: Packet addressed to router");
+				if (this.sendEchoReply(etherPacket, ipPacket, incomingIface)) {
+					return;
+				}
+				this.countDrop(DropReason.LOCAL_DESTINATION);
+				if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
+					this.sendIcmpError(etherPacket, ipPacket, originalDestination, 
+							originalPort, incomingIface, 
+							routerIface.getIpAddress(), 
+							ICMP.TYPE_DESTINATION_UNREACHABLE, 
+							ICMP.CODE_PORT_UNREACHABLE);
+				}
 				return;
 			}
 		}
 
-		// Find outgoing interface
+		// Tell the source if the packet can go no further; the TTL is 
+		// decremented once the packet is known to be forwarded
+		if ((ipPacket.getTtl() & 0xff) <= 1) {
+			this.countDrop(DropReason.TTL_EXPIRED);
+			this.sendIcmpError(etherPacket, ipPacket, originalDestination, 
+					originalPort, incomingIface, 
+					incomingIface.getIpAddress(), ICMP.TYPE_TIME_EXCEEDED, 
+					ICMP.CODE_TTL_EXCEEDED);
+			return;
+		}
+
+		// Find outgoing interface, choosing among equal-cost paths by flow
 		Iface outgoingIface;
+		stageStart = System.nanoTime();
+		int flowHash = ipPacket.flowHash();
 		if (ripEnabled) {
-			outgoingIface = findRouteInRipTable(ipPacket.getDestinationAddress());
+			outgoingIface = findRouteInRipTable(ipPacket.getDestinationAddress(), flowHash);
 		} else {
-			RouteEntry route = this.forwardingTable.lookup(ipPacket.getDestinationAddress());
+			RouteEntry route = this.forwardingTable.lookup(
+					ipPacket.getDestinationAddress(), flowHash);
 			outgoingIface = (route != null) ? route.getInterface() : null;
 		}
+		this.recordLatency(LatencyStage.ROUTE_LOOKUP, stageStart);
 
 		if (outgoingIface == null) {
-			System.out.println("Dropped: No route to destination");
+			this.countDrop(DropReason.NO_ROUTE);
+			this.sendIcmpError(etherPacket, ipPacket, originalDestination, 
+					originalPort, incomingIface, 
+					incomingIface.getIpAddress(), 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, ICMP.CODE_NET_UNREACHABLE);
+			return;
+		}
+
+		// Filter outgoing packets
+		if (!this.filter(AccessList.Direction.OUT, ipPacket)) {
 			return;
 		}
 
 		// Find next hop MAC address
+		stageStart = System.nanoTime();
 		ArpEntry nextHop = this.addressTable.lookup(ipPacket.getDestinationAddress());
+		this.recordLatency(LatencyStage.ARP_LOOKUP, stageStart);
 		if (nextHop == null) {
-			System.out.println("Dropped: Destination MAC not found in ARP cache");
+			this.countDrop(DropReason.NO_ARP_ENTRY);
+			this.sendIcmpError(etherPacket, ipPacket, originalDestination, 
+					originalPort, incomingIface, 
+					incomingIface.getIpAddress(), 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, ICMP.CODE_HOST_UNREACHABLE);
 			return;
 		}
 
+		// Tell the source the largest packet it may send if this one is too
+		// long for the outgoing interface and may not be fragmented
+		if (ipPacket.getSerializedLength() > outgoingIface.getMtu()
+				&& (ipPacket.getFlags() & IPv4.FLAG_DONT_FRAGMENT) != 0) {
+			this.countDrop(DropReason.FRAGMENTATION_NEEDED);
+			outgoingIface.countFragmentationNeeded();
+			this.sendIcmpError(etherPacket, ipPacket, originalDestination, 
+					originalPort, incomingIface, 
+					incomingIface.getIpAddress(), 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, 
+					ICMP.CODE_FRAGMENTATION_NEEDED, outgoingIface.getMtu());
+			return;
+		}
+
+		// Update TTL and recalculate checksum
+		ipPacket.setTtl((byte)(ipPacket.getTtl() - 1));
+		stageStart = System.nanoTime();
+		ipPacket.setChecksum(ipPacket.computeChecksum());
+		checksumNanos += System.nanoTime() - stageStart;
+		this.getLatencyHistogram(LatencyStage.CHECKSUM).record(checksumNanos);
+
+		// Translate packets leaving through the outside interface
+		if (this.nat != null && outgoingIface == this.nat.getOutsideIface()
+				&& incomingIface != outgoingIface) {
+			stageStart = System.nanoTime();
+			boolean translated = this.nat.translateOutbound(ipPacket);
+			this.recordLatency(LatencyStage.TRANSLATE, stageStart);
+			if (!translated) {
+				this.countDrop(DropReason.NAT_FAILED);
+				return;
+			}
+		}
+
 		// Update Ethernet header
-		etherPacket.setDestinationMACAddress(nextHop.getMac().toBytes());
-		etherPacket.setSourceMACAddress(outgoingIface.getMacAddress().toBytes());
+		etherPacket.setDestinationMACLong(nextHop.getMacLong());
+		etherPacket.setSourceMACLong(outgoingIface.getMacAddressLong());
 		etherPacket.setPayload(ipPacket);
 
-		// Forward packet
-		System.out.println("Forwarding packet to next hop");
-		boolean success = sendPacket(etherPacket, outgoingIface);
-		System.out.println(success ? "Packet forwarded successfully" : "Failed to forward packet");
+		// Forward packet, in fragments if it is too long for the interface
+		this.trace("Forwarding packet to next hop");
+		boolean success = (ipPacket.getSerializedLength() > outgoingIface.getMtu())
+				? this.sendFragments(etherPacket, ipPacket, outgoingIface)
+				: sendPacket(etherPacket, outgoingIface);
+		if (success) {
+			this.trace("Packet forwarded successfully");
+		}
+	}
+
+	/**
+	 * Check a packet against the access list for a direction, counting it
+	 * as dropped if it is denied.
+	 * @return true if the packet is permitted, otherwise false
+	 */
+	private boolean filter(AccessList.Direction direction, IPv4 ipPacket)
+	{
+		if (!this.accessList.hasRules(direction)) {
+			return true;
+		}
+
+		long stageStart = System.nanoTime();
+		boolean permitted = this.accessList.permits(direction, ipPacket);
+		this.recordLatency(LatencyStage.FILTER, stageStart);
+		if (!permitted) {
+			this.countDrop(DropReason.ACL_DENIED);
+		}
+		return permitted;
+	}
+
+	/**
+	 * Send a packet out an interface as fragments that fit the interface's
+	 * MTU. The fragments share the packet's payload, each carried in turn
+	 * by the packet's Ethernet frame.
+	 * @param etherPacket the frame carrying the packet, with its header set
+	 * @param ipPacket the packet
+	 * @param iface interface to send the fragments out
+	 * @return true if every fragment was sent, otherwise false
+	 */
+	private boolean sendFragments(Ethernet etherPacket, IPv4 ipPacket, 
+			Iface iface)
+	{
+		long stageStart = System.nanoTime();
+		IPv4[] fragments = ipPacket.fragment(iface.getMtu());
+		this.recordLatency(LatencyStage.FRAGMENT, stageStart);
+		if (fragments == null) {
+			this.countDrop(DropReason.SEND_FAILED);
+			return false;
+		}
+		iface.countFragmented(fragments.length);
+
+		boolean success = true;
+		for (IPv4 fragment : fragments) {
+			etherPacket.setPayload(fragment);
+			success &= this.sendPacket(etherPacket, iface);
+		}
+		return success;
+	}
+
+	/**
+	 * Answer an ICMP echo request addressed to the router.
+	 * @param etherPacket the frame carrying the request
+	 * @param ipPacket the request
+	 * @param incomingIface interface the request arrived on
+	 * @return true if the packet was an echo request, whether or not the 
+	 *         rate limit allowed a reply, otherwise false
+	 */
+	private boolean sendEchoReply(Ethernet etherPacket, IPv4 ipPacket, 
+			Iface incomingIface)
+	{
+		if (ipPacket.getProtocol() != IPv4.PROTOCOL_ICMP
+				|| ipPacket.getFragmentOffset() != 0
+				|| (ipPacket.getFlags() & IPv4.FLAG_MORE_FRAGMENTS) != 0) {
+			return false;
+		}
+		ICMP request = (ICMP)ipPacket.getPayload();
+		if (request.getIcmpType() != ICMP.TYPE_ECHO_REQUEST) {
+			return false;
+		}
+
+		if (!this.icmpLimiter.allow(ipPacket.getSourceAddress())) {
+			this.trace("Echo reply suppressed by rate limit");
+			return true;
+		}
+		// The reply carries the request's identifier, sequence number and data;
+		// the data is copied, since a pooled Data reuses its array once released
+		this.trace("Sending echo reply");
+		byte[] echoData = request.getPayload().serialize();
+		this.sendIcmp(etherPacket, incomingIface, ipPacket.getDestinationAddress(),
+				ipPacket.getSourceAddress(), ICMP.TYPE_ECHO_REPLY, (byte)0, 
+				Arrays.copyOf(echoData, echoData.length));
+		return true;
+	}
+
+	/**
+	 * Tell the source of a packet that it was dropped. No error is sent 
+	 * about an ICMP error, a fragment other than the first, or a packet to 
+	 * or from an address that is not unicast (RFC 1812), nor once the rate 
+	 * limit is reached.
+	 * @param etherPacket the frame carrying the packet
+	 * @param ipPacket the packet
+	 * @param originalDestination destination address of the packet as 
+	 *        received, if NAT has since rewritten it; 0 otherwise
+	 * @param originalPort destination port of the packet as received, if 
+	 *        NAT has since rewritten it
+	 * @param incomingIface interface the packet arrived on
+	 * @param sourceIp address to send the error from
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 */
+	private void sendIcmpError(Ethernet etherPacket, IPv4 ipPacket, 
+			int originalDestination, short originalPort, Iface incomingIface, 
+			int sourceIp, byte type, byte code)
+	{
+		this.sendIcmpError(etherPacket, ipPacket, originalDestination, 
+				originalPort, incomingIface, sourceIp, type, code, 0);
+	}
+
+	/**
+	 * Tell the source of a packet that it was dropped, as 
+	 * {@link #sendIcmpError(Ethernet, IPv4, int, short, Iface, int, byte, byte)} 
+	 * does.
+	 * @param nextHopMtu MTU of the next hop's link, for fragmentation needed
+	 *        errors (RFC 1191); 0 otherwise
+	 */
+	private void sendIcmpError(Ethernet etherPacket, IPv4 ipPacket, 
+			int originalDestination, short originalPort, Iface incomingIface, 
+			int sourceIp, byte type, byte code, int nextHopMtu)
+	{
+		if (ipPacket.getFragmentOffset() != 0
+				|| !isUnicast(ipPacket.getSourceAddress())
+				|| !isUnicast(ipPacket.getDestinationAddress())) {
+			return;
+		}
+		if (ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP
+				&& ICMP.isError(((ICMP)ipPacket.getPayload()).getIcmpType())) {
+			return;
+		}
+		if (!this.icmpLimiter.allow(ipPacket.getSourceAddress())) {
+			this.trace("ICMP error suppressed by rate limit");
+			return;
+		}
+
+		// Quote the packet's header and the first 8 bytes of its payload, 
+		// after 4 bytes that are unused but for the next hop's MTU; NAT is 
+		// undone while quoting, so the source recognizes its packet
+		byte[] original;
+		if (originalDestination != 0) {
+			int destination = ipPacket.getDestinationAddress();
+			short port = (short)ipPacket.getTransportPorts();
+			ipPacket.rewriteDestination(originalDestination, originalPort);
+			original = ipPacket.getIcmpQuote();
+			ipPacket.rewriteDestination(destination, port);
+		} else {
+			original = ipPacket.getIcmpQuote();
+		}
+		byte[] data = new byte[4 + original.length];
+		data[2] = (byte)(nextHopMtu >> 8);
+		data[3] = (byte)nextHopMtu;
+		System.arraycopy(original, 0, data, 4, original.length);
+		if (this.isTracing()) {
+			this.trace(String.format("Sending ICMP error type %d code %d", 
+					type, code));
+		}
+		this.sendIcmp(etherPacket, incomingIface, sourceIp, 
+				ipPacket.getSourceAddress(), type, code, data);
+	}
+
+	/**
+	 * Send an ICMP message back to the neighbor a frame came from.
+	 * @param etherPacket the frame being answered
+	 * @param iface interface the frame arrived on, and the message is sent out
+	 * @param sourceIp source address of the message
+	 * @param destinationIp destination address of the message
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @param data rest of the ICMP message, after the checksum
+	 */
+	private void sendIcmp(Ethernet etherPacket, Iface iface, int sourceIp, 
+			int destinationIp, byte type, byte code, byte[] data)
+	{
+		ICMP icmp = new ICMP();
+		icmp.setIcmpType(type);
+		icmp.setIcmpCode(code);
+		icmp.setPayload(new Data(data));
+
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(IPv4.PROTOCOL_ICMP);
+		ip.setSourceAddress(sourceIp);
+		ip.setDestinationAddress(destinationIp);
+		ip.setPayload(icmp);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACLong(iface.getMacAddressLong());
+		ether.setDestinationMACLong(etherPacket.getSourceMACLong());
+		ether.setPayload(ip);
+		this.sendPacket(ether, iface);
+	}
+
+	/**
+	 * @return true if an address is neither 0, multicast, nor reserved
+	 */
+	private static boolean isUnicast(int ip)
+	{
+		return ip != 0 && (ip >>> 28) < 0xe;
 	}
 
 	private boolean validateChecksum(IPv4 ipPacket)
 	{
-		short originalChecksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		ipPacket.serialize();
-		return ipPacket.getChecksum() == originalChecksum;
+		return ipPacket.computeChecksum() == ipPacket.getChecksum();
 	}
 
 	private void clearCachedPackets() {
@@ -190,6 +615,19 @@ public class Router extends Device
 	}
 
 	public Iface findRouteInRipTable(int destinationIp)
+	{
+		return findRouteInRipTable(destinationIp, 0);
+	}
+
+	/**
+	 * Find the interface to send a packet out of using the RIP table. If 
+	 * the best route has equal-cost alternatives, one of them is chosen by
+	 * a hash of the packet's flow.
+	 * @param destinationIp destination IP address of the packet
+	 * @param flowHash hash of the packet's flow
+	 * @return the interface; null if there is no usable route
+	 */
+	public Iface findRouteInRipTable(int destinationIp, int flowHash)
 	{
 		if (this.ripDatabase.getEntries().isEmpty() || destinationIp == 0) {
 			return null;
@@ -216,7 +654,16 @@ public class Router extends Device
 			return null;
 		}
 		
-		if (bestEntry.getNextHopAddress() == 0) {
+		int nextHop = bestEntry.getNextHopAddress();
+		RIPv2Entry[] alternates = this.ripAlternates.get(bestEntry.getAddress());
+		if (nextHop != 0 && alternates != null) {
+			int choice = (flowHash & 0x7fffffff) % (alternates.length + 1);
+			if (choice > 0) {
+				nextHop = alternates[choice - 1].getNextHopAddress();
+			}
+		}
+		
+		if (nextHop == 0) {
 			// Direct connection
 			for (Iface iface : this.interfaces.values()) {
 				if ((iface.getIpAddress() & iface.getSubnetMask()) == bestEntry.getAddress()) {
@@ -226,7 +673,7 @@ public class Router extends Device
 		} else {
 			// Route via next hop
 			for (Iface iface : this.interfaces.values()) {
-				if (iface.getIpAddress() == bestEntry.getNextHopAddress()) {
+				if (iface.getIpAddress() == nextHop) {
 					return iface;
 				}
 			}
@@ -255,7 +702,7 @@ public class Router extends Device
 
 	public boolean processRipPacket()
 	{
-		System.out.println("Checking if packet is RIP message");
+		this.trace("Checking if packet is RIP message");
 
 		if (!(cachedIpPacket.getPayload() instanceof UDP)) {
 			return false;
@@ -273,13 +720,13 @@ public class Router extends Device
 		RIPv2 ripPacket = (RIPv2) udpPacket.getPayload();
 		
 		if (ripPacket.getCommand() == RIPv2.COMMAND_REQUEST) {
-			System.out.println("Processing RIP request");
+			this.trace("Processing RIP request");
 			processRipUpdate(true);
 		} else if (ripPacket.getCommand() == RIPv2.COMMAND_RESPONSE) {
-			System.out.println("Processing RIP response");
+			this.trace("Processing RIP response");
 			processRipUpdate(false);
 		} else {
-			System.out.println("Invalid RIP command");
+			this.trace("Invalid RIP command");
 		}
 		
 		return true;
@@ -322,6 +769,7 @@ public class Router extends Device
 	private boolean pruneExpiredEntries()
 	{
 		boolean foundExpired = false;
+		final long now = System.currentTimeMillis();
 
 		for (RIPv2Entry entry : this.ripDatabase.getEntries()) {
 			if (entry.getNextHopAddress() == 0) {
@@ -330,9 +778,16 @@ public class Router extends Device
 			} else if (entry.getMetric() == 16) {
 				// Already marked unreachable
 				entry.setTime(System.currentTimeMillis());
+				removeRipAlternates(entry.getAddress(), alternate -> true);
+			} else if (now - entry.getTime() > RIPv2Entry.ENTRY_TIMEOUT_MS
+					&& promoteRipAlternate(entry)) {
+				// Expired, but an equal-cost alternative takes over
 			} else if (entry.isExpired(System.currentTimeMillis())) {
 				// Mark as expired
 				foundExpired = true;
+			} else {
+				removeRipAlternates(entry.getAddress(), 
+						alternate -> now - alternate.getTime() > RIPv2Entry.ENTRY_TIMEOUT_MS);
 			}
 		}
 
@@ -363,21 +818,38 @@ public class Router extends Device
 						// Refresh timestamp only
 						existingEntry.setTime(System.currentTimeMillis());
 						return false;
+					} else if (newMetric > existingEntry.getMetric() 
+							&& promoteRipAlternate(existingEntry)) {
+						// Path got worse, but an equal-cost alternative remains
+						return false;
 					} else {
 						// Update metric
 						existingEntry.setMetric(newMetric);
 						existingEntry.setTime(System.currentTimeMillis());
+						removeRipAlternates(targetNetwork, alternate -> true);
+						recordRipChange("updated", existingEntry);
 						return true;
 					}
 				} else {
 					// Different next hop - compare metrics
-					if (existingEntry.getMetric() <= newMetric) {
+					final int nextHop = this.cachedInterface.getIpAddress();
+					if (existingEntry.getMetric() < newMetric) {
+						removeRipAlternates(targetNetwork, 
+								alternate -> alternate.getNextHopAddress() == nextHop);
+						return false;
+					} else if (existingEntry.getMetric() == newMetric) {
+						// Equal-cost path
+						if (newMetric < RIPv2Entry.INFINITY_METRIC) {
+							addRipAlternate(existingEntry, nextHop);
+						}
 						return false;
 					} else {
 						// Update to better path
 						existingEntry.setMetric(newMetric);
 						existingEntry.setTime(System.currentTimeMillis());
-						existingEntry.setNextHopAddress(this.cachedInterface.getIpAddress());
+						existingEntry.setNextHopAddress(nextHop);
+						removeRipAlternates(targetNetwork, alternate -> true);
+						recordRipChange("updated", existingEntry);
 						return true;
 					}
 				}
@@ -395,12 +867,112 @@ public class Router extends Device
 			
 			addedEntry.setNextHopAddress(this.cachedInterface.getIpAddress());
 			this.ripDatabase.addEntry(addedEntry);
+			recordRipChange("added", addedEntry);
 			return true;
 		}
 
 		return false;
 	}
 
+	/**
+	 * Add or refresh an equal-cost alternative to a RIP route.
+	 * @param route the route
+	 * @param nextHop next hop of the alternative
+	 */
+	private void addRipAlternate(RIPv2Entry route, int nextHop)
+	{
+		long now = System.currentTimeMillis();
+		RIPv2Entry added;
+		synchronized (this.ripAlternates) {
+			RIPv2Entry[] alternates = this.ripAlternates.get(route.getAddress());
+			if (alternates != null) {
+				for (RIPv2Entry alternate : alternates) {
+					if (alternate.getNextHopAddress() == nextHop) {
+						alternate.setTime(now);
+						return;
+					}
+				}
+			}
+
+			added = new RIPv2Entry(route.getAddress(), route.getSubnetMask(),
+					route.getMetric(), now);
+			added.setNextHopAddress(nextHop);
+			RIPv2Entry[] updated = (alternates == null) ? new RIPv2Entry[1]
+					: Arrays.copyOf(alternates, alternates.length + 1);
+			updated[updated.length - 1] = added;
+			this.ripAlternates.put(route.getAddress(), updated);
+		}
+		recordRipChange("added equal-cost", added);
+	}
+
+	/**
+	 * Remove equal-cost alternatives to a RIP route.
+	 * @param network network address of the route
+	 * @param filter selects the alternatives to remove
+	 */
+	private void removeRipAlternates(int network, Predicate<RIPv2Entry> filter)
+	{
+		synchronized (this.ripAlternates) {
+			RIPv2Entry[] alternates = this.ripAlternates.get(network);
+			if (alternates == null) {
+				return;
+			}
+
+			RIPv2Entry[] kept = new RIPv2Entry[alternates.length];
+			int count = 0;
+			for (RIPv2Entry alternate : alternates) {
+				if (!filter.test(alternate)) {
+					kept[count++] = alternate;
+				}
+			}
+			if (count == 0) {
+				this.ripAlternates.remove(network);
+			} else if (count < alternates.length) {
+				this.ripAlternates.put(network, Arrays.copyOf(kept, count));
+			}
+		}
+	}
+
+	/**
+	 * Replace the next hop of a RIP route with its first unexpired 
+	 * equal-cost alternative, if it has one.
+	 * @param route the route
+	 * @return true if an alternative replaced the next hop
+	 */
+	private boolean promoteRipAlternate(RIPv2Entry route)
+	{
+		final long now = System.currentTimeMillis();
+		synchronized (this.ripAlternates) {
+			removeRipAlternates(route.getAddress(),
+					alternate -> now - alternate.getTime() > RIPv2Entry.ENTRY_TIMEOUT_MS);
+			RIPv2Entry[] alternates = this.ripAlternates.get(route.getAddress());
+			if (alternates == null) {
+				return false;
+			}
+
+			final RIPv2Entry promoted = alternates[0];
+			route.setNextHopAddress(promoted.getNextHopAddress());
+			route.setTime(promoted.getTime());
+			removeRipAlternates(route.getAddress(), alternate -> alternate == promoted);
+		}
+		recordRipChange("updated", route);
+		return true;
+	}
+
+	private void recordRipChange(String change, RIPv2Entry entry)
+	{
+		RipTableChangeEvent event = new RipTableChangeEvent();
+		if (event.shouldCommit()) {
+			event.device = this.getHost();
+			event.change = change;
+			event.network = IPv4.fromIPv4Address(entry.getAddress());
+			event.mask = IPv4.fromIPv4Address(entry.getSubnetMask());
+			event.metric = entry.getMetric();
+			event.nextHop = IPv4.fromIPv4Address(entry.getNextHopAddress());
+			event.commit();
+		}
+	}
+
 	private void broadcastRipMessage(byte commandType)
 	{
 		if (!ripEnabled) {
@@ -411,12 +983,14 @@ public class Router extends Device
 			return;
 		}
 
+		RipBroadcastEvent event = new RipBroadcastEvent();
+		event.begin();
 		this.ripDatabase.setCommand(commandType);
 		pruneExpiredEntries();
 
 		// RIP multicast address and broadcast MAC
 		int multicastIp = IPv4.toIPv4Address("224.0.0.9");
-		MACAddress broadcastMac = MACAddress.valueOf("FF:FF:FF:FF:FF:FF");
+		long broadcastMac = MACAddress.BROADCAST;
 		
 		for (Iface iface : this.interfaces.values()) {
 			sendRipPacket(iface, multicastIp, broadcastMac);
@@ -424,6 +998,15 @@ public class Router extends Device
 		
 		// Reset command
 		this.ripDatabase.setCommand((byte) 0);
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.device = this.getHost();
+			event.command = (RIPv2.COMMAND_REQUEST == commandType) ? "request" : "response";
+			event.routes = this.ripDatabase.getEntries().size();
+			event.interfaces = this.interfaces.size();
+			event.commit();
+		}
 	}
 
 	private void sendTargetedRipResponse() {
@@ -439,11 +1022,11 @@ public class Router extends Device
 		sendRipPacket(
 			targetIface, 
 			cachedIpPacket.getSourceAddress(), 
-			cachedEthernetFrame.getSourceMAC()
+			cachedEthernetFrame.getSourceMACLong()
 		);
 	}
 
-	private void sendRipPacket(Iface outIface, int destIp, MACAddress destMac)
+	private void sendRipPacket(Iface outIface, int destIp, long destMac)
 	{
 		if (outIface == null) {
 			return;
@@ -460,14 +1043,14 @@ public class Router extends Device
 		// Create Ethernet frame
 		Ethernet ethFrame = new Ethernet();
 		ethFrame.setEtherType(Ethernet.TYPE_IPv4);
-		ethFrame.setDestinationMACAddress(destMac.toBytes());
-		ethFrame.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		ethFrame.setDestinationMACLong(destMac);
+		ethFrame.setSourceMACLong(outIface.getMacAddressLong());
 		ethFrame.setPayload(ipPacket);
 
 		// Send packet
-		System.out.println("Sending RIP update");
+		this.trace("Sending RIP update");
 		boolean success = sendPacket(ethFrame, outIface);
-		System.out.println(success ? "RIP update sent" : "Failed to send RIP update");
+		this.trace(success ? "RIP update sent" : "Failed to send RIP update");
 	}
 
 	private UDP createRipUdpPacket()
@@ -0,0 +1,499 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Parses route table and ARP cache text files without regular expressions
+ * or a string per line. The file is memory-mapped and split at line breaks
+ * into chunks that are parsed in parallel; each chunk collects its values
+ * in a primitive array, and the chunks are merged in file order, so the
+ * result is the same as reading the file line by line. Blank lines are
+ * skipped. The first invalid line in the file is reported with its number.
+ */
+class TableParser
+{
+	/** Smallest part of a file worth parsing on its own thread, in bytes */
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+	/** Values kept for each route: destination, gateway, mask and the
+	 *  index of the interface name within its chunk */
+	private static final int ROUTE_VALUES = 4;
+
+	/** Values kept for each ARP entry: IP address and MAC address */
+	private static final int ARP_VALUES = 2;
+
+	private interface ChunkFactory
+	{ Chunk create(ByteBuffer buf, int start, int end); }
+
+	/**
+	 * Read the routes in a route table file, one per line:
+	 * <pre>destination gateway mask interface</pre>
+	 * @param filename name of the file containing the static route table
+	 * @param router router whose interfaces the routes use; null to create
+	 *        an interface for each interface name in the file
+	 * @return the routes in the order they appear; null if the file could
+	 *         not be read or is invalid
+	 */
+	static List<RouteEntry> readRoutes(String filename, Router router)
+	{
+		Chunk[] chunks = parse(filename, "route table", RouteChunk::new);
+		if (null == chunks)
+		{ return null; }
+
+		int count = 0;
+		for (Chunk chunk : chunks)
+		{ count += chunk.valueCount / ROUTE_VALUES; }
+
+		List<RouteEntry> routes = new ArrayList<RouteEntry>(count);
+		Map<String,Iface> ifaces = new HashMap<String,Iface>();
+		for (Chunk c : chunks)
+		{
+			RouteChunk chunk = (RouteChunk)c;
+
+			// Resolve the interface names used in this chunk
+			Iface[] chunkIfaces = new Iface[chunk.names.size()];
+			for (int i = 0; i < chunkIfaces.length; i++)
+			{
+				String name = new String(chunk.names.get(i),
+						StandardCharsets.US_ASCII);
+				Iface iface = ifaces.get(name);
+				if (null == iface)
+				{
+					iface = (null == router) ? new Iface(name)
+							: router.getInterface(name);
+					if (null == iface)
+					{
+						System.err.println(String.format(
+								"Error loading route table, line %d of %s: invalid interface %s",
+								chunk.firstLine + chunk.nameLines.get(i), filename, name));
+						return null;
+					}
+					ifaces.put(name, iface);
+				}
+				chunkIfaces[i] = iface;
+			}
+
+			long[] values = chunk.values;
+			for (int i = 0; i < chunk.valueCount; i += ROUTE_VALUES)
+			{
+				routes.add(new RouteEntry((int)values[i], (int)values[i + 1],
+						(int)values[i + 2], chunkIfaces[(int)values[i + 3]]));
+			}
+		}
+		return routes;
+	}
+
+	/**
+	 * Read the entries in an ARP cache file, one per line:
+	 * <pre>ip mac</pre>
+	 * @param filename name of the file containing the static ARP cache
+	 * @return IP and MAC address of each entry, one after the other, in the
+	 *         order they appear; null if the file could not be read or is
+	 *         invalid
+	 */
+	static long[] readArp(String filename)
+	{
+		Chunk[] chunks = parse(filename, "ARP cache", ArpChunk::new);
+		if (null == chunks)
+		{ return null; }
+
+		int length = 0;
+		for (Chunk chunk : chunks)
+		{ length += chunk.valueCount; }
+		long[] entries = new long[length];
+		int offset = 0;
+		for (Chunk chunk : chunks)
+		{
+			System.arraycopy(chunk.values, 0, entries, offset, chunk.valueCount);
+			offset += chunk.valueCount;
+		}
+		return entries;
+	}
+
+	/**
+	 * Map a file, parse its chunks in parallel and report the first error.
+	 * @param kind what the file holds, for messages
+	 * @return the parsed chunks in file order; null on error
+	 */
+	private static Chunk[] parse(String filename, String kind,
+			ChunkFactory factory)
+	{
+		long begin = System.nanoTime();
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+			{
+				System.err.println("Error loading " + kind + ", file too large: "
+						+ filename);
+				return null;
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		// Split the file at line breaks
+		int size = buf.capacity();
+		int count = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+				size / MIN_CHUNK_SIZE));
+		Chunk[] chunks = new Chunk[count];
+		int start = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int end = Math.max(start, (int)((long)size * (i + 1) / count));
+			while (end < size && end > 0 && buf.get(end - 1) != '\n')
+			{ end++; }
+			chunks[i] = factory.create(buf, start, end);
+			start = end;
+		}
+
+		if (count > 1)
+		{ Arrays.stream(chunks).parallel().forEach(Chunk::parse); }
+		else
+		{ chunks[0].parse(); }
+
+		int lines = 0;
+		int entries = 0;
+		for (Chunk chunk : chunks)
+		{
+			chunk.firstLine = lines;
+			if (chunk.error != null)
+			{
+				System.err.println(String.format("Error loading %s, line %d of %s: %s",
+						kind, lines + chunk.lines, filename, chunk.error));
+				System.err.println("\t" + chunk.errorLine());
+				return null;
+			}
+			lines += chunk.lines;
+			entries += chunk.entries;
+		}
+
+		double elapsed = (System.nanoTime() - begin) / 1e9;
+		System.out.println(String.format(
+				"Parsed %d %s entries from %d lines in %.1f ms (%.0f lines/s, %d %s)",
+				entries, kind, lines, elapsed * 1e3, lines / Math.max(elapsed, 1e-9),
+				count, (1 == count) ? "thread" : "threads"));
+		return chunks;
+	}
+
+	/**
+	 * Part of a file that starts at the beginning of a line and ends after
+	 * a line break or at the end of the file.
+	 */
+	private static abstract class Chunk
+	{
+		/** Bytes of the chunk, copied from the mapped file */
+		private final byte[] buf;
+		private final int start;
+		private final int end;
+
+		/** Values parsed from the lines of the chunk */
+		long[] values;
+		int valueCount;
+
+		/** Lines read, including blank lines */
+		int lines;
+
+		/** Lines parsed into values */
+		int entries;
+
+		/** Lines in the file before this chunk; set once all are parsed */
+		int firstLine;
+
+		/** Description of the first invalid line; null if there is none */
+		String error;
+
+		/** Position in the line being parsed, and the end of that line */
+		int pos;
+		int lineStart;
+		int lineEnd;
+
+		Chunk(ByteBuffer buf, int start, int end, int valuesPerLine)
+		{
+			this.buf = new byte[end - start];
+			buf.get(start, this.buf);
+			this.start = 0;
+			this.end = this.buf.length;
+			// Assume lines of about 32 bytes
+			this.values = new long[Math.max(16, (end - start) / 32 * valuesPerLine)];
+		}
+
+		/**
+		 * Parse the values on the current line, which is not blank.
+		 * @return null if the line is valid, otherwise what is wrong with it
+		 */
+		abstract String parseLine();
+
+		void parse()
+		{
+			this.lineStart = this.start;
+			while (this.lineStart < this.end)
+			{
+				this.lineEnd = this.lineStart;
+				while (this.lineEnd < this.end && this.buf[this.lineEnd] != '\n')
+				{ this.lineEnd++; }
+				this.lines++;
+
+				this.pos = this.lineStart;
+				this.skipSpace();
+				if (this.pos < this.lineEnd)
+				{
+					this.error = this.parseLine();
+					if (this.error != null)
+					{ return; }
+					this.entries++;
+				}
+				this.lineStart = this.lineEnd + 1;
+			}
+		}
+
+		/**
+		 * @return the text of the line being parsed
+		 */
+		String errorLine()
+		{
+			byte[] text = new byte[this.lineEnd - this.lineStart];
+			for (int i = 0; i < text.length; i++)
+			{ text[i] = this.buf[this.lineStart + i]; }
+			return new String(text, StandardCharsets.US_ASCII).trim();
+		}
+
+		void append(long value)
+		{
+			if (this.valueCount == this.values.length)
+			{ this.values = Arrays.copyOf(this.values, this.values.length * 2); }
+			this.values[this.valueCount++] = value;
+		}
+
+		/**
+		 * Skip spaces and tabs.
+		 * @return true if any were skipped
+		 */
+		boolean skipSpace()
+		{
+			int from = this.pos;
+			while (this.pos < this.lineEnd && isSpace(this.buf[this.pos]))
+			{ this.pos++; }
+			return (this.pos > from);
+		}
+
+		/**
+		 * @return true if the rest of the line is blank
+		 */
+		boolean atEnd()
+		{
+			this.skipSpace();
+			return (this.pos == this.lineEnd);
+		}
+
+		/**
+		 * Parse a dotted-decimal IP address.
+		 * @return the address as an unsigned value; -1 if there is none
+		 */
+		long ip()
+		{
+			int ip = 0;
+			for (int i = 0; i < 4; i++)
+			{
+				if (i > 0)
+				{
+					if (this.pos >= this.lineEnd || this.buf[this.pos] != '.')
+					{ return -1; }
+					this.pos++;
+				}
+				int octet = 0;
+				int digits = 0;
+				while (this.pos < this.lineEnd && digits <= 3)
+				{
+					int digit = this.buf[this.pos] - '0';
+					if (digit < 0 || digit > 9)
+					{ break; }
+					octet = octet * 10 + digit;
+					digits++;
+					this.pos++;
+				}
+				if (0 == digits || octet > 255)
+				{ return -1; }
+				ip = (ip << 8) | octet;
+			}
+			return ip & 0xffffffffL;
+		}
+
+		/**
+		 * Parse a MAC address written as six pairs of hex digits separated
+		 * by colons.
+		 * @return the address; -1 if there is none
+		 */
+		long mac()
+		{
+			long mac = 0;
+			for (int i = 0; i < 6; i++)
+			{
+				if (i > 0)
+				{
+					if (this.pos >= this.lineEnd || this.buf[this.pos] != ':')
+					{ return -1; }
+					this.pos++;
+				}
+				for (int j = 0; j < 2; j++)
+				{
+					int digit = (this.pos < this.lineEnd)
+							? hexDigit(this.buf[this.pos]) : -1;
+					if (digit < 0)
+					{ return -1; }
+					mac = (mac << 4) | digit;
+					this.pos++;
+				}
+			}
+			return mac;
+		}
+
+		/**
+		 * Skip a run of letters and digits.
+		 * @return position where the run started; it ends at pos
+		 */
+		int word()
+		{
+			int from = this.pos;
+			while (this.pos < this.lineEnd && isWordChar(this.buf[this.pos]))
+			{ this.pos++; }
+			return from;
+		}
+
+		/**
+		 * @return true if the bytes between two positions equal a name
+		 */
+		boolean matches(int from, int to, byte[] name)
+		{
+			if (to - from != name.length)
+			{ return false; }
+			for (int i = 0; i < name.length; i++)
+			{
+				if (this.buf[from + i] != name[i])
+				{ return false; }
+			}
+			return true;
+		}
+
+		/**
+		 * @return a copy of the bytes between two positions
+		 */
+		byte[] copy(int from, int to)
+		{
+			byte[] bytes = new byte[to - from];
+			for (int i = 0; i < bytes.length; i++)
+			{ bytes[i] = this.buf[from + i]; }
+			return bytes;
+		}
+	}
+
+	private static class RouteChunk extends Chunk
+	{
+		/** Distinct interface names in the chunk, and the line, within the
+		 *  chunk, each is first used on */
+		final List<byte[]> names = new ArrayList<byte[]>();
+		final List<Integer> nameLines = new ArrayList<Integer>();
+
+		RouteChunk(ByteBuffer buf, int start, int end)
+		{ super(buf, start, end, ROUTE_VALUES); }
+
+		String parseLine()
+		{
+			long dstIp = this.ip();
+			if (dstIp < 0 || !this.skipSpace())
+			{ return "expected a destination IP address"; }
+			if (0 == dstIp)
+			{ return "0.0.0.0 is not a valid destination"; }
+
+			long gwIp = this.ip();
+			if (gwIp < 0 || !this.skipSpace())
+			{ return "expected a gateway IP address"; }
+
+			long maskIp = this.ip();
+			if (maskIp < 0 || !this.skipSpace())
+			{ return "expected a subnet mask"; }
+			if (0 == maskIp)
+			{ return "0.0.0.0 is not a valid subnet mask"; }
+
+			int from = this.word();
+			int to = this.pos;
+			if (from == to || !this.atEnd())
+			{ return "expected an interface name at the end of the line"; }
+			int name = 0;
+			while (name < this.names.size() && !this.matches(from, to, this.names.get(name)))
+			{ name++; }
+			if (name == this.names.size())
+			{
+				this.names.add(this.copy(from, to));
+				this.nameLines.add(this.lines);
+			}
+
+			this.append(dstIp);
+			this.append(gwIp);
+			this.append(maskIp);
+			this.append(name);
+			return null;
+		}
+	}
+
+	private static class ArpChunk extends Chunk
+	{
+		ArpChunk(ByteBuffer buf, int start, int end)
+		{ super(buf, start, end, ARP_VALUES); }
+
+		String parseLine()
+		{
+			long ip = this.ip();
+			if (ip < 0 || !this.skipSpace())
+			{ return "expected an IP address"; }
+			if (0 == ip)
+			{ return "0.0.0.0 is not a valid IP address"; }
+
+			long mac = this.mac();
+			if (mac < 0 || !this.atEnd())
+			{ return "expected a MAC address at the end of the line"; }
+
+			this.append(ip);
+			this.append(mac);
+			return null;
+		}
+	}
+
+	private static boolean isSpace(byte c)
+	{ return (' ' == c || '\t' == c || '\r' == c || '\f' == c || 0x0b == c); }
+
+	private static boolean isWordChar(byte c)
+	{
+		return ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9'));
+	}
+
+	private static int hexDigit(byte c)
+	{
+		if (c >= '0' && c <= '9')
+		{ return c - '0'; }
+		if (c >= 'a' && c <= 'f')
+		{ return c - 'a' + 10; }
+		if (c >= 'A' && c <= 'F')
+		{ return c - 'A' + 10; }
+		return -1;
+	}
+}
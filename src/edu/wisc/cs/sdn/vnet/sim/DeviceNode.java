@@ -0,0 +1,58 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.concurrent.Executor;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketPool;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.LatencyStage;
+import edu.wisc.cs.sdn.vnet.PacketTransport;
+
+/**
+ * A simulated node that runs a router or switch. The node is the device's
+ * transport, so frames the device sends go onto the node's virtual links.
+ */
+public class DeviceNode extends SimNode implements PacketTransport
+{
+	/** Device running on the node */
+	private Device device;
+
+	public DeviceNode(Device device, Executor executor)
+	{
+		super(device.getHost(), executor);
+		this.device = device;
+		this.device.setTransport(this);
+	}
+
+	public Device getDevice()
+	{ return this.device; }
+
+	@Override
+	protected void receive(byte[] frame, String ifaceName)
+	{
+		Iface iface = this.device.getInterface(ifaceName);
+		if (null == iface)
+		{ return; }
+		iface.countReceived(frame.length);
+
+		long received = System.nanoTime();
+		Ethernet etherPacket = PacketPool.ethernet();
+		etherPacket.deserialize(frame, 0, frame.length);
+		this.device.recordLatency(LatencyStage.PARSE, received);
+		this.device.receivePacket(etherPacket, iface, received);
+	}
+
+	@Override
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{
+		long start = System.nanoTime();
+		byte[] frame = etherPacket.serialize();
+		this.device.recordLatency(LatencyStage.SERIALIZE, start);
+		if (!this.transmit(frame, iface.getName()))
+		{ return false; }
+		iface.countSent(frame.length);
+		return true;
+	}
+}
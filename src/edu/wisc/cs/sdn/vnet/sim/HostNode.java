@@ -0,0 +1,141 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * A simulated end host with a single interface (eth0). Hosts resolve MAC
+ * addresses from a static table, like Mininet hosts started with a static
+ * ARP cache, and only source and sink UDP test traffic.
+ */
+public class HostNode extends SimNode
+{
+	/** Name of the host's only interface */
+	public static final String IFACE_NAME = "eth0";
+
+	/** UDP port used for test traffic */
+	public static final short TRAFFIC_PORT = (short)9000;
+
+	private int ipAddress;
+	private int subnetMask;
+	private int gateway;
+	private MACAddress macAddress;
+
+	/** Static ARP table shared by all hosts; maps IP addresses to MACs */
+	private Map<Integer,MACAddress> arpTable;
+
+	/** Number of test frames received */
+	private AtomicLong received;
+
+	/** Sum and maximum of one-way latencies of received test frames */
+	private AtomicLong latencySumNanos;
+	private AtomicLong latencyMaxNanos;
+
+	public HostNode(String name, int ipAddress, int subnetMask, int gateway,
+			MACAddress macAddress, Map<Integer,MACAddress> arpTable,
+			Executor executor)
+	{
+		super(name, executor);
+		this.ipAddress = ipAddress;
+		this.subnetMask = subnetMask;
+		this.gateway = gateway;
+		this.macAddress = macAddress;
+		this.arpTable = arpTable;
+		this.received = new AtomicLong();
+		this.latencySumNanos = new AtomicLong();
+		this.latencyMaxNanos = new AtomicLong();
+	}
+
+	public int getIpAddress()
+	{ return this.ipAddress; }
+
+	public MACAddress getMacAddress()
+	{ return this.macAddress; }
+
+	public long getReceived()
+	{ return this.received.get(); }
+
+	public long getLatencySumNanos()
+	{ return this.latencySumNanos.get(); }
+
+	public long getLatencyMaxNanos()
+	{ return this.latencyMaxNanos.get(); }
+
+	/**
+	 * Send a UDP test frame to another host. The frame carries the time it
+	 * was sent so the receiver can compute its one-way latency.
+	 * @param dstIp IP address of the destination host
+	 * @param flow number of the flow the frame belongs to, which is added to
+	 *        the source port so flows can take different equal-cost paths
+	 * @return true if the frame was sent, false if the next hop is unknown
+	 */
+	public boolean sendTo(int dstIp, int flow)
+	{
+		int nextHop = dstIp;
+		if ((dstIp & this.subnetMask) != (this.ipAddress & this.subnetMask))
+		{ nextHop = this.gateway; }
+		MACAddress dstMac = this.arpTable.get(nextHop);
+		if (null == dstMac || 0 == nextHop)
+		{ return false; }
+
+		byte[] payload = new byte[8];
+		ByteBuffer.wrap(payload).putLong(System.nanoTime());
+
+		UDP udp = new UDP();
+		udp.setSourcePort((short)(TRAFFIC_PORT + flow));
+		udp.setDestinationPort(TRAFFIC_PORT);
+		udp.setPayload(new Data(payload));
+
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setSourceAddress(this.ipAddress);
+		ip.setDestinationAddress(dstIp);
+		ip.setPayload(udp);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(this.macAddress.toBytes());
+		ether.setDestinationMACAddress(dstMac.toBytes());
+		ether.setPayload(ip);
+
+		return this.transmit(ether, IFACE_NAME);
+	}
+
+	@Override
+	protected void receive(byte[] frame, String ifaceName)
+	{
+		Ethernet ether = new Ethernet();
+		ether.deserialize(frame, 0, frame.length);
+		if (ether.getDestinationMACLong() != this.macAddress.toLong()
+				|| ether.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return; }
+
+		IPv4 ip = (IPv4)ether.getPayload();
+		if (ip.getDestinationAddress() != this.ipAddress
+				|| !(ip.getPayload() instanceof UDP))
+		{ return; }
+
+		UDP udp = (UDP)ip.getPayload();
+		if (udp.getDestinationPort() != TRAFFIC_PORT
+				|| !(udp.getPayload() instanceof Data))
+		{ return; }
+
+		byte[] payload = ((Data)udp.getPayload()).getData();
+		if (payload.length >= 8)
+		{
+			long latency = System.nanoTime() - ByteBuffer.wrap(payload).getLong();
+			this.latencySumNanos.addAndGet(latency);
+			this.latencyMaxNanos.accumulateAndGet(latency, Math::max);
+		}
+		this.received.incrementAndGet();
+	}
+}
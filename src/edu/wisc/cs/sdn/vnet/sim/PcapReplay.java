@@ -0,0 +1,467 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketPool;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.LatencyHistogram;
+import edu.wisc.cs.sdn.vnet.LatencyStage;
+import edu.wisc.cs.sdn.vnet.PacketTransport;
+import edu.wisc.cs.sdn.vnet.PcapReader;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+
+/**
+ * Replays a pcap capture, such as one taken with the -l option of VNet,
+ * into a router or switch and measures how fast the device handles it.
+ * Frames are fed to {@link Device#receivePacket} on one thread, either as
+ * fast as possible or with their recorded spacing, and the harness reports
+ * packets per second, the distribution of per-packet handling times, and
+ * the bytes allocated per packet.
+ * <p>
+ * A pcap file does not record interfaces, so the interface each frame
+ * arrived on is inferred from its addresses. A frame sent to an interface's
+ * MAC address arrived on that interface, and a frame sent from one was sent
+ * by the device and is skipped. Other frames, such as broadcasts, are
+ * matched to the interface whose subnet holds their source IP address, or
+ * else to the default interface given with -in.
+ * <p>
+ * For example, to capture a router forwarding a stream of UDP packets and
+ * replay it, with rtable and arp files that route 10.0.1.0/24 to eth1 and
+ * 10.0.2.0/24 to eth2 and map 10.0.2.102 to a MAC address:
+ * <pre>
+ * java edu.wisc.cs.sdn.vnet.vns.TrafficGenerator \
+ *     -i eth1,10.0.1.1/24,02:00:00:00:00:01 -i eth2,10.0.2.1/24,02:00:00:00:00:02 \
+ *     -in eth1 -dst 10.0.2.102 -r 2000 -t 2 &amp;
+ * java edu.wisc.cs.sdn.vnet.Main -v r1 -r rtable -a arp -l cap.pcap -quiet
+ * java -Dvnet.packetPool=true edu.wisc.cs.sdn.vnet.sim.PcapReplay -f cap.pcap -v r1 \
+ *     -i eth1,10.0.1.1/24,02:00:00:00:00:01 -i eth2,10.0.2.1/24,02:00:00:00:00:02 \
+ *     -r rtable -a arp
+ * </pre>
+ */
+public class PcapReplay
+{
+	/** Maximum number of latency samples kept */
+	private static final int MAX_SAMPLES = 4 * 1024 * 1024;
+
+	/** Counts the frames the device sends instead of putting them on a wire */
+	private static class CountingTransport implements PacketTransport
+	{
+		Device device;
+		long sent;
+
+		/** Reused for every frame, as VNSComm reuses its send buffer */
+		ByteBuffer buffer;
+
+		CountingTransport(Device device)
+		{
+			this.device = device;
+			this.buffer = ByteBuffer.allocate(2048);
+		}
+
+		@Override
+		public boolean sendPacket(Ethernet etherPacket, Iface iface)
+		{
+			// Serialize as a real transport would, so the cost is measured
+			long start = System.nanoTime();
+			int length = etherPacket.getSerializedLength();
+			if (this.buffer.capacity() < length)
+			{ this.buffer = ByteBuffer.allocate(length); }
+			this.buffer.clear();
+			etherPacket.serialize(this.buffer);
+			this.device.recordLatency(LatencyStage.SERIALIZE, start);
+			iface.countSent(length);
+			this.sent++;
+			return true;
+		}
+	}
+
+	/** A recorded frame and the interface it arrived on */
+	private static class Frame
+	{
+		long timestamp;
+		byte[] data;
+		Iface iface;
+	}
+
+	private Device device;
+	private CountingTransport transport;
+	private List<Frame> frames;
+
+	/** Interface for frames that cannot be matched by address; may be null */
+	private Iface defaultIface;
+
+	/** Frames in the capture that were sent by the device */
+	private long skippedEgress;
+
+	/** Frames in the capture that could not be matched to an interface */
+	private long skippedUnmatched;
+
+	/** Per-packet handling times of the last measured run, in nanoseconds */
+	private long[] samples;
+	private int sampleCount;
+
+	public PcapReplay(Device device, Iface defaultIface)
+	{
+		this.device = device;
+		this.transport = new CountingTransport(device);
+		this.device.setTransport(this.transport);
+		this.frames = new ArrayList<Frame>();
+		this.defaultIface = defaultIface;
+	}
+
+	/**
+	 * Read the frames the device received from a capture.
+	 * @param filename name of the pcap file
+	 * @return true if the file was read, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		PcapReader reader = PcapReader.open(filename);
+		if (null == reader)
+		{ return false; }
+
+		PcapReader.Record record;
+		while ((record = reader.read()) != null)
+		{
+			if (record.data.length < 14)
+			{
+				this.skippedUnmatched++;
+				continue;
+			}
+			if (this.isEgress(record.data))
+			{
+				this.skippedEgress++;
+				continue;
+			}
+			Iface iface = this.inferIface(record.data);
+			if (null == iface)
+			{
+				this.skippedUnmatched++;
+				continue;
+			}
+
+			Frame frame = new Frame();
+			frame.timestamp = record.timestamp;
+			frame.data = record.data;
+			frame.iface = iface;
+			this.frames.add(frame);
+		}
+		reader.close();
+
+		// Allocated up front so it does not count toward per-packet allocation
+		this.samples = new long[Math.min(MAX_SAMPLES, this.frames.size())];
+		return true;
+	}
+
+	private static long macAt(byte[] data, int offset)
+	{
+		long mac = 0;
+		for (int i = 0; i < 6; i++)
+		{ mac = (mac << 8) | (data[offset + i] & 0xff); }
+		return mac;
+	}
+
+	/**
+	 * @return true if a frame's source MAC is one of the device's interfaces
+	 */
+	private boolean isEgress(byte[] data)
+	{
+		long srcMac = macAt(data, 6);
+		for (Iface iface : this.device.getInterfaces().values())
+		{
+			if (iface.getMacAddressLong() == srcMac)
+			{ return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * @return the interface a frame most likely arrived on; null if unknown
+	 */
+	private Iface inferIface(byte[] data)
+	{
+		long dstMac = macAt(data, 0);
+		for (Iface iface : this.device.getInterfaces().values())
+		{
+			if (iface.getMacAddressLong() == dstMac)
+			{ return iface; }
+		}
+
+		// Match the source IP of IPv4 packets and the sender IP of ARP packets
+		int etherType = ((data[12] & 0xff) << 8) | (data[13] & 0xff);
+		int srcIp = 0;
+		if (Ethernet.TYPE_IPv4 == etherType && data.length >= 14 + 20)
+		{ srcIp = intAt(data, 14 + 12); }
+		else if (Ethernet.TYPE_ARP == etherType && data.length >= 14 + 28)
+		{ srcIp = intAt(data, 14 + 14); }
+		if (srcIp != 0)
+		{
+			for (Iface iface : this.device.getInterfaces().values())
+			{
+				int mask = iface.getSubnetMask();
+				if (iface.getIpAddress() != 0 && mask != 0
+						&& (iface.getIpAddress() & mask) == (srcIp & mask))
+				{ return iface; }
+			}
+		}
+		return this.defaultIface;
+	}
+
+	private static int intAt(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	public int getFrameCount()
+	{ return this.frames.size(); }
+
+	public long getSkippedEgress()
+	{ return this.skippedEgress; }
+
+	public long getSkippedUnmatched()
+	{ return this.skippedUnmatched; }
+
+	/**
+	 * Replay every loaded frame once.
+	 * @param speedup factor by which to compress the recorded spacing of
+	 *        frames; 0 to replay as fast as possible
+	 * @param record true to record per-packet handling times
+	 * @return elapsed time, in nanoseconds
+	 */
+	public long replay(double speedup, boolean record)
+	{
+		this.sampleCount = 0;
+
+		long firstTimestamp = this.frames.isEmpty() ? 0
+				: this.frames.get(0).timestamp;
+		long start = System.nanoTime();
+		for (Frame frame : this.frames)
+		{
+			if (speedup > 0)
+			{
+				long due = start
+						+ (long)((frame.timestamp - firstTimestamp) / speedup);
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0)
+				{ LockSupport.parkNanos(wait); }
+			}
+
+			long begin = System.nanoTime();
+			Ethernet etherPacket = PacketPool.ethernet();
+			etherPacket.deserialize(frame.data, 0, frame.data.length);
+			this.device.recordLatency(LatencyStage.PARSE, begin);
+			frame.iface.countReceived(frame.data.length);
+			this.device.receivePacket(etherPacket, frame.iface, begin);
+			if (record && this.sampleCount < this.samples.length)
+			{ this.samples[this.sampleCount++] = System.nanoTime() - begin; }
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return percentiles of the per-packet handling times of the last
+	 *         recorded run
+	 */
+	public String latencySummary()
+	{
+		if (0 == this.sampleCount)
+		{ return "no latency samples"; }
+		long[] sorted = Arrays.copyOf(this.samples, this.sampleCount);
+		Arrays.sort(sorted);
+		return String.format("Per-packet us: p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f",
+				percentile(sorted, 0.5) / 1e3, percentile(sorted, 0.9) / 1e3,
+				percentile(sorted, 0.99) / 1e3, percentile(sorted, 0.999) / 1e3,
+				sorted[sorted.length - 1] / 1e3);
+	}
+
+	private static long percentile(long[] sorted, double p)
+	{ return sorted[(int)Math.min(sorted.length - 1, (long)(p * sorted.length))]; }
+
+	/**
+	 * @return bytes allocated so far by the current thread; -1 if the JVM
+	 *         does not track allocation
+	 */
+	private static long allocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean sunThreads =
+					(com.sun.management.ThreadMXBean)threads;
+			if (sunThreads.isThreadAllocatedMemorySupported())
+			{
+				if (!sunThreads.isThreadAllocatedMemoryEnabled())
+				{ sunThreads.setThreadAllocatedMemoryEnabled(true); }
+				return sunThreads.getThreadAllocatedBytes(
+						Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	public static void main(String[] args)
+	{
+		String pcapFile = null;
+		String nodeId = null;
+		String routingConfig = null;
+		String arpConfig = null;
+		String defaultIfaceName = null;
+		double speedup = 0;
+		int loops = 10;
+		int warmupLoops = 3;
+		boolean verbose = false;
+		List<String[]> ifaces = new ArrayList<String[]>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				showHelp();
+				return;
+			}
+			else if (arg.equals("-f"))
+			{ pcapFile = args[++i]; }
+			else if (arg.equals("-v"))
+			{ nodeId = args[++i]; }
+			else if (arg.equals("-i"))
+			{ ifaces.add(args[++i].split(",")); }
+			else if (arg.equals("-in"))
+			{ defaultIfaceName = args[++i]; }
+			else if (arg.equals("-r"))
+			{ routingConfig = args[++i]; }
+			else if (arg.equals("-a"))
+			{ arpConfig = args[++i]; }
+			else if (arg.equals("-x"))
+			{ speedup = Double.parseDouble(args[++i]); }
+			else if (arg.equals("-n"))
+			{ loops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ warmupLoops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-d"))
+			{ verbose = true; }
+		}
+
+		if (null == pcapFile || null == nodeId || ifaces.isEmpty() || loops < 1)
+		{
+			showHelp();
+			return;
+		}
+
+		// Per-packet logging by the device would dominate the measurements,
+		// and building the lines would allocate for every packet
+		PrintStream out = System.out;
+		if (!verbose)
+		{ System.setOut(new PrintStream(OutputStream.nullOutputStream())); }
+
+		Device device;
+		if (nodeId.startsWith("s"))
+		{ device = new Switch(nodeId, null); }
+		else if (nodeId.startsWith("r"))
+		{ device = new Router(nodeId, null); }
+		else
+		{
+			System.err.println("Invalid device ID format - must begin with 's' or 'r'");
+			return;
+		}
+		device.setTracing(verbose);
+
+		for (String[] ifaceSpec : ifaces)
+		{
+			Iface iface = device.addInterface(ifaceSpec[0]);
+			if (ifaceSpec.length < 3)
+			{ continue; }
+			String[] addr = ifaceSpec[1].split("/");
+			int prefix = Integer.parseInt(addr[1]);
+			iface.setIpAddress(IPv4.toIPv4Address(addr[0]));
+			iface.setSubnetMask((0 == prefix) ? 0 : (0xffffffff << (32 - prefix)));
+			iface.setMacAddress(MACAddress.valueOf(ifaceSpec[2]));
+		}
+
+		Iface defaultIface = null;
+		if (defaultIfaceName != null)
+		{
+			defaultIface = device.getInterface(defaultIfaceName);
+			if (null == defaultIface)
+			{
+				System.err.println("Unknown interface " + defaultIfaceName);
+				return;
+			}
+		}
+
+		if (device instanceof Router)
+		{
+			Router router = (Router)device;
+			if (routingConfig != null)
+			{ router.loadRouteTable(routingConfig); }
+			if (arpConfig != null)
+			{ router.loadArpCache(arpConfig); }
+		}
+
+		PcapReplay replay = new PcapReplay(device, defaultIface);
+		if (!replay.load(pcapFile))
+		{ System.exit(1); }
+		out.println(String.format("Loaded %d frames (skipped %d sent by the "
+				+ "device, %d with no interface)", replay.getFrameCount(),
+				replay.getSkippedEgress(), replay.getSkippedUnmatched()));
+		if (0 == replay.getFrameCount())
+		{ return; }
+
+		// Warm up the JIT before measuring
+		for (int i = 0; i < warmupLoops; i++)
+		{ replay.replay(0, false); }
+		device.resetCounters();
+		device.resetLatency();
+
+		long sentBefore = replay.transport.sent;
+		long allocBefore = allocatedBytes();
+		long elapsed = 0;
+		for (int i = 0; i < loops; i++)
+		{ elapsed += replay.replay(speedup, (loops - 1) == i); }
+		long allocAfter = allocatedBytes();
+
+		long packets = (long)replay.getFrameCount() * loops;
+		out.println(String.format("Replayed %d packets in %.1f ms: %.0f pps, "
+				+ "%d packets sent by the device", packets, elapsed / 1e6,
+				packets / (elapsed / 1e9), replay.transport.sent - sentBefore));
+		out.println(replay.latencySummary());
+		if (allocBefore >= 0)
+		{
+			out.println(String.format("Allocated %.0f bytes per packet",
+					(allocAfter - allocBefore) / (double)packets));
+		}
+		for (LatencyStage stage : LatencyStage.values())
+		{
+			LatencyHistogram histogram = device.getLatencyHistogram(stage);
+			if (histogram.getCount() > 0)
+			{ out.println(String.format("%-12s %s", stage, histogram)); }
+		}
+		if (device.getDroppedPackets() > 0)
+		{ out.println("Drops: " + device.getDrops()); }
+		device.destroy();
+	}
+
+	static void showHelp()
+	{
+		System.out.println("pcap Replay Benchmark");
+		System.out.println("Usage: PcapReplay -f pcap_file -v host -i iface[,ip/prefix,mac] [-i ...]");
+		System.out.println("       [-in default_iface] [-r routing_table] [-a arp_cache]");
+		System.out.println("       [-x speedup] [-n loops] [-w warmup_loops] [-d] [-h]");
+		System.out.println("Default: speedup=0 (as fast as possible), loops=10, warmup_loops=3");
+	}
+}
@@ -0,0 +1,167 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * A node in a simulated network. Each node owns an inbox of tasks that are
+ * run one at a time on a shared executor, so the device code behind a node
+ * never runs on two threads at once while different nodes run in parallel.
+ */
+public abstract class SimNode
+{
+	/** Maximum number of pending tasks before arriving frames are dropped */
+	public static final int MAX_INBOX = 4096;
+
+	/** Maximum number of tasks run per turn on the executor, so a busy node
+	 *  cannot hold a worker thread forever */
+	private static final int DRAIN_BATCH = 64;
+
+	/** Name of the node */
+	private String name;
+
+	/** Executor on which the node's tasks run */
+	private Executor executor;
+
+	/** Tasks waiting to run on the node */
+	private Queue<Runnable> inbox;
+
+	/** Number of tasks in the inbox */
+	private AtomicInteger pending;
+
+	/** True if a drain of the inbox has been handed to the executor */
+	private AtomicBoolean scheduled;
+
+	/** Peers of the node; maps local interface names to the far end of
+	 *  the link attached to the interface */
+	private Map<String,Endpoint> peers;
+
+	/** Number of frames dropped because the inbox was full */
+	private AtomicLong inboxDrops;
+
+	/** The far end of a virtual link */
+	static class Endpoint
+	{
+		SimNode node;
+		String ifaceName;
+
+		Endpoint(SimNode node, String ifaceName)
+		{
+			this.node = node;
+			this.ifaceName = ifaceName;
+		}
+	}
+
+	public SimNode(String name, Executor executor)
+	{
+		this.name = name;
+		this.executor = executor;
+		this.inbox = new ConcurrentLinkedQueue<Runnable>();
+		this.pending = new AtomicInteger();
+		this.scheduled = new AtomicBoolean(false);
+		this.peers = new HashMap<String,Endpoint>();
+		this.inboxDrops = new AtomicLong();
+	}
+
+	public String getName()
+	{ return this.name; }
+
+	/**
+	 * @return number of frames dropped because the node fell behind
+	 */
+	public long getInboxDrops()
+	{ return this.inboxDrops.get(); }
+
+	/**
+	 * Connect a local interface to an interface on another node.
+	 */
+	static void connect(SimNode a, String ifaceA, SimNode b, String ifaceB)
+	{
+		a.peers.put(ifaceA, new Endpoint(b, ifaceB));
+		b.peers.put(ifaceB, new Endpoint(a, ifaceA));
+	}
+
+	/**
+	 * Run a task on the node, after any tasks already queued.
+	 */
+	public void submit(Runnable task)
+	{
+		this.pending.incrementAndGet();
+		this.inbox.add(task);
+		this.schedule();
+	}
+
+	private void schedule()
+	{
+		if (this.scheduled.compareAndSet(false, true))
+		{ this.executor.execute(this::drain); }
+	}
+
+	private void drain()
+	{
+		Runnable task;
+		int count = 0;
+		while (count++ < DRAIN_BATCH && (task = this.inbox.poll()) != null)
+		{
+			this.pending.decrementAndGet();
+			try
+			{ task.run(); }
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+		}
+		this.scheduled.set(false);
+
+		// Tasks may remain after a full batch, or have been queued after the
+		// last poll but before the scheduled flag was cleared
+		if (!this.inbox.isEmpty())
+		{ this.schedule(); }
+	}
+
+	/**
+	 * Send a frame out a local interface onto its virtual link.
+	 * @return true if the interface is attached to a link, otherwise false
+	 */
+	public boolean transmit(Ethernet etherPacket, String ifaceName)
+	{
+		// Frames cross links as bytes, so the receiver never shares packet
+		// objects with the sender
+		return this.transmit(etherPacket.serialize(), ifaceName);
+	}
+
+	/**
+	 * Send a serialized frame out a local interface onto its virtual link.
+	 * @return true if the interface is attached to a link, otherwise false
+	 */
+	public boolean transmit(final byte[] frame, String ifaceName)
+	{
+		Endpoint peer = this.peers.get(ifaceName);
+		if (null == peer)
+		{ return false; }
+
+		final SimNode node = peer.node;
+		final String peerIface = peer.ifaceName;
+		if (node.pending.get() >= MAX_INBOX)
+		{
+			node.inboxDrops.incrementAndGet();
+			return true;
+		}
+		node.submit(() -> node.receive(frame, peerIface));
+		return true;
+	}
+
+	/**
+	 * Handle a frame that arrived on one of the node's interfaces. Always
+	 * runs on the node's inbox.
+	 * @param frame bytes of the Ethernet frame
+	 * @param ifaceName name of the interface on which the frame arrived
+	 */
+	protected abstract void receive(byte[] frame, String ifaceName);
+}
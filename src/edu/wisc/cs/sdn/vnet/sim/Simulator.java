@@ -0,0 +1,506 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.RIPv2Entry;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+
+/**
+ * Runs every router and switch of a topology file inside one JVM, wired
+ * together by in-memory links instead of Mininet and POX. Routers run RIP;
+ * the simulator reports how long RIP takes to converge and then measures
+ * forwarding throughput and latency of UDP traffic between all hosts.
+ * Switches may run the spanning tree protocol, so topologies with loops of
+ * switches can be simulated.
+ */
+public class Simulator
+{
+	/** Interval at which routers check their RIP timers, and switches their
+	 *  spanning tree timers, as in Main */
+	private static final long RIP_TICK_MS = 100;
+
+	/** Interval at which convergence is checked */
+	private static final long CONVERGENCE_POLL_MS = 50;
+
+	/** Number of frames a host sends per turn on its inbox */
+	private static final int SEND_BURST = 16;
+
+	/** Number of flows, by source port, each host sends to each other host */
+	private static final int FLOWS_PER_PAIR = 8;
+
+	/** MAC addresses assigned to router and switch interfaces are locally
+	 *  administered */
+	private static final long ROUTER_MAC_BASE = 0x020000000000L;
+
+	private Topology topo;
+	private ExecutorService executor;
+	private ScheduledExecutorService timer;
+	private Map<String,HostNode> hosts;
+	private Map<String,DeviceNode> routers;
+	private Map<String,DeviceNode> switches;
+
+	/** Whether switches run the spanning tree protocol */
+	private boolean spanningTree;
+
+	/** Static ARP table for the whole network; maps IPs to MACs */
+	private Map<Integer,MACAddress> arpTable;
+
+	/** Networks attached to routers, which RIP must learn */
+	private Set<Integer> subnets;
+
+	public Simulator(Topology topo, int workers, boolean spanningTree)
+	{
+		this.topo = topo;
+		this.spanningTree = spanningTree;
+		this.executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "sim-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "sim-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		this.hosts = new HashMap<String,HostNode>();
+		this.routers = new HashMap<String,DeviceNode>();
+		this.switches = new HashMap<String,DeviceNode>();
+		this.arpTable = new ConcurrentHashMap<Integer,MACAddress>();
+		this.subnets = new HashSet<Integer>();
+	}
+
+	/**
+	 * Create a node for every host, router, and switch and connect them.
+	 * @return true if the network was built, otherwise false
+	 */
+	public boolean build()
+	{
+		long nextMac = 1;
+		for (Topology.Host host : this.topo.getHosts().values())
+		{
+			MACAddress mac = MACAddress.valueOf(nextMac++);
+			this.hosts.put(host.name, new HostNode(host.name, host.ip,
+					host.mask, host.gateway, mac, this.arpTable, this.executor));
+			this.arpTable.put(host.ip, mac);
+		}
+		for (Topology.Router router : this.topo.getRouters().values())
+		{
+			this.routers.put(router.name, new DeviceNode(
+					new Router(router.name, null), this.executor));
+		}
+		for (String name : this.topo.getSwitches())
+		{
+			this.switches.put(name, new DeviceNode(
+					new Switch(name, null), this.executor));
+		}
+
+		// Name and configure interfaces in link order, like run_mininet.py
+		// and the hardware info sent by POX
+		Map<String,Integer> ifaceCounts = new HashMap<String,Integer>();
+		for (String[] link : this.topo.getLinks())
+		{
+			SimNode[] nodes = new SimNode[2];
+			String[] ifaceNames = new String[2];
+			for (int i = 0; i < 2; i++)
+			{
+				String name = link[i];
+				Integer count = ifaceCounts.get(name);
+				count = (null == count) ? 1 : count + 1;
+				ifaceCounts.put(name, count);
+
+				if (this.hosts.containsKey(name))
+				{
+					if (count > 1)
+					{
+						System.err.println("Host " + name + " has more than one link");
+						return false;
+					}
+					nodes[i] = this.hosts.get(name);
+					ifaceNames[i] = HostNode.IFACE_NAME;
+				}
+				else if (this.routers.containsKey(name))
+				{
+					Topology.Router router = this.topo.getRouters().get(name);
+					if (count > router.ips.size())
+					{
+						System.err.println("Router " + name
+								+ " has more links than addresses");
+						return false;
+					}
+					nodes[i] = this.routers.get(name);
+					ifaceNames[i] = "eth" + count;
+					Iface iface = this.routers.get(name).getDevice()
+							.addInterface(ifaceNames[i]);
+					iface.setIpAddress(router.ips.get(count - 1));
+					iface.setSubnetMask(router.masks.get(count - 1));
+					iface.setMacAddress(MACAddress.valueOf(
+							ROUTER_MAC_BASE | nextMac++));
+					this.arpTable.put(iface.getIpAddress(), iface.getMacAddress());
+					this.subnets.add(iface.getIpAddress() & iface.getSubnetMask());
+				}
+				else
+				{
+					nodes[i] = this.switches.get(name);
+					ifaceNames[i] = "eth" + count;
+					Iface iface = this.switches.get(name).getDevice()
+							.addInterface(ifaceNames[i]);
+					iface.setMacAddress(MACAddress.valueOf(
+							ROUTER_MAC_BASE | nextMac++));
+				}
+			}
+			SimNode.connect(nodes[0], ifaceNames[0], nodes[1], ifaceNames[1]);
+		}
+
+		// Give every router a complete static ARP cache, like run_mininet.py
+		for (DeviceNode node : this.routers.values())
+		{
+			Router router = (Router)node.getDevice();
+			for (Map.Entry<Integer,MACAddress> entry : this.arpTable.entrySet())
+			{ router.getArpCache().insert(entry.getValue(), entry.getKey()); }
+		}
+
+		// Expose every device's counters over JMX
+		for (DeviceNode node : this.routers.values())
+		{ node.getDevice().registerMBeans(); }
+		for (DeviceNode node : this.switches.values())
+		{ node.getDevice().registerMBeans(); }
+		return true;
+	}
+
+	/**
+	 * @param tracing true to have every device print a trace of every packet
+	 *        it handles
+	 */
+	public void setTracing(boolean tracing)
+	{
+		for (DeviceNode node : this.routers.values())
+		{ node.getDevice().setTracing(tracing); }
+		for (DeviceNode node : this.switches.values())
+		{ node.getDevice().setTracing(tracing); }
+	}
+
+	/**
+	 * Start RIP on every router, and the spanning tree on every switch if
+	 * enabled, and the timer that drives their updates.
+	 */
+	public void start()
+	{
+		for (DeviceNode node : this.routers.values())
+		{
+			final Router router = (Router)node.getDevice();
+			node.submit(router::startRIPTable);
+		}
+		if (this.spanningTree)
+		{
+			// Before any traffic, so no frame reaches a switch not yet
+			// running the protocol
+			for (DeviceNode node : this.switches.values())
+			{ ((Switch)node.getDevice()).enableSpanningTree(); }
+		}
+		this.timer.scheduleAtFixedRate(() -> {
+			for (DeviceNode node : this.routers.values())
+			{
+				final Router router = (Router)node.getDevice();
+				node.submit(router::checkLastRIPTime);
+			}
+			if (this.spanningTree)
+			{
+				for (DeviceNode node : this.switches.values())
+				{
+					final Switch sw = (Switch)node.getDevice();
+					node.submit(sw::checkSpanningTree);
+				}
+			}
+		}, RIP_TICK_MS, RIP_TICK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Count the routers whose RIP tables contain a usable route to every
+	 * network attached to a router.
+	 */
+	public int countConvergedRouters() throws InterruptedException
+	{
+		final AtomicInteger converged = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(this.routers.size());
+		for (DeviceNode node : this.routers.values())
+		{
+			final Router router = (Router)node.getDevice();
+			node.submit(() -> {
+				Set<Integer> known = new HashSet<Integer>();
+				for (RIPv2Entry entry : router.getRipTable().getEntries())
+				{
+					if (entry.getMetric() < RIPv2Entry.INFINITY_METRIC)
+					{ known.add(entry.getAddress()); }
+				}
+				if (known.containsAll(this.subnets))
+				{ converged.incrementAndGet(); }
+				done.countDown();
+			});
+		}
+		done.await();
+		return converged.get();
+	}
+
+	/**
+	 * Wait for RIP to converge on every router.
+	 * @param timeoutMs maximum time to wait
+	 * @return milliseconds until convergence; -1 if RIP did not converge
+	 */
+	public long awaitConvergence(long timeoutMs) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() - start < timeoutMs)
+		{
+			if (this.countConvergedRouters() == this.routers.size())
+			{ return System.currentTimeMillis() - start; }
+			Thread.sleep(CONVERGENCE_POLL_MS);
+		}
+		return -1;
+	}
+
+	/**
+	 * Count the switches whose ports have all settled in the states their
+	 * spanning tree roles call for.
+	 */
+	public int countStableSwitches()
+	{
+		int stable = 0;
+		for (DeviceNode node : this.switches.values())
+		{
+			if (((Switch)node.getDevice()).isSpanningTreeStable())
+			{ stable++; }
+		}
+		return stable;
+	}
+
+	/**
+	 * Wait for the spanning tree to converge on every switch.
+	 * @param timeoutMs maximum time to wait
+	 * @return milliseconds until convergence; -1 if it did not converge
+	 */
+	public long awaitSpanningTree(long timeoutMs) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() - start < timeoutMs)
+		{
+			if (this.countStableSwitches() == this.switches.size())
+			{ return System.currentTimeMillis() - start; }
+			Thread.sleep(CONVERGENCE_POLL_MS);
+		}
+		return -1;
+	}
+
+	/**
+	 * Send UDP frames from every host to every other host, round-robin and
+	 * spread over several flows, and wait for them to be delivered.
+	 * @param framesPerHost number of frames each host sends
+	 * @param timeoutMs maximum time to wait for delivery
+	 * @return a summary of the run
+	 */
+	public String measureThroughput(final int framesPerHost, long timeoutMs)
+			throws InterruptedException
+	{
+		final List<HostNode> hostList = new ArrayList<HostNode>(this.hosts.values());
+		final AtomicInteger sent = new AtomicInteger();
+		if (hostList.size() < 2)
+		{ return "Throughput: need at least two hosts"; }
+
+		long start = System.nanoTime();
+		for (int h = 0; h < hostList.size(); h++)
+		{
+			final HostNode src = hostList.get(h);
+			final int offset = h;
+			Runnable burst = new Runnable() {
+				private int count = 0;
+				public void run()
+				{
+					for (int i = 0; i < SEND_BURST && count < framesPerHost; i++, count++)
+					{
+						int d = (offset + 1 + count % (hostList.size() - 1))
+								% hostList.size();
+						int flow = (count / (hostList.size() - 1)) % FLOWS_PER_PAIR;
+						if (src.sendTo(hostList.get(d).getIpAddress(), flow))
+						{ sent.incrementAndGet(); }
+					}
+					if (count < framesPerHost)
+					{ src.submit(this); }
+				}
+			};
+			src.submit(burst);
+		}
+
+		// Wait until every frame arrives or delivery stops making progress
+		long lastReceived = -1;
+		long lastProgress = System.nanoTime();
+		long end = start;
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while (System.nanoTime() < deadline)
+		{
+			long received = 0;
+			for (HostNode host : hostList)
+			{ received += host.getReceived(); }
+			if (received != lastReceived)
+			{
+				lastReceived = received;
+				lastProgress = end = System.nanoTime();
+			}
+			if (received >= (long)framesPerHost * hostList.size()
+					|| System.nanoTime() - lastProgress > TimeUnit.SECONDS.toNanos(1))
+			{ break; }
+			Thread.sleep(1);
+		}
+
+		long latencySum = 0, latencyMax = 0, drops = 0;
+		for (HostNode host : hostList)
+		{
+			latencySum += host.getLatencySumNanos();
+			latencyMax = Math.max(latencyMax, host.getLatencyMaxNanos());
+		}
+		for (SimNode node : this.allNodes())
+		{ drops += node.getInboxDrops(); }
+
+		double seconds = Math.max(end - start, 1) / 1e9;
+		return String.format("Throughput: sent %d, delivered %d (%.1f%%), "
+				+ "%.0f frames/s, latency avg %.1f us max %.1f us, "
+				+ "inbox drops %d",
+				sent.get(), lastReceived,
+				(0 == sent.get()) ? 0.0 : 100.0 * lastReceived / sent.get(),
+				lastReceived / seconds,
+				(0 == lastReceived) ? 0.0 : latencySum / 1e3 / lastReceived,
+				latencyMax / 1e3, drops);
+	}
+
+	private List<SimNode> allNodes()
+	{
+		List<SimNode> nodes = new ArrayList<SimNode>();
+		nodes.addAll(this.hosts.values());
+		nodes.addAll(this.routers.values());
+		nodes.addAll(this.switches.values());
+		return nodes;
+	}
+
+	/**
+	 * Stop all nodes and release their resources.
+	 */
+	public void shutdown()
+	{
+		this.timer.shutdownNow();
+		this.executor.shutdownNow();
+		for (DeviceNode node : this.routers.values())
+		{ node.getDevice().destroy(); }
+		for (DeviceNode node : this.switches.values())
+		{ node.getDevice().destroy(); }
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		String topoFile = null;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int framesPerHost = 1000;
+		long convergenceTimeout = 60000;
+		boolean verbose = false;
+		boolean spanningTree = false;
+
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				showHelp();
+				return;
+			}
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-n"))
+			{ framesPerHost = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-c"))
+			{ convergenceTimeout = Long.parseLong(args[++i]) * 1000; }
+			else if (arg.equals("-v"))
+			{ verbose = true; }
+			else if (arg.equals("-stp"))
+			{ spanningTree = true; }
+		}
+
+		if (null == topoFile)
+		{
+			showHelp();
+			return;
+		}
+
+		Topology topo = Topology.load(topoFile);
+		if (null == topo)
+		{ System.exit(1); }
+
+		// Per-packet logging by the devices would dominate run time, and
+		// building the lines would allocate for every packet
+		PrintStream out = System.out;
+		if (!verbose)
+		{ System.setOut(new PrintStream(OutputStream.nullOutputStream())); }
+
+		long buildStart = System.currentTimeMillis();
+		Simulator sim = new Simulator(topo, workers, spanningTree);
+		if (!sim.build())
+		{ System.exit(1); }
+		sim.setTracing(verbose);
+		out.println(String.format("Built %d hosts, %d routers, %d switches, "
+				+ "%d links in %d ms", topo.getHosts().size(),
+				topo.getRouters().size(), topo.getSwitches().size(),
+				topo.getLinks().size(), System.currentTimeMillis() - buildStart));
+
+		sim.start();
+		long convergence = sim.awaitConvergence(convergenceTimeout);
+		if (convergence < 0)
+		{
+			out.println(String.format("RIP did not converge within %d s "
+					+ "(%d of %d routers converged)", convergenceTimeout / 1000,
+					sim.countConvergedRouters(), topo.getRouters().size()));
+		}
+		else
+		{ out.println("RIP converged in " + convergence + " ms"); }
+
+		if (spanningTree)
+		{
+			long treeConvergence = sim.awaitSpanningTree(convergenceTimeout);
+			if (treeConvergence < 0)
+			{
+				out.println(String.format("Spanning tree did not converge "
+						+ "within %d s (%d of %d switches stable)",
+						convergenceTimeout / 1000, sim.countStableSwitches(),
+						topo.getSwitches().size()));
+			}
+			else
+			{ out.println("Spanning tree converged in " + treeConvergence + " ms"); }
+		}
+
+		out.println(sim.measureThroughput(framesPerHost, 60000));
+		sim.shutdown();
+	}
+
+	static void showHelp()
+	{
+		System.out.println("SDN Virtual Network Simulator");
+		System.out.println("Usage: Simulator -t topo_file [-w workers] [-n frames_per_host]");
+		System.out.println("       [-c convergence_timeout_s] [-stp] [-v] [-h]");
+		System.out.println("-stp runs the spanning tree protocol on switches");
+	}
+}
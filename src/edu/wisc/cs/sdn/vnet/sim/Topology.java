@@ -0,0 +1,225 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A network topology described by a topology file (see topos/). Each line
+ * declares a host, router, switch, or link:
+ * <pre>
+ * host h1 10.0.1.101/24 10.0.1.1
+ * router r1 10.0.1.1/24 10.0.2.1/24
+ * switch s1
+ * link r1 h1
+ * </pre>
+ * Router and switch interfaces are named eth1, eth2, ... in the order the
+ * device's links appear in the file, and the i-th router interface is
+ * assigned the i-th address on the router line, matching run_mininet.py.
+ */
+public class Topology
+{
+	/** A host declared in the topology */
+	public static class Host
+	{
+		String name;
+		int ip;
+		int mask;
+		/** Default gateway; 0 if the host has none */
+		int gateway;
+	}
+
+	/** A router declared in the topology */
+	public static class Router
+	{
+		String name;
+		List<Integer> ips = new ArrayList<Integer>();
+		List<Integer> masks = new ArrayList<Integer>();
+	}
+
+	/** Hosts in the topology; maps host names to hosts */
+	private Map<String,Host> hosts;
+
+	/** Routers in the topology; maps router names to routers */
+	private Map<String,Router> routers;
+
+	/** Names of the switches in the topology */
+	private List<String> switches;
+
+	/** Links in the topology; each link is a pair of node names */
+	private List<String[]> links;
+
+	private Topology()
+	{
+		this.hosts = new LinkedHashMap<String,Host>();
+		this.routers = new LinkedHashMap<String,Router>();
+		this.switches = new ArrayList<String>();
+		this.links = new ArrayList<String[]>();
+	}
+
+	public Map<String,Host> getHosts()
+	{ return this.hosts; }
+
+	public Map<String,Router> getRouters()
+	{ return this.routers; }
+
+	public List<String> getSwitches()
+	{ return this.switches; }
+
+	public List<String[]> getLinks()
+	{ return this.links; }
+
+	/**
+	 * Load a topology from a file.
+	 * @param filename name of the topology file
+	 * @return the topology; null if the file could not be read or is invalid
+	 */
+	public static Topology load(String filename)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		Topology topo = new Topology();
+		int lineNum = 0;
+		while (true)
+		{
+			String line = null;
+			try
+			{ line = reader.readLine(); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+			lineNum++;
+
+			String[] parts = line.trim().split("\\s+");
+			if (0 == parts[0].length() || parts[0].startsWith("#"))
+			{ continue; }
+
+			if (!topo.parseLine(parts))
+			{
+				System.err.println("Error in topology file line " + lineNum
+						+ ": " + line);
+				try { reader.close(); } catch (IOException f) {};
+				return null;
+			}
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+
+		// Make sure every link connects declared nodes
+		for (String[] link : topo.links)
+		{
+			for (String name : link)
+			{
+				if (!topo.hosts.containsKey(name)
+						&& !topo.routers.containsKey(name)
+						&& !topo.switches.contains(name))
+				{
+					System.err.println("Error in topology file, link to unknown node "
+							+ name);
+					return null;
+				}
+			}
+		}
+
+		return topo;
+	}
+
+	private boolean parseLine(String[] parts)
+	{
+		try
+		{
+			if (parts[0].equals("host"))
+			{
+				if (parts.length != 4)
+				{ return false; }
+				Host host = new Host();
+				host.name = parts[1];
+				int[] addr = parseAddress(parts[2]);
+				host.ip = addr[0];
+				host.mask = addr[1];
+				host.gateway = parts[3].equals("-") ? 0
+						: IPv4.toIPv4Address(parts[3]);
+				this.hosts.put(host.name, host);
+			}
+			else if (parts[0].equals("router"))
+			{
+				if (parts.length < 3)
+				{ return false; }
+				Router router = new Router();
+				router.name = parts[1];
+				for (int i = 2; i < parts.length; i++)
+				{
+					int[] addr = parseAddress(parts[i]);
+					router.ips.add(addr[0]);
+					router.masks.add(addr[1]);
+				}
+				this.routers.put(router.name, router);
+			}
+			else if (parts[0].equals("switch"))
+			{
+				if (parts.length != 2)
+				{ return false; }
+				this.switches.add(parts[1]);
+			}
+			else if (parts[0].equals("link"))
+			{
+				if (parts.length != 3)
+				{ return false; }
+				this.links.add(new String[] { parts[1], parts[2] });
+			}
+			else
+			{ return false; }
+		}
+		catch (IllegalArgumentException e)
+		{ return false; }
+		return true;
+	}
+
+	/**
+	 * Parse an address of the form a.b.c.d/prefix.
+	 * @return a two-element array containing the IP address and subnet mask
+	 */
+	private static int[] parseAddress(String addr)
+	{
+		int slash = addr.indexOf('/');
+		if (slash < 0)
+		{ throw new IllegalArgumentException("Missing prefix length: " + addr); }
+		int prefix = Integer.parseInt(addr.substring(slash + 1));
+		if (prefix < 0 || prefix > 32)
+		{ throw new IllegalArgumentException("Invalid prefix length: " + addr); }
+		int mask = (0 == prefix) ? 0 : (0xffffffff << (32 - prefix));
+		return new int[] { IPv4.toIPv4Address(addr.substring(0, slash)), mask };
+	}
+
+	/**
+	 * @return the total number of hosts, routers, and switches
+	 */
+	public int size()
+	{ return this.hosts.size() + this.routers.size() + this.switches.size(); }
+}
@@ -0,0 +1,636 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.floodlightcontroller.packet.BPDU;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.LLC;
+import net.floodlightcontroller.packet.MACAddress;
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Rapid spanning tree protocol (802.1D-2004) for a switch. Each port is
+ * given a role from the best information heard on it: the root port leads
+ * toward the root bridge, designated ports lead away from it, and alternate
+ * and backup ports, which would close a loop, discard frames.
+ *
+ * A designated port that is not yet forwarding proposes to the bridge on
+ * the other end; that bridge blocks its own designated ports, so no loop
+ * can form through them, and agrees, letting the port forward at once.
+ * Ports that never hear a BPDU are taken to be edge ports, to hosts, and
+ * forward after a short delay. A designated port that receives no
+ * agreement falls back to the forward delay timer, learning and then
+ * forwarding. Information not refreshed within three hello times ages out,
+ * so an alternate port takes over from a failed root port within seconds.
+ * When a port starts forwarding, MAC bindings learned elsewhere are
+ * flushed, and the change is announced to the other bridges.
+ *
+ * Methods are synchronized, since the switch's timer thread calls tick()
+ * while packets are handled; a port's state may be read without locking.
+ */
+class SpanningTree
+{
+	/** Role of a port in the tree */
+	enum Role
+	{
+		ROOT,
+		DESIGNATED,
+		ALTERNATE,
+		BACKUP
+	}
+
+	/** What a port does with the frames it receives and sends */
+	enum State
+	{
+		/** Neither learns nor forwards */
+		DISCARDING,
+		/** Learns source addresses, but does not forward */
+		LEARNING,
+		FORWARDING
+	}
+
+	/** Priority of the bridge, and of each port, in their IDs */
+	private static final long BRIDGE_PRIORITY = 32768;
+	private static final int PORT_PRIORITY = 128;
+
+	/** Cost of reaching the root through a port; that of a 1 Gb/s link */
+	private static final int PATH_COST = 20000;
+
+	/** Timers, in milliseconds: the defaults of 802.1D-2004 */
+	private static final long HELLO_TIME = 2000;
+	private static final long MAX_AGE = 20000;
+	private static final long FORWARD_DELAY = 15000;
+
+	/** Time a port waits for a BPDU before it is taken to be an edge port */
+	private static final long EDGE_DELAY = 3000;
+
+	/** Increase in message age each bridge adds, in 1/256ths of a second */
+	private static final int MESSAGE_AGE_INCREMENT = 256;
+
+	/** A port of the bridge */
+	private static class Port
+	{
+		Iface iface;
+		short id;
+		Role role = Role.DESIGNATED;
+		volatile State state = State.DISCARDING;
+
+		/** Best designated bridge's information heard on the port */
+		boolean hasInfo;
+		long infoRoot;
+		int infoCost;
+		long infoBridge;
+		short infoPort;
+		int infoAge;
+		long infoExpires;
+
+		/** Whether the port leads to hosts, having heard no BPDUs */
+		boolean edge;
+		boolean bpduSeen;
+		long edgeDelayExpires;
+
+		/** Whether the port has proposed to forward, and whether the
+		 *  bridge on the other end agreed */
+		boolean proposing;
+		boolean agreed;
+
+		/** When a designated port falls back to its next state */
+		long forwardDelayExpires;
+
+		/** When the port stops announcing a topology change */
+		long topologyChangeExpires;
+
+		/** Whether MAC bindings learned on the port should be flushed */
+		boolean flush;
+	}
+
+	private Device device;
+	private long bridgeId;
+
+	/** Ports, in order of name */
+	private Map<Iface,Port> ports;
+
+	/** Root bridge, cost of reaching it, and port leading to it; null if
+	 *  this bridge is the root */
+	private long rootId;
+	private int rootCost;
+	private Port rootPort;
+
+	private long nextHello;
+
+	/** Whether any port has MAC bindings to flush; read without locking */
+	private volatile boolean flushPending;
+
+	/**
+	 * Start the protocol on every interface of a switch.
+	 * @param device the switch
+	 */
+	SpanningTree(Device device)
+	{
+		this.device = device;
+		this.ports = new LinkedHashMap<Iface,Port>();
+
+		// Number ports in order of name, and identify the bridge by its
+		// lowest MAC address, or one derived from its name if none is set
+		Map<String,Iface> sorted = new TreeMap<String,Iface>(device.getInterfaces());
+		long mac = Long.MAX_VALUE;
+		int number = 1;
+		for (Iface iface : sorted.values())
+		{
+			Port port = new Port();
+			port.iface = iface;
+			port.id = (short)((PORT_PRIORITY << 8) | (number++ & 0xff));
+			this.ports.put(iface, port);
+			if (iface.getMacAddressLong() != Iface.NO_MAC_ADDRESS)
+			{ mac = Math.min(mac, iface.getMacAddressLong()); }
+		}
+		if (Long.MAX_VALUE == mac)
+		{ mac = 0x020000000000L | (device.getHost().hashCode() & 0xffffffffL); }
+		this.bridgeId = (BRIDGE_PRIORITY << 48) | mac;
+		this.rootId = this.bridgeId;
+
+		long now = System.currentTimeMillis();
+		this.nextHello = now + HELLO_TIME;
+		for (Port port : this.ports.values())
+		{
+			port.edgeDelayExpires = now + EDGE_DELAY;
+			this.propose(port, now);
+		}
+	}
+
+	long getBridgeId()
+	{ return this.bridgeId; }
+
+	/**
+	 * @return true if the port may learn source addresses from frames it
+	 *         receives
+	 */
+	boolean isLearning(Iface iface)
+	{
+		Port port = this.ports.get(iface);
+		return (null == port) || port.state != State.DISCARDING;
+	}
+
+	/**
+	 * @return true if frames may be received on, or sent out, the port
+	 */
+	boolean isForwarding(Iface iface)
+	{
+		Port port = this.ports.get(iface);
+		return (null == port) || State.FORWARDING == port.state;
+	}
+
+	/**
+	 * @return ports whose MAC bindings must be flushed; empty if none
+	 */
+	synchronized List<Iface> takeFlushes()
+	{
+		List<Iface> flushes = new ArrayList<Iface>();
+		if (!this.flushPending)
+		{ return flushes; }
+		for (Port port : this.ports.values())
+		{
+			if (port.flush)
+			{
+				flushes.add(port.iface);
+				port.flush = false;
+			}
+		}
+		this.flushPending = false;
+		return flushes;
+	}
+
+	/**
+	 * @return true if every port has settled in the state its role calls
+	 *         for, so the tree has converged
+	 */
+	synchronized boolean isStable()
+	{
+		for (Port port : this.ports.values())
+		{
+			State settled = (Role.ROOT == port.role || Role.DESIGNATED == port.role)
+					? State.FORWARDING : State.DISCARDING;
+			if (port.state != settled)
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Process a BPDU received on a port.
+	 * @param bpdu the BPDU
+	 * @param iface interface it was received on
+	 */
+	synchronized void receive(BPDU bpdu, Iface iface)
+	{
+		Port port = this.ports.get(iface);
+		if (null == port || bpdu.isTruncated())
+		{ return; }
+		long now = System.currentTimeMillis();
+
+		// A port that hears a BPDU leads to another bridge
+		port.bpduSeen = true;
+		port.edge = false;
+
+		if (BPDU.TYPE_TCN == bpdu.getType()
+				|| bpdu.hasFlag(BPDU.FLAG_TOPOLOGY_CHANGE))
+		{ this.topologyChangeReceived(port, now); }
+		if (BPDU.TYPE_TCN == bpdu.getType())
+		{ return; }
+
+		byte role = bpdu.getPortRole();
+		if (BPDU.TYPE_CONFIG == bpdu.getType() || BPDU.ROLE_DESIGNATED == role)
+		{
+			this.receiveDesignated(bpdu, port, now);
+			return;
+		}
+
+		// The bridge on the other end now has a root or alternate port here,
+		// so any information it sent as the designated bridge is stale
+		if (port.hasInfo && port.infoBridge == bpdu.getBridgeId())
+		{
+			port.hasInfo = false;
+			this.updateRoles(now);
+		}
+		if (bpdu.hasFlag(BPDU.FLAG_AGREEMENT) && Role.DESIGNATED == port.role
+				&& bpdu.getRootId() == this.rootId)
+		{
+			port.agreed = true;
+			port.proposing = false;
+			this.setState(port, State.FORWARDING, now);
+		}
+	}
+
+	/**
+	 * Process a BPDU sent by the designated port of the bridge on the other
+	 * end of a port.
+	 */
+	private void receiveDesignated(BPDU bpdu, Port port, long now)
+	{
+		// Information that has crossed too many bridges is discarded
+		if ((bpdu.getMessageAge() & 0xffff) >= (bpdu.getMaxAge() & 0xffff))
+		{ return; }
+
+		int comparison = compare(bpdu.getRootId(), bpdu.getRootPathCost(),
+				bpdu.getBridgeId(), bpdu.getPortId(), port.infoRoot,
+				port.infoCost, port.infoBridge, port.infoPort);
+		boolean sameSender = port.hasInfo
+				&& port.infoBridge == bpdu.getBridgeId()
+				&& port.infoPort == bpdu.getPortId();
+		if (!port.hasInfo || comparison < 0 || sameSender)
+		{
+			boolean changed = !port.hasInfo || comparison != 0;
+			port.hasInfo = true;
+			port.infoRoot = bpdu.getRootId();
+			port.infoCost = bpdu.getRootPathCost();
+			port.infoBridge = bpdu.getBridgeId();
+			port.infoPort = bpdu.getPortId();
+			port.infoAge = bpdu.getMessageAge() & 0xffff;
+			port.infoExpires = now + 3 * HELLO_TIME;
+			if (changed)
+			{ this.updateRoles(now); }
+		}
+
+		// Correct a bridge that claims to be designated with worse
+		// information than this bridge's
+		if (Role.DESIGNATED == port.role)
+		{
+			if (compare(bpdu.getRootId(), bpdu.getRootPathCost(),
+					bpdu.getBridgeId(), bpdu.getPortId(), this.rootId,
+					this.rootCost, this.bridgeId, port.id) > 0)
+			{ this.sendBpdu(port, false, now); }
+			return;
+		}
+
+		// Agree to a proposal once no loop can form through this bridge's
+		// designated ports; an alternate port already discards
+		if (bpdu.hasFlag(BPDU.FLAG_PROPOSAL))
+		{
+			if (Role.ROOT == port.role)
+			{ this.sync(now); }
+			this.sendBpdu(port, true, now);
+		}
+	}
+
+	/**
+	 * Choose the root port and give every port its role.
+	 */
+	private void updateRoles(long now)
+	{
+		// The root port has the best path to the best root; a port hearing
+		// this bridge's own BPDUs cannot lead to the root
+		Port bestPort = null;
+		long bestRoot = this.bridgeId;
+		int bestCost = 0;
+		long bestBridge = this.bridgeId;
+		short bestPortId = 0;
+		for (Port port : this.ports.values())
+		{
+			if (!port.hasInfo || port.infoBridge == this.bridgeId)
+			{ continue; }
+			int cost = port.infoCost + PATH_COST;
+			int comparison = compare(port.infoRoot, cost, port.infoBridge,
+					port.infoPort, bestRoot, bestCost, bestBridge, bestPortId);
+			if (comparison < 0 || (0 == comparison && bestPort != null
+					&& (port.id & 0xffff) < (bestPort.id & 0xffff)))
+			{
+				bestPort = port;
+				bestRoot = port.infoRoot;
+				bestCost = cost;
+				bestBridge = port.infoBridge;
+				bestPortId = port.infoPort;
+			}
+		}
+
+		// Agreements were given for the old information
+		if (bestRoot != this.rootId || bestCost != this.rootCost)
+		{
+			for (Port port : this.ports.values())
+			{ port.agreed = false; }
+		}
+		this.rootId = bestRoot;
+		this.rootCost = bestCost;
+		this.rootPort = bestPort;
+
+		for (Port port : this.ports.values())
+		{
+			Role role = Role.DESIGNATED;
+			if (port == bestPort)
+			{ role = Role.ROOT; }
+			else if (port.hasInfo && compare(port.infoRoot, port.infoCost,
+					port.infoBridge, port.infoPort, this.rootId, this.rootCost,
+					this.bridgeId, port.id) < 0)
+			{ role = (port.infoBridge == this.bridgeId) ? Role.BACKUP : Role.ALTERNATE; }
+			this.setRole(port, role, now);
+		}
+	}
+
+	private void setRole(Port port, Role role, long now)
+	{
+		if (port.role == role)
+		{ return; }
+		System.out.println(String.format("Spanning tree: %s %s is now %s",
+				this.device.getHost(), port.iface.getName(),
+				role.name().toLowerCase()));
+		port.role = role;
+
+		if (Role.ROOT == role)
+		{
+			// The old root port, if any, no longer forwards, so the new one
+			// may forward at once
+			port.proposing = false;
+			this.setState(port, State.FORWARDING, now);
+		}
+		else if (Role.DESIGNATED == role)
+		{
+			if (port.edge)
+			{ this.setState(port, State.FORWARDING, now); }
+			else if (port.state != State.FORWARDING)
+			{ this.propose(port, now); }
+			else
+			{ this.sendBpdu(port, false, now); }
+		}
+		else
+		{
+			port.proposing = false;
+			port.agreed = false;
+			this.setState(port, State.DISCARDING, now);
+		}
+	}
+
+	/**
+	 * Block every designated port that has not agreed to forward, and have
+	 * it propose, so no loop can form through them when a new path to the
+	 * root opens.
+	 */
+	private void sync(long now)
+	{
+		for (Port port : this.ports.values())
+		{
+			if (Role.DESIGNATED == port.role && !port.edge && !port.agreed
+					&& port.state != State.DISCARDING)
+			{
+				this.setState(port, State.DISCARDING, now);
+				this.propose(port, now);
+			}
+		}
+	}
+
+	/**
+	 * Ask the bridge on the other end of a discarding designated port to
+	 * agree to it forwarding, falling back on the forward delay timer.
+	 */
+	private void propose(Port port, long now)
+	{
+		port.proposing = true;
+		port.agreed = false;
+		port.forwardDelayExpires = now + FORWARD_DELAY;
+		this.sendBpdu(port, false, now);
+	}
+
+	private void setState(Port port, State state, long now)
+	{
+		if (port.state == state)
+		{ return; }
+		System.out.println(String.format("Spanning tree: %s %s is now %s",
+				this.device.getHost(), port.iface.getName(),
+				state.name().toLowerCase()));
+		port.state = state;
+		if (State.DISCARDING == state)
+		{
+			port.flush = true;
+			this.flushPending = true;
+		}
+		else if (State.FORWARDING == state && !port.edge)
+		{ this.topologyChangeDetected(port, now); }
+	}
+
+	/**
+	 * A port started forwarding: bindings learned on other ports may now be
+	 * wrong, so flush them and tell the other bridges.
+	 */
+	private void topologyChangeDetected(Port changed, long now)
+	{
+		for (Port port : this.ports.values())
+		{
+			if (port.edge)
+			{ continue; }
+			if (port != changed)
+			{ port.flush = true; }
+			if (Role.ROOT == port.role || Role.DESIGNATED == port.role)
+			{ port.topologyChangeExpires = now + 2 * HELLO_TIME; }
+		}
+		this.flushPending = true;
+	}
+
+	/**
+	 * Another bridge announced a topology change: flush bindings learned on
+	 * other ports and pass the announcement on.
+	 */
+	private void topologyChangeReceived(Port from, long now)
+	{
+		for (Port port : this.ports.values())
+		{
+			if (port == from || port.edge)
+			{ continue; }
+			port.flush = true;
+			if ((Role.ROOT == port.role || Role.DESIGNATED == port.role)
+					&& now >= port.topologyChangeExpires)
+			{
+				port.topologyChangeExpires = now + 2 * HELLO_TIME;
+				this.sendBpdu(port, false, now);
+			}
+		}
+		this.flushPending = true;
+	}
+
+	/**
+	 * Run the protocol's timers; called periodically.
+	 */
+	synchronized void tick()
+	{
+		long now = System.currentTimeMillis();
+
+		// Age out information no longer being sent
+		boolean expired = false;
+		for (Port port : this.ports.values())
+		{
+			if (port.hasInfo && now >= port.infoExpires)
+			{
+				port.hasInfo = false;
+				expired = true;
+			}
+		}
+		if (expired)
+		{ this.updateRoles(now); }
+
+		for (Port port : this.ports.values())
+		{
+			if (port.role != Role.DESIGNATED || State.FORWARDING == port.state)
+			{ continue; }
+			if (!port.bpduSeen && now >= port.edgeDelayExpires)
+			{
+				port.edge = true;
+				port.proposing = false;
+				this.setState(port, State.FORWARDING, now);
+			}
+			else if (now >= port.forwardDelayExpires)
+			{
+				this.setState(port, (State.DISCARDING == port.state)
+						? State.LEARNING : State.FORWARDING, now);
+				port.forwardDelayExpires = now + FORWARD_DELAY;
+			}
+		}
+
+		// Designated ports send BPDUs every hello time, as does the root
+		// port while it announces a topology change
+		if (now >= this.nextHello)
+		{
+			this.nextHello = now + HELLO_TIME;
+			for (Port port : this.ports.values())
+			{
+				if (Role.DESIGNATED == port.role || (Role.ROOT == port.role
+						&& now < port.topologyChangeExpires))
+				{ this.sendBpdu(port, false, now); }
+			}
+		}
+	}
+
+	/**
+	 * Send an RST BPDU out a port, carrying this bridge's information.
+	 * @param agreement whether to agree to a proposal received on the port
+	 */
+	private void sendBpdu(Port port, boolean agreement, long now)
+	{
+		byte role = BPDU.ROLE_ALTERNATE_BACKUP;
+		if (Role.ROOT == port.role)
+		{ role = BPDU.ROLE_ROOT; }
+		else if (Role.DESIGNATED == port.role)
+		{ role = BPDU.ROLE_DESIGNATED; }
+		int flags = role << BPDU.ROLE_SHIFT;
+		if (agreement)
+		{ flags |= BPDU.FLAG_AGREEMENT; }
+		if (port.proposing && Role.DESIGNATED == port.role)
+		{ flags |= BPDU.FLAG_PROPOSAL; }
+		if (port.state != State.DISCARDING)
+		{ flags |= BPDU.FLAG_LEARNING; }
+		if (State.FORWARDING == port.state)
+		{ flags |= BPDU.FLAG_FORWARDING; }
+		if (now < port.topologyChangeExpires)
+		{ flags |= BPDU.FLAG_TOPOLOGY_CHANGE; }
+
+		BPDU bpdu = new BPDU();
+		bpdu.setFlags((byte)flags);
+		bpdu.setRootId(this.rootId);
+		bpdu.setRootPathCost(this.rootCost);
+		bpdu.setBridgeId(this.bridgeId);
+		bpdu.setPortId(port.id);
+		bpdu.setMessageAge((short)((null == this.rootPort) ? 0
+				: this.rootPort.infoAge + MESSAGE_AGE_INCREMENT));
+		bpdu.setMaxAge(toTicks(MAX_AGE));
+		bpdu.setHelloTime(toTicks(HELLO_TIME));
+		bpdu.setForwardDelay(toTicks(FORWARD_DELAY));
+
+		LLC llc = new LLC();
+		llc.setPayload(bpdu);
+
+		Ethernet ether = new Ethernet();
+		ether.setDestinationMACLong(BPDU.BRIDGE_GROUP_ADDRESS);
+		ether.setSourceMACLong((port.iface.getMacAddressLong() != Iface.NO_MAC_ADDRESS)
+				? port.iface.getMacAddressLong() : this.bridgeId & 0xffffffffffffL);
+		ether.setEtherType((short)0);
+		ether.setPad(true);
+		ether.setPayload(llc);
+		this.device.sendPacket(ether, port.iface);
+	}
+
+	/**
+	 * @return a time in milliseconds in 1/256ths of a second
+	 */
+	private static short toTicks(long millis)
+	{ return (short)(millis * 256 / 1000); }
+
+	/**
+	 * Compare priority vectors; the lower is better.
+	 */
+	private static int compare(long root1, int cost1, long bridge1, short port1,
+			long root2, int cost2, long bridge2, short port2)
+	{
+		int comparison = Long.compareUnsigned(root1, root2);
+		if (0 == comparison)
+		{ comparison = Integer.compareUnsigned(cost1, cost2); }
+		if (0 == comparison)
+		{ comparison = Long.compareUnsigned(bridge1, bridge2); }
+		if (0 == comparison)
+		{ comparison = Integer.compare(port1 & 0xffff, port2 & 0xffff); }
+		return comparison;
+	}
+
+	public synchronized String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		result.append(String.format("bridge %s, root %s cost %d\n",
+				formatId(this.bridgeId), formatId(this.rootId), this.rootCost));
+		for (Port port : this.ports.values())
+		{
+			result.append(String.format("%s\t%s %s%s\n", port.iface.getName(),
+					port.role.name().toLowerCase(),
+					port.state.name().toLowerCase(), port.edge ? " edge" : ""));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return a bridge ID as its priority and MAC address
+	 */
+	private static String formatId(long id)
+	{
+		return String.format("%d/%s", id >>> 48,
+				MACAddress.toString(id & 0xffffffffffffL));
+	}
+}
@@ -1,10 +1,15 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import net.floodlightcontroller.packet.BPDU;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.LLC;
 import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DropReason;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.jfr.FloodEvent;
+import edu.wisc.cs.sdn.vnet.jfr.MacLearnedEvent;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -14,6 +19,14 @@ public class Switch extends Device
 	// Declare the SwitchBindingTable as a member variable
     private SwitchBindingTable mac_table;
 	
+	// VLANs each port carries; null if the switch is not VLAN-aware, in
+	// which case every port is in one broadcast domain and tags are ignored
+	private VlanConfig vlans;
+	
+	// Spanning tree keeping loops out of the topology; null if disabled, in
+	// which case every port forwards
+	private SpanningTree spanning_tree;
+	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -32,8 +45,9 @@ public class Switch extends Device
 	public static class MacPortBinding
 	{
 		Iface bound_interface; /* The interface the mac address is bound to */
-		MACAddress mac_address; /* The mac address */
+		long mac_address; /* The mac address, in the lower 48 bits */
 		double expiration_time; /* The time the entry expires */
+		short vlan; /* The VLAN the binding is in; VLAN_UNTAGGED if the switch has no VLANs */
 	}
 
 	// Create a table to hold details on mac addresses and ports
@@ -48,6 +62,63 @@ public class Switch extends Device
 		}
 	}
 
+	/**
+	 * Make the switch VLAN-aware, with ports carrying the VLANs a file gives.
+	 * @param filename name of the file containing the VLAN configuration
+	 * @return true if the configuration was loaded, otherwise false
+	 */
+	public boolean loadVlans(String filename)
+	{
+		VlanConfig config = new VlanConfig();
+		if (!config.load(filename))
+		{
+			System.err.println("Failed to load VLANs from " + filename);
+			return false;
+		}
+		this.vlans = config;
+		
+		System.out.println("VLANs loaded successfully");
+		System.out.println("----------------------------------");
+		System.out.print(config.toString());
+		System.out.println("----------------------------------");
+		return true;
+	}
+
+	/**
+	 * Run the rapid spanning tree protocol on every port, blocking ports that
+	 * would close a loop. Ports discard frames until the protocol has given
+	 * them a role; checkSpanningTree() must be called periodically.
+	 */
+	public void enableSpanningTree()
+	{
+		this.spanning_tree = new SpanningTree(this);
+		System.out.println(String.format("Spanning tree enabled, bridge %016x",
+				this.spanning_tree.getBridgeId()));
+	}
+
+	/**
+	 * Run the spanning tree protocol's timers, sending BPDUs when due.
+	 */
+	public void checkSpanningTree()
+	{
+		if (this.spanning_tree != null)
+		{ this.spanning_tree.tick(); }
+	}
+
+	/**
+	 * @return true if spanning tree is disabled or every port has settled
+	 *         in the state its role calls for
+	 */
+	public boolean isSpanningTreeStable()
+	{ return null == this.spanning_tree || this.spanning_tree.isStable(); }
+
+	/**
+	 * @return the role and state of every port; null if spanning tree is
+	 *         disabled
+	 */
+	public String getSpanningTree()
+	{ return (null == this.spanning_tree) ? null : this.spanning_tree.toString(); }
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -55,25 +126,71 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		if (this.isTracing())
+		{
+			this.trace("*** -> Received packet: " +
+					etherPacket.toString().replace("\n", "\n\t"));
+		}
 		
+		if (this.spanning_tree != null)
+		{
+			// BPDUs are for this bridge, and are never forwarded
+			if (etherPacket.getDestinationMACLong() == BPDU.BRIDGE_GROUP_ADDRESS)
+			{
+				if (etherPacket.getPayload() instanceof LLC
+						&& etherPacket.getPayload().getPayload() instanceof BPDU)
+				{
+					this.spanning_tree.receive(
+							(BPDU)etherPacket.getPayload().getPayload(), inIface);
+				}
+				return;
+			}
+
+			// Forget bindings the spanning tree has invalidated
+			for (Iface iface : this.spanning_tree.takeFlushes())
+			{ flush_table(iface); }
+
+			if (!this.spanning_tree.isLearning(inIface))
+			{
+				this.countDrop(DropReason.STP_BLOCKED);
+				return;
+			}
+		}
+
+		// Find the VLAN of the frame, dropping it if the port does not carry it
+		short vlan = Ethernet.VLAN_UNTAGGED;
+		if (this.vlans != null)
+		{
+			vlan = this.vlans.getPort(inIface).ingressVlan(etherPacket);
+			if (vlan == VlanConfig.NO_VLAN)
+			{
+				this.countDrop(DropReason.VLAN_FILTERED);
+				return;
+			}
+		}
 
 		// Get the source mac address
-		MACAddress source_mac = etherPacket.getSourceMAC();
+		long source_mac = etherPacket.getSourceMACLong();
 
 		// Check if mac address is in table
-		source_mac_table_eval(source_mac, inIface);
+		source_mac_table_eval(source_mac, vlan, inIface);
 
 		// Check the table for expired entries
 		check_table();
 
+		// A port that is learning does not yet forward
+		if (this.spanning_tree != null && !this.spanning_tree.isForwarding(inIface))
+		{
+			this.countDrop(DropReason.STP_BLOCKED);
+			return;
+		}
+
 		// Get the destination mac address
-		MACAddress dest_mac = etherPacket.getDestinationMAC();
+		long dest_mac = etherPacket.getDestinationMACLong();
 
 		// Pass in destination mac address and route or broadcast
-		System.out.println("Sending packet to destination");		
-		send_packet(etherPacket, dest_mac, inIface);
+		this.trace("Sending packet to destination");		
+		send_packet(etherPacket, dest_mac, vlan, inIface);
 		return;
 		
 	}
@@ -82,15 +199,11 @@ public class Switch extends Device
 	 * Evaluate the source mac address against the table of mac addresses
 	 * and ports
 	 * @param source_mac the source mac address
+	 * @param vlan the VLAN the frame is in
 	 * @param interface the interface the source mac address is bound to
 	 */
-	public void source_mac_table_eval(MACAddress source_mac, Iface in_face)
+	public void source_mac_table_eval(long source_mac, short vlan, Iface in_face)
 	{
-		
-		// Back out if soure_mac is null
-		if (source_mac == null) 
-		{ return; }
-
 		// Establish length of table as min of table size or number of entries
 		int table_length = this.mac_table.max_table_entries;
 
@@ -99,7 +212,8 @@ public class Switch extends Device
 		{
 			if (this.mac_table.mapping_table[i] != null)
 			{ 
-				if (this.mac_table.mapping_table[i].mac_address.equals(source_mac))
+				if (this.mac_table.mapping_table[i].mac_address == source_mac
+						&& this.mac_table.mapping_table[i].vlan == vlan)
 				{
 					// Update the expiration time to be 15 seconds from now
 					this.mac_table.mapping_table[i].expiration_time = System.currentTimeMillis() + 15000;
@@ -116,8 +230,19 @@ public class Switch extends Device
 				// Add the source mac address to the table
 				this.mac_table.mapping_table[i] = new MacPortBinding();
 				this.mac_table.mapping_table[i].mac_address = source_mac;
+				this.mac_table.mapping_table[i].vlan = vlan;
 				this.mac_table.mapping_table[i].bound_interface = in_face;
 				this.mac_table.mapping_table[i].expiration_time = System.currentTimeMillis() + 15000;
+				
+				MacLearnedEvent event = new MacLearnedEvent();
+				if (event.shouldCommit())
+				{
+					event.device = this.getHost();
+					event.mac = MACAddress.toString(source_mac);
+					event.iface = in_face.getName();
+					event.vlan = vlan;
+					event.commit();
+				}
 				break;
 			}
 		}
@@ -145,11 +270,24 @@ public class Switch extends Device
 		}
 	}
 
+	/**
+	 * Remove every entry bound to an interface from the mapping table
+	 */
+	public void flush_table(Iface iface)
+	{
+		for (int i = 0; i < this.mac_table.mapping_table.length; i++)
+		{
+			if (this.mac_table.mapping_table[i] != null
+					&& this.mac_table.mapping_table[i].bound_interface == iface)
+			{ this.mac_table.mapping_table[i] = null; }
+		}
+	}
+
 	/**
 	 * Send the packet to the correct interface
-	 * Or broadcast the packet to all interfaces if not currently in table
+	 * Or broadcast the packet to all forwarding interfaces in its VLAN if not currently in table
 	 */
-	public void send_packet(Ethernet etherPacket, MACAddress targetmac, Iface inIface)
+	public void send_packet(Ethernet etherPacket, long targetmac, short vlan, Iface inIface)
 	{
 		
 		// Check if mac address is in table
@@ -159,17 +297,20 @@ public class Switch extends Device
 			if (this.mac_table.mapping_table[i] == null) { continue; }
 
 			// Check if the mac address is in the table
-			else if (this.mac_table.mapping_table[i].mac_address.equals(targetmac))
+			else if (this.mac_table.mapping_table[i].mac_address == targetmac
+					&& this.mac_table.mapping_table[i].vlan == vlan)
 			{
 				// Get the interface from the table
 				Iface outIface = this.mac_table.mapping_table[i].bound_interface;
 
-				// Check if the interface is null, and exit loop if so
+				// Check if the interface is null, or blocked by the spanning
+				// tree, and exit loop if so
 				if (outIface == null) { break; }
+				if (!this.is_forwarding(outIface)) { break; }
 
 				// Send the packet to the correct interface
-				this.sendPacket(etherPacket, outIface);
-				System.out.println("Broadcasting packet to correct interface");
+				this.send_in_vlan(etherPacket, vlan, outIface);
+				this.trace("Broadcasting packet to correct interface");
 				return;
 
 			}
@@ -178,14 +319,49 @@ public class Switch extends Device
 			{continue;}
 		}
 
-		System.out.println("Broadcasting packet to all interfaces");
-		// Broadcast the packet to all interfaces
+		this.trace("Broadcasting packet to all interfaces");
+		FloodEvent event = new FloodEvent();
+		event.begin();
+		int ports = 0;
+		// Broadcast the packet to all interfaces in its VLAN
 		for (Iface iface : this.interfaces.values())
 		{
 			
 			if (iface == inIface) { continue; }
-			this.sendPacket(etherPacket, iface);
+			if (this.vlans != null && !this.vlans.getPort(iface).isMember(vlan)) { continue; }
+			if (!this.is_forwarding(iface)) { continue; }
+			this.send_in_vlan(etherPacket, vlan, iface);
+			ports++;
+		}
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.device = this.getHost();
+			event.destination = MACAddress.toString(targetmac);
+			event.iface = inIface.getName();
+			event.ports = ports;
+			event.vlan = vlan;
+			event.commit();
 		}
 		return;
 	}
+
+	/**
+	 * Check whether the spanning tree lets frames out an interface
+	 */
+	private boolean is_forwarding(Iface iface)
+	{
+		return this.spanning_tree == null || this.spanning_tree.isForwarding(iface);
+	}
+
+	/**
+	 * Send the packet out an interface, tagged or untagged as the interface
+	 * carries the packet's VLAN
+	 */
+	private void send_in_vlan(Ethernet etherPacket, short vlan, Iface outIface)
+	{
+		if (this.vlans != null)
+		{ etherPacket.setVlanID(this.vlans.getPort(outIface).egressTag(vlan)); }
+		this.sendPacket(etherPacket, outIface);
+	}
 }
@@ -0,0 +1,232 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.Ethernet;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * VLAN membership of a switch's ports (802.1Q). Ports are read from a
+ * file, one per line:
+ * <pre>
+ *   access iface vlan
+ *   trunk iface (all|vlans) [native vlan]
+ * </pre>
+ * where vlans is a comma-separated list of VLANs and ranges, such as
+ * 10,20,30-39. An access port carries one VLAN, untagged; a trunk carries
+ * its VLANs tagged, except its native VLAN, if it has one, which it carries
+ * untagged. Ports not in the file are access ports in DEFAULT_VLAN. Lines
+ * starting with # are comments.
+ */
+public class VlanConfig
+{
+	/** VLAN of ports not in the configuration */
+	public static final short DEFAULT_VLAN = 1;
+
+	/** Smallest and largest VLAN IDs; 0 and 4095 are reserved */
+	public static final short MIN_VLAN = 1;
+	public static final short MAX_VLAN = 4094;
+
+	/** VLAN of a frame the port does not carry; a reserved ID, which no
+	 *  port carries */
+	public static final short NO_VLAN = 0;
+
+	private Map<String,Port> ports;
+
+	/** Port configuration of ports not in the file */
+	private Port defaultPort;
+
+	public VlanConfig()
+	{
+		this.ports = new HashMap<String,Port>();
+		this.defaultPort = Port.access(DEFAULT_VLAN);
+	}
+
+	/**
+	 * @return the configuration of an interface's port
+	 */
+	Port getPort(Iface iface)
+	{
+		Port port = this.ports.get(iface.getName());
+		return (null == port) ? this.defaultPort : port;
+	}
+
+	/**
+	 * Read the port configuration from a file.
+	 * @param filename name of the file containing the configuration
+	 * @return true if the configuration was loaded, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		Map<String,Port> ports = new HashMap<String,Port>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				String text = line.trim();
+				if (text.isEmpty() || text.startsWith("#"))
+				{ continue; }
+
+				String[] fields = text.split("\\s+");
+				Port port = Port.parse(fields);
+				if (null == port || ports.containsKey(fields[1]))
+				{
+					System.err.println(String.format(
+							"Error loading VLANs, line %d of %s: invalid port",
+							lineNumber, filename));
+					System.err.println("\t" + text);
+					return false;
+				}
+				ports.put(fields[1], port);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		this.ports = ports;
+		return true;
+	}
+
+	/**
+	 * @return a VLAN ID; NO_VLAN if the text is not one
+	 */
+	private static short parseVlan(String text)
+	{
+		try
+		{
+			int vlan = Integer.parseInt(text);
+			return (vlan < MIN_VLAN || vlan > MAX_VLAN) ? NO_VLAN : (short)vlan;
+		}
+		catch (NumberFormatException e)
+		{ return NO_VLAN; }
+	}
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		for (Map.Entry<String,Port> entry : this.ports.entrySet())
+		{
+			result.append(String.format("%s\t%s\n", entry.getKey(),
+					entry.getValue()));
+		}
+		result.append(String.format("others\t%s\n", this.defaultPort));
+		return result.toString();
+	}
+
+	/**
+	 * The VLANs a port carries.
+	 */
+	static class Port
+	{
+		/** The port's configuration as written, after its interface */
+		private String text;
+
+		/** VLAN carried untagged; NO_VLAN if none */
+		private short untaggedVlan;
+
+		/** VLANs carried tagged; empty for an access port */
+		private BitSet taggedVlans;
+
+		static Port access(short vlan)
+		{
+			Port port = new Port();
+			port.text = "access " + vlan;
+			port.untaggedVlan = vlan;
+			port.taggedVlans = new BitSet();
+			return port;
+		}
+
+		/**
+		 * Parse the fields of a port.
+		 * @return the port; null if it is invalid
+		 */
+		static Port parse(String[] fields)
+		{
+			if (fields[0].equals("access"))
+			{
+				if (fields.length != 3)
+				{ return null; }
+				short vlan = parseVlan(fields[2]);
+				return (NO_VLAN == vlan) ? null : access(vlan);
+			}
+			if (!fields[0].equals("trunk")
+					|| (fields.length != 3 && fields.length != 5))
+			{ return null; }
+
+			Port port = new Port();
+			port.text = "trunk " + fields[2]
+					+ ((5 == fields.length) ? " native " + fields[4] : "");
+			port.untaggedVlan = NO_VLAN;
+			port.taggedVlans = new BitSet(MAX_VLAN + 1);
+			if (fields[2].equals("all"))
+			{ port.taggedVlans.set(MIN_VLAN, MAX_VLAN + 1); }
+			else
+			{
+				for (String range : fields[2].split(","))
+				{
+					int dash = range.indexOf('-');
+					short first = parseVlan((dash < 0) ? range
+							: range.substring(0, dash));
+					short last = (dash < 0) ? first
+							: parseVlan(range.substring(dash + 1));
+					if (NO_VLAN == first || NO_VLAN == last || last < first)
+					{ return null; }
+					port.taggedVlans.set(first, last + 1);
+				}
+			}
+
+			if (5 == fields.length)
+			{
+				if (!fields[3].equals("native"))
+				{ return null; }
+				port.untaggedVlan = parseVlan(fields[4]);
+				if (NO_VLAN == port.untaggedVlan)
+				{ return null; }
+				port.taggedVlans.clear(port.untaggedVlan);
+			}
+			return port;
+		}
+
+		/**
+		 * @return the VLAN a frame received on the port belongs to; NO_VLAN
+		 *         if the port does not carry the frame's VLAN. Frames tagged
+		 *         with VLAN 0, which carry only a priority, are untagged.
+		 */
+		short ingressVlan(Ethernet etherPacket)
+		{
+			short vlan = etherPacket.getVlanID();
+			if (Ethernet.VLAN_UNTAGGED == vlan || 0 == vlan)
+			{ return this.untaggedVlan; }
+			return this.taggedVlans.get(vlan) ? vlan : NO_VLAN;
+		}
+
+		/**
+		 * @return true if the port carries a VLAN
+		 */
+		boolean isMember(short vlan)
+		{
+			return vlan != NO_VLAN
+					&& (vlan == this.untaggedVlan || this.taggedVlans.get(vlan));
+		}
+
+		/**
+		 * @return the tag to send a frame of a VLAN out the port with;
+		 *         VLAN_UNTAGGED to send it untagged
+		 */
+		short egressTag(short vlan)
+		{ return (vlan == this.untaggedVlan) ? Ethernet.VLAN_UNTAGGED : vlan; }
+
+		public String toString()
+		{ return this.text; }
+	}
+}
@@ -36,12 +36,17 @@ public abstract class Command
 	protected byte[] serialize()
 	{
 		byte[] data = new byte[8];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		
+		this.serialize(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * Write the command header into a buffer at its position.
+	 */
+	protected void serialize(ByteBuffer bb)
+	{
 		bb.putInt(this.mLen);
 		bb.putInt(this.mType);
-		
-		return data;
 	}
 	
 	protected int getSize()
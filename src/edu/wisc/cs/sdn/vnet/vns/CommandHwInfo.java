@@ -11,7 +11,10 @@ public class CommandHwInfo extends Command
 	protected List<CommandHwEntry> mHwInfo;
 	
 	public CommandHwInfo()
-	{ super(Command.VNS_HW_INFO); }
+	{
+		super(Command.VNS_HW_INFO);
+		this.mHwInfo = new ArrayList<CommandHwEntry>();
+	}
 	
 	protected CommandHwInfo deserialize(ByteBuffer buf)
 	{
@@ -27,4 +30,23 @@ public class CommandHwInfo extends Command
 						
 		return this;
 	}
+	
+	protected byte[] serialize()
+	{
+		this.mLen = this.getSize();
+		byte[] data = new byte[this.mLen];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		
+		bb.put(super.serialize());
+		for (CommandHwEntry hwEntry : this.mHwInfo)
+		{ hwEntry.serialize(bb); }
+		
+		return data;
+	}
+	
+	protected int getSize()
+	{
+		int entries = (null == this.mHwInfo) ? 0 : this.mHwInfo.size();
+		return super.getSize() + entries * CommandHwEntry.getSize();
+	}
 }
@@ -3,6 +3,7 @@ package edu.wisc.cs.sdn.vnet.vns;
 import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketPool;
 
 public class CommandPacket extends Command
 {
@@ -20,9 +21,9 @@ public class CommandPacket extends Command
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
-		this.etherPacket = new Ethernet();
+		this.etherPacket = PacketPool.ethernet();
 		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+				buf.limit() - buf.position());
 		
 		return this;
 	}
@@ -30,24 +31,33 @@ public class CommandPacket extends Command
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
+	/**
+	 * @return length of the serialized command, including the frame
+	 */
+	protected int getSerializedLength()
+	{ return this.getSize() + this.etherPacket.getSerializedLength(); }
+	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
-		this.mLen = size;
-		
-		byte[] data = new byte[size];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		
-		byte[] parentData = super.serialize();
+		byte[] data = new byte[this.getSerializedLength()];
+		this.serialize(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * Write the command, header and frame, into a buffer at its position.
+	 * @param bb buffer with at least getSerializedLength() bytes remaining
+	 */
+	protected void serialize(ByteBuffer bb)
+	{
+		this.mLen = this.getSerializedLength();
+		super.serialize(bb);
 		
-		bb.put(parentData);
-		byte[] tmp = new byte[16];
-		System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-				this.mInterfaceName.length());
-		bb.put(tmp);
-		bb.put(packet);
+		// Interface name, padded with zeros to 16 bytes
+		int nameLength = Math.min(this.mInterfaceName.length(), 16);
+		for (int i = 0; i < 16; i++)
+		{ bb.put((i < nameLength) ? (byte)this.mInterfaceName.charAt(i) : 0); }
 		
-		return data;
+		this.etherPacket.serialize(bb);
 	}
 }
@@ -0,0 +1,303 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Load-tests a single device through its real VNS client. The generator runs
+ * a {@link VNSServer} in place of POX, sends synthetic Ethernet/IPv4/UDP
+ * frames to the device at a target rate, and measures the throughput and
+ * round-trip latency of the frames the device sends back out.
+ * <p>
+ * Start the generator, then the device, for example:
+ * <pre>
+ * TrafficGenerator -i eth1,10.0.1.1/24,02:00:00:00:00:01
+ *     -i eth2,10.0.2.1/24,02:00:00:00:00:02 -in eth1 -dst 10.0.2.102
+ * VNet -v r1 -r rtable.r1 -a arp_cache
+ * </pre>
+ */
+public class TrafficGenerator implements VNSServer.PacketListener
+{
+	private static final short COMM_PORT = 8888;
+
+	/** Marks frames sent by the generator */
+	private static final long MAGIC = 0x564e53474e4c4f41L;
+
+	/** Size of the magic number, sequence number, and timestamp */
+	private static final int STAMP_SIZE = 8 + 8 + 8;
+
+	/** Maximum number of latency samples kept */
+	private static final int MAX_SAMPLES = 4 * 1024 * 1024;
+
+	/** Largest number of frames sent before flushing the socket */
+	private static final int MAX_BURST = 256;
+
+	private VNSServer server;
+
+	private AtomicLong sent;
+	private AtomicLong received;
+
+	/** Round-trip latencies of received frames, in nanoseconds */
+	private long[] samples;
+	private int sampleCount;
+
+	public TrafficGenerator(VNSServer server)
+	{
+		this.server = server;
+		this.sent = new AtomicLong();
+		this.received = new AtomicLong();
+		this.samples = new long[MAX_SAMPLES];
+		this.sampleCount = 0;
+	}
+
+	/**
+	 * Build a UDP frame with room for a stamp at the start of its payload.
+	 */
+	private static byte[] buildFrame(MACAddress srcMac, MACAddress dstMac,
+			int srcIp, int dstIp, int payloadSize)
+	{
+		UDP udp = new UDP();
+		udp.setSourcePort((short)9000);
+		udp.setDestinationPort((short)9000);
+		udp.setPayload(new Data(new byte[Math.max(payloadSize, STAMP_SIZE)]));
+
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setSourceAddress(srcIp);
+		ip.setDestinationAddress(dstIp);
+		ip.setPayload(udp);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(srcMac.toBytes());
+		ether.setDestinationMACAddress(dstMac.toBytes());
+		ether.setPayload(ip);
+
+		byte[] frame = ether.serialize();
+
+		// The stamp changes on every send, so disable the UDP checksum
+		frame[14 + 20 + 6] = 0;
+		frame[14 + 20 + 7] = 0;
+		return frame;
+	}
+
+	/**
+	 * Send frames to the device at a target rate.
+	 * @param command VNS_PACKET command carrying the frame to send
+	 * @param rate frames per second; 0 to send as fast as possible
+	 * @param durationNanos how long to send
+	 */
+	public void generate(byte[] command, long rate, long durationNanos)
+	{
+		ByteBuffer stamp = ByteBuffer.wrap(command);
+		int stampOffset = VNSServer.PACKET_HEADER_SIZE + 14 + 20 + 8;
+		stamp.putLong(stampOffset, MAGIC);
+
+		long start = System.nanoTime();
+		long end = start + durationNanos;
+		long count = 0;
+		long now;
+		while ((now = System.nanoTime()) < end)
+		{
+			long due = (0 == rate) ? count + MAX_BURST
+					: (long)((now - start) / 1e9 * rate);
+			if (count >= due)
+			{
+				LockSupport.parkNanos(20000);
+				continue;
+			}
+
+			long burst = Math.min(due - count, MAX_BURST);
+			for (long i = 0; i < burst; i++, count++)
+			{
+				stamp.putLong(stampOffset + 8, count);
+				stamp.putLong(stampOffset + 16, System.nanoTime());
+				if (!this.server.write(command, false))
+				{ return; }
+				this.sent.incrementAndGet();
+			}
+			this.server.flush();
+		}
+	}
+
+	@Override
+	public void packetReceived(byte[] frame, int offset, int length,
+			String ifaceName)
+	{
+		// Find the stamp in UDP frames the generator sent
+		if (length < 14 + 20 + 8 + STAMP_SIZE
+				|| frame[offset + 12] != 0x08 || frame[offset + 13] != 0x00)
+		{ return; }
+		int ipHeaderLength = (frame[offset + 14] & 0xf) * 4;
+		if (frame[offset + 14 + 9] != IPv4.PROTOCOL_UDP)
+		{ return; }
+		int stampOffset = offset + 14 + ipHeaderLength + 8;
+		if (stampOffset + STAMP_SIZE > offset + length)
+		{ return; }
+		ByteBuffer stamp = ByteBuffer.wrap(frame);
+		if (stamp.getLong(stampOffset) != MAGIC)
+		{ return; }
+
+		long latency = System.nanoTime() - stamp.getLong(stampOffset + 16);
+		if (this.sampleCount < MAX_SAMPLES)
+		{ this.samples[this.sampleCount++] = latency; }
+		this.received.incrementAndGet();
+	}
+
+	/**
+	 * @return latency percentiles of the frames received so far
+	 */
+	private String latencySummary()
+	{
+		if (0 == this.sampleCount)
+		{ return "no latency samples"; }
+		long[] sorted = Arrays.copyOf(this.samples, this.sampleCount);
+		Arrays.sort(sorted);
+		return String.format("RTT us: p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f",
+				percentile(sorted, 0.5) / 1e3, percentile(sorted, 0.9) / 1e3,
+				percentile(sorted, 0.99) / 1e3, percentile(sorted, 0.999) / 1e3,
+				sorted[sorted.length - 1] / 1e3);
+	}
+
+	private static long percentile(long[] sorted, double p)
+	{ return sorted[(int)Math.min(sorted.length - 1, (long)(p * sorted.length))]; }
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		short port = COMM_PORT;
+		String inIface = null;
+		MACAddress srcMac = MACAddress.valueOf("00:00:00:00:00:01");
+		MACAddress dstMac = null;
+		int srcIp = IPv4.toIPv4Address("10.0.1.101");
+		int dstIp = 0;
+		long rate = 10000;
+		long duration = 10;
+		int payloadSize = 64;
+
+		List<String[]> ifaces = new ArrayList<String[]>();
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				showHelp();
+				return;
+			}
+			else if (arg.equals("-p"))
+			{ port = Short.parseShort(args[++i]); }
+			else if (arg.equals("-i"))
+			{ ifaces.add(args[++i].split(",")); }
+			else if (arg.equals("-in"))
+			{ inIface = args[++i]; }
+			else if (arg.equals("-src"))
+			{ srcIp = IPv4.toIPv4Address(args[++i]); }
+			else if (arg.equals("-dst"))
+			{ dstIp = IPv4.toIPv4Address(args[++i]); }
+			else if (arg.equals("-smac"))
+			{ srcMac = MACAddress.valueOf(args[++i]); }
+			else if (arg.equals("-dmac"))
+			{ dstMac = MACAddress.valueOf(args[++i]); }
+			else if (arg.equals("-r"))
+			{ rate = Long.parseLong(args[++i]); }
+			else if (arg.equals("-t"))
+			{ duration = Long.parseLong(args[++i]); }
+			else if (arg.equals("-s"))
+			{ payloadSize = Integer.parseInt(args[++i]); }
+		}
+
+		if (ifaces.isEmpty() || null == inIface || 0 == dstIp)
+		{
+			showHelp();
+			return;
+		}
+
+		// Build the hardware info block
+		VNSServer server = new VNSServer(port);
+		for (String[] iface : ifaces)
+		{
+			if (1 == iface.length)
+			{
+				server.addInterface(iface[0]);
+				continue;
+			}
+			String[] addr = iface[1].split("/");
+			int prefix = Integer.parseInt(addr[1]);
+			int mask = (0 == prefix) ? 0 : (0xffffffff << (32 - prefix));
+			MACAddress mac = MACAddress.valueOf(iface[2]);
+			server.addInterface(iface[0], mac, IPv4.toIPv4Address(addr[0]), mask);
+			if (iface[0].equals(inIface) && null == dstMac)
+			{ dstMac = mac; }
+		}
+		if (null == dstMac)
+		{ dstMac = MACAddress.valueOf("00:00:00:00:00:02"); }
+
+		System.out.println("Waiting for device on port " + port);
+		String host = server.accept();
+		if (null == host)
+		{ System.exit(1); }
+		System.out.println("Device " + host + " connected");
+
+		final TrafficGenerator generator = new TrafficGenerator(server);
+		final VNSServer receiveServer = server;
+		Thread receiver = new Thread(() -> receiveServer.receiveLoop(generator));
+		receiver.setDaemon(true);
+		receiver.start();
+
+		final byte[] command = VNSServer.buildPacketCommand(
+				buildFrame(srcMac, dstMac, srcIp, dstIp, payloadSize), inIface);
+		final long sendRate = rate;
+		final long durationNanos = TimeUnit.SECONDS.toNanos(duration);
+		Thread sender = new Thread(() ->
+				generator.generate(command, sendRate, durationNanos));
+		sender.start();
+
+		// Report rates once a second while sending
+		long lastSent = 0, lastReceived = 0;
+		while (sender.isAlive())
+		{
+			sender.join(1000);
+			long nowSent = generator.sent.get();
+			long nowReceived = generator.received.get();
+			System.out.println(String.format("tx %d pps, rx %d pps",
+					nowSent - lastSent, nowReceived - lastReceived));
+			lastSent = nowSent;
+			lastReceived = nowReceived;
+		}
+
+		// Give frames still inside the device time to come back
+		Thread.sleep(1000);
+		server.close("Traffic generation complete");
+		receiver.join(1000);
+
+		long totalSent = generator.sent.get();
+		long totalReceived = generator.received.get();
+		System.out.println(String.format("Sent %d, received %d (%.2f%% loss), "
+				+ "%.0f pps average", totalSent, totalReceived,
+				(0 == totalSent) ? 0.0
+						: 100.0 * (totalSent - totalReceived) / totalSent,
+				totalReceived / (double)duration));
+		System.out.println(generator.latencySummary());
+	}
+
+	static void showHelp()
+	{
+		System.out.println("VNS Traffic Generator");
+		System.out.println("Usage: TrafficGenerator -i iface[,ip/prefix,mac] [-i ...] -in iface");
+		System.out.println("       -dst ip [-src ip] [-smac mac] [-dmac mac] [-p port]");
+		System.out.println("       [-r rate_pps] [-t duration_s] [-s payload_bytes] [-h]");
+		System.out.println("Default: port=" + COMM_PORT + ", rate=10000, duration=10, payload=64");
+	}
+}
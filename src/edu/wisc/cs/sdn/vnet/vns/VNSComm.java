@@ -10,19 +10,59 @@ import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.PacketPool;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.LatencyStage;
+import edu.wisc.cs.sdn.vnet.jfr.PacketReceivedEvent;
+import edu.wisc.cs.sdn.vnet.jfr.PacketSentEvent;
+import edu.wisc.cs.sdn.vnet.PacketTransport;
 
-public class VNSComm 
+public class VNSComm implements PacketTransport
 {
+	/** Maximum number of packets handed to the device in one batch */
+	public static final int MAX_BATCH = 32;
+	
+	/** Initial size of the buffer outbound packets are serialized into */
+	private static final int SEND_BUFFER_SIZE = 2048;
+	
+	/** Longest command accepted from the server: a packet command's header
+	 *  and interface name, and a VLAN-tagged frame carrying the largest 
+	 *  IPv4 packet */
+	private static final int MAX_COMMAND_LENGTH = 4 + 4 + 16 + 18 + Iface.MAX_MTU;
+	
 	private Socket socket;
 	private Device device;
 	
+	/** Packets and interfaces of the batch being read from the server, and 
+	 *  when each packet was read */
+	private Ethernet[] batchPackets;
+	private Iface[] batchIfaces;
+	private long[] batchReceived;
+	
+	/** Buffers commands are read into, one per packet of a batch; only 
+	 *  reused when packets are pooled, since packets decoded from a buffer 
+	 *  refer to it until they are released */
+	private ByteBuffer[] readBuffers;
+	private byte[] lengthBytes;
+	
+	/** Command and buffer reused for every packet sent; guarded by the 
+	 *  command, since routers also send from their RIP timer thread */
+	private CommandPacket sendCommand;
+	private ByteBuffer sendBuffer;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
-		this.device.setVNSComm(this);
+		this.device.setTransport(this);
+		this.batchPackets = new Ethernet[MAX_BATCH];
+		this.batchIfaces = new Iface[MAX_BATCH];
+		this.batchReceived = new long[MAX_BATCH];
+		this.readBuffers = new ByteBuffer[MAX_BATCH];
+		this.lengthBytes = new byte[4];
+		this.sendCommand = new CommandPacket();
+		this.sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -107,6 +147,110 @@ public class VNSComm
 	{ return this.readFromServerExpect(0); }
 	
 	public boolean readFromServerExpect(int expectedCmd)
+	{
+		ByteBuffer buf = this.readCommand(0);
+		if (null == buf)
+		{ return false; }
+		
+		// Make sure the command is what we expected if we were expecting something
+		int command = buf.getInt(4);
+		if (expectedCmd != 0 && command != expectedCmd)
+		{
+			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
+			{
+				System.err.println(String.format(
+						"Error: expected command %d but got %d", expectedCmd,
+						command));
+				return false;
+			}
+		}
+		
+		if (command != Command.VNS_PACKET)
+		{ return this.handleCommand(buf, command); }
+		
+		// Hand packets that are already waiting on the socket to the device 
+		// as one batch
+		int count = 0;
+		boolean ok = true;
+		while (true)
+		{
+			long received = System.nanoTime();
+			CommandPacket cmdPkt = new CommandPacket();
+			cmdPkt.deserialize(buf);
+			this.device.recordLatency(LatencyStage.PARSE, received);
+			Iface iface = this.device.getInterface(cmdPkt.mInterfaceName);
+			int length = buf.limit() - cmdPkt.getSize();
+			if (iface != null)
+			{ iface.countReceived(length); }
+			
+			PacketReceivedEvent event = new PacketReceivedEvent();
+			if (event.shouldCommit())
+			{
+				event.device = this.device.getHost();
+				event.iface = cmdPkt.mInterfaceName;
+				event.size = length;
+				event.commit();
+			}
+			this.batchPackets[count] = cmdPkt.etherPacket;
+			this.batchIfaces[count] = iface;
+			this.batchReceived[count] = received;
+			count++;
+			
+			if (count == MAX_BATCH || !this.hasPendingInput())
+			{ break; }
+			
+			buf = this.readCommand(count);
+			if (null == buf)
+			{
+				ok = false;
+				break;
+			}
+			command = buf.getInt(4);
+			if (command != Command.VNS_PACKET)
+			{
+				this.deliverBatch(count);
+				return this.handleCommand(buf, command);
+			}
+		}
+		
+		this.deliverBatch(count);
+		return ok;
+	}
+	
+	/**
+	 * Pass a batch of received packets to the device, student's code should
+	 * take over here.
+	 */
+	private void deliverBatch(int count)
+	{
+		this.device.receivePackets(this.batchPackets, this.batchIfaces, 
+				this.batchReceived, count);
+		for (int i = 0; i < count; i++)
+		{
+			this.batchPackets[i] = null;
+			this.batchIfaces[i] = null;
+		}
+	}
+	
+	/**
+	 * @return true if at least part of another command can be read without
+	 *         blocking
+	 */
+	private boolean hasPendingInput()
+	{
+		try
+		{ return this.socket.getInputStream().available() > 0; }
+		catch (IOException e)
+		{ return false; }
+	}
+	
+	/**
+	 * Read a complete command from the server.
+	 * @param slot index of the packet in the batch being read
+	 * @return a buffer containing the command, positioned at its start and 
+	 *         limited to its length; null if the command could not be read
+	 */
+	private ByteBuffer readCommand(int slot)
 	{
 		int bytesRead = 0;
 		InputStream inStream = null;
@@ -117,11 +261,11 @@ public class VNSComm
 		catch (IOException e) 
 		{
 			e.printStackTrace();
-			return false;
+			return null;
 		}
 		
 		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
+		byte[] lenBytes = this.lengthBytes;
 		while (bytesRead < 4)
 		{
 			try 
@@ -134,22 +278,30 @@ public class VNSComm
 			catch (Exception e) 
 			{
 				e.printStackTrace();
-				return false;
+				return null;
 			}
 		}
 		
 		int len = ByteBuffer.wrap(lenBytes).getInt();
 		
-		if (len > 10000 || len < 0)
+		if (len > MAX_COMMAND_LENGTH || len < 0)
 		{
 			System.err.println(String.format(
 					"Error: comamnd length too large %d", len));
 			try { socket.close(); } catch (IOException e) { }
-			return false;
+			return null;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
+		// Allocate buffer, or reuse the slot's buffer if packets are pooled
+		ByteBuffer buf = this.readBuffers[slot];
+		if (!PacketPool.isEnabled() || null == buf || buf.capacity() < len)
+		{
+			buf = ByteBuffer.allocate(len);
+			if (PacketPool.isEnabled())
+			{ this.readBuffers[slot] = buf; }
+		}
+		buf.clear();
+		buf.limit(len);
 		
 		// Set first field of command since we've already read it
 		buf.putInt(len);
@@ -169,39 +321,21 @@ public class VNSComm
 				e.printStackTrace();
 				System.err.println("Error: failed reading command body");
 				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
-		}
-		
-		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
-		if (expectedCmd != 0 && command != expectedCmd)
-		{
-			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
-			{
-				System.err.println(String.format(
-						"Error: expected command %d but got %d", expectedCmd,
-						command));
-				return false;
+				return null;
 			}
 		}
 		
 		buf.position(0);
+		return buf;
+	}
+	
+	/**
+	 * Handle a command other than a packet.
+	 */
+	private boolean handleCommand(ByteBuffer buf, int command)
+	{
 		switch(command)
 		{
-		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
-			if (this.device.getLogFile() != null)
-			{ this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
-			break;
-			
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
@@ -233,7 +367,7 @@ public class VNSComm
 					+ ", does not exist");
 			return false;
 		}
-		if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
+		if (iface.getMacAddressLong() != etherPacket.getSourceMACLong())
 		{
 			System.err.println("** Error, source address does not match interface"); 
 			return false;
@@ -241,14 +375,55 @@ public class VNSComm
 		return true;
 	}
 	
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{
+		PacketSentEvent event = new PacketSentEvent();
+		event.begin();
+		int length = this.writePacket(etherPacket, iface.getName());
+		if (length < 0)
+		{ return false; }
+		iface.countSent(length);
+		
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.device = this.device.getHost();
+			event.iface = iface.getName();
+			event.size = length;
+			event.commit();
+		}
+		return true;
+	}
+	
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+	{ return (this.writePacket(etherPacket, ifaceName) >= 0); }
+	
+	/**
+	 * Send a packet to the server.
+	 * @return length of the Ethernet frame sent; -1 on error
+	 */
+	private int writePacket(Ethernet etherPacket, String ifaceName)
+	{
+		synchronized (this.sendCommand)
+		{ return this.writePacket(this.sendCommand, etherPacket, ifaceName); }
+	}
+	
+	private int writePacket(CommandPacket cmdPacket, Ethernet etherPacket,
+			String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
 		cmdPacket.mInterfaceName = ifaceName;
 		cmdPacket.etherPacket = etherPacket;
 		
-		byte[] buf = cmdPacket.serialize();
+		// Serialize the whole command into the reused buffer
+		long start = System.nanoTime();
+		int length = cmdPacket.getSerializedLength();
+		if (this.sendBuffer.capacity() < length)
+		{ this.sendBuffer = ByteBuffer.allocate(length); }
+		this.sendBuffer.clear();
+		cmdPacket.serialize(this.sendBuffer);
+		cmdPacket.etherPacket = null;
+		this.device.recordLatency(LatencyStage.SERIALIZE, start);
 		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
@@ -256,21 +431,17 @@ public class VNSComm
 			return false;
 		}*/
 		
-		// Log packet
-		if (this.device.getLogFile() != null)
-		{ this.device.getLogFile().dump(etherPacket); }
-		
 		try
 		{
 			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
+			outStream.write(this.sendBuffer.array(), 0, length);
 			outStream.flush();
 		}
 		catch(IOException e)
 		{
 			System.err.println("Error writing packet");
-			return false;
+			return -1;
 		}
-		return true;
+		return length - cmdPacket.getSize();
 	}
 }
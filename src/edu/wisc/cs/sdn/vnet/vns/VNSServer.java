@@ -0,0 +1,244 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * A stand-in for the VNS server in POX (vnethandler.py) that speaks the VNS
+ * protocol to a single device. The server answers the device's VNS_OPEN with
+ * a configurable hardware info block, after which packets can be sent to the
+ * device and packets sent by the device are handed to a listener.
+ */
+public class VNSServer
+{
+	/** Notified of every packet the device sends */
+	public interface PacketListener
+	{
+		/**
+		 * @param frame buffer holding the Ethernet frame
+		 * @param offset offset of the frame in the buffer
+		 * @param length length of the frame
+		 * @param ifaceName interface on which the device sent the frame
+		 */
+		public void packetReceived(byte[] frame, int offset, int length,
+				String ifaceName);
+	}
+
+	/** Size of the header of a VNS_PACKET command */
+	public static final int PACKET_HEADER_SIZE = 4 + 4 + 16;
+
+	private ServerSocket serverSocket;
+	private Socket socket;
+	private DataInputStream inStream;
+	private OutputStream outStream;
+
+	/** Hardware info sent to the device when it connects */
+	private CommandHwInfo hwInfo;
+
+	/**
+	 * Create a server listening on a port.
+	 * @param port TCP port on which to listen
+	 */
+	public VNSServer(int port) throws IOException
+	{
+		this.serverSocket = new ServerSocket(port);
+		this.hwInfo = new CommandHwInfo();
+	}
+
+	/**
+	 * Add an interface without addresses, as for a switch.
+	 * @param name name of the interface
+	 */
+	public void addInterface(String name)
+	{
+		this.hwInfo.mHwInfo.add(new CommandHwEntry(
+				CommandHwEntry.HW_INTERFACE, name.getBytes()));
+	}
+
+	/**
+	 * Add an interface with addresses, as for a router.
+	 * @param name name of the interface
+	 * @param mac MAC address of the interface
+	 * @param ip IP address of the interface
+	 * @param mask subnet mask of the interface
+	 */
+	public void addInterface(String name, MACAddress mac, int ip, int mask)
+	{
+		this.addInterface(name);
+		this.hwInfo.mHwInfo.add(new CommandHwEntry(
+				CommandHwEntry.HW_ETHER, mac.toBytes()));
+		this.hwInfo.mHwInfo.add(new CommandHwEntry(
+				CommandHwEntry.HW_ETH_IP, ByteBuffer.allocate(4).putInt(ip).array()));
+		this.hwInfo.mHwInfo.add(new CommandHwEntry(
+				CommandHwEntry.HW_MASK, ByteBuffer.allocate(4).putInt(mask).array()));
+	}
+
+	/**
+	 * Wait for a device to connect, read its VNS_OPEN, and send it the
+	 * hardware info.
+	 * @return the host ID sent by the device; null if the session could not
+	 *         be opened
+	 */
+	public String accept()
+	{
+		try
+		{
+			this.socket = this.serverSocket.accept();
+			this.socket.setTcpNoDelay(true);
+			this.inStream = new DataInputStream(this.socket.getInputStream());
+			this.outStream = new BufferedOutputStream(
+					this.socket.getOutputStream(), 64 * 1024);
+
+			ByteBuffer buf = this.readCommand();
+			if (null == buf || buf.getInt(4) != Command.VNS_OPEN)
+			{
+				System.err.println("Error: expected VNS_OPEN from device");
+				return null;
+			}
+			CommandOpen cmdOpen = new CommandOpen();
+			cmdOpen.deserialize(buf);
+
+			this.write(this.hwInfo.serialize(), true);
+			return cmdOpen.mVirtualHostId.trim();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Build the VNS_PACKET command that delivers a frame to the device, so
+	 * the command can be sent repeatedly without being rebuilt.
+	 * @param frame bytes of the Ethernet frame
+	 * @param ifaceName interface on which the device receives the frame
+	 * @return the serialized command; the frame starts at
+	 *         {@link #PACKET_HEADER_SIZE}
+	 */
+	public static byte[] buildPacketCommand(byte[] frame, String ifaceName)
+	{
+		// The payload is left undecoded, so the frame is copied unchanged
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, 0, frame.length);
+
+		CommandPacket cmdPacket = new CommandPacket();
+		cmdPacket.mInterfaceName = ifaceName;
+		cmdPacket.etherPacket = etherPacket;
+		return cmdPacket.serialize();
+	}
+
+	/**
+	 * Send a serialized command to the device.
+	 * @param command the serialized command
+	 * @param flush true to push buffered commands onto the socket
+	 * @return true if the command was written, otherwise false
+	 */
+	public boolean write(byte[] command, boolean flush)
+	{
+		synchronized (this.outStream)
+		{
+			try
+			{
+				this.outStream.write(command);
+				if (flush)
+				{ this.outStream.flush(); }
+				return true;
+			}
+			catch (IOException e)
+			{ return false; }
+		}
+	}
+
+	/**
+	 * Push buffered commands onto the socket.
+	 */
+	public boolean flush()
+	{
+		synchronized (this.outStream)
+		{
+			try
+			{
+				this.outStream.flush();
+				return true;
+			}
+			catch (IOException e)
+			{ return false; }
+		}
+	}
+
+	/**
+	 * Read commands from the device until it disconnects, handing packets to
+	 * a listener.
+	 * @param listener notified of every packet the device sends
+	 */
+	public void receiveLoop(PacketListener listener)
+	{
+		ByteBuffer buf;
+		while ((buf = this.readCommand()) != null)
+		{
+			int command = buf.getInt(4);
+			if (Command.VNS_PACKET == command)
+			{
+				String ifaceName = new String(buf.array(), 8, 16).trim();
+				listener.packetReceived(buf.array(), PACKET_HEADER_SIZE,
+						buf.limit() - PACKET_HEADER_SIZE, ifaceName);
+			}
+			else if (Command.VNS_CLOSE == command)
+			{ break; }
+		}
+	}
+
+	/**
+	 * Read a complete command from the device.
+	 * @return a buffer containing the command; null if the connection closed
+	 */
+	private ByteBuffer readCommand()
+	{
+		try
+		{
+			int len = this.inStream.readInt();
+			if (len < 8)
+			{
+				System.err.println(String.format(
+						"Error: invalid command length %d", len));
+				return null;
+			}
+			byte[] data = new byte[len];
+			ByteBuffer.wrap(data).putInt(len);
+			this.inStream.readFully(data, 4, len - 4);
+			return ByteBuffer.wrap(data);
+		}
+		catch (IOException e)
+		{ return null; }
+	}
+
+	/**
+	 * Tell the device the session is over and close the connection.
+	 * @param reason message sent to the device
+	 */
+	public void close(String reason)
+	{
+		if (this.outStream != null)
+		{
+			CommandClose cmdClose = new CommandClose();
+			cmdClose.mErrorMessage = reason;
+			this.write(cmdClose.serialize(), true);
+		}
+		try
+		{
+			if (this.socket != null)
+			{ this.socket.close(); }
+			this.serverSocket.close();
+		}
+		catch (IOException e) { }
+	}
+}
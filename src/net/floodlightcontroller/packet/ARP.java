@@ -208,10 +208,18 @@ public class ARP extends BasePacket {
 
     @Override
     public byte[] serialize() {
-        int length = 8 + (2 * (0xff & this.hardwareAddressLength))
+        return serializeToArray();
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return 8 + (2 * (0xff & this.hardwareAddressLength))
                 + (2 * (0xff & this.protocolAddressLength));
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
         bb.putShort(this.hardwareType);
         bb.putShort(this.protocolType);
         bb.put(this.hardwareAddressLength);
@@ -221,7 +229,7 @@ public class ARP extends BasePacket {
         bb.put(this.senderProtocolAddress, 0, 0xff & this.protocolAddressLength);
         bb.put(this.targetHardwareAddress, 0, 0xff & this.hardwareAddressLength);
         bb.put(this.targetProtocolAddress, 0, 0xff & this.protocolAddressLength);
-        return data;
+        return bb.position() - start;
     }
 
     @Override
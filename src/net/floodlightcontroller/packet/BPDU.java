@@ -0,0 +1,280 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bridge protocol data unit of the spanning tree protocols (802.1D):
+ * a configuration BPDU of STP, a rapid spanning tree (RST) BPDU, or a
+ * topology change notification, which has no fields after its type.
+ * Bridge IDs hold the bridge priority in the upper 16 bits and a MAC
+ * address in the lower 48, so they compare as unsigned numbers; times are
+ * in 1/256ths of a second.
+ */
+public class BPDU extends BasePacket {
+    /** Group address BPDUs are sent to, which bridges never forward */
+    public static final long BRIDGE_GROUP_ADDRESS = 0x0180c2000000L;
+
+    public static final byte VERSION_STP = 0;
+    public static final byte VERSION_RSTP = 2;
+
+    public static final byte TYPE_CONFIG = 0x00;
+    public static final byte TYPE_RST = 0x02;
+    public static final byte TYPE_TCN = (byte) 0x80;
+
+    public static final byte FLAG_TOPOLOGY_CHANGE = 0x01;
+    public static final byte FLAG_PROPOSAL = 0x02;
+    public static final byte FLAG_LEARNING = 0x10;
+    public static final byte FLAG_FORWARDING = 0x20;
+    public static final byte FLAG_AGREEMENT = 0x40;
+    public static final byte FLAG_TOPOLOGY_CHANGE_ACK = (byte) 0x80;
+
+    /** Port role carried in bits 2 and 3 of the flags of an RST BPDU */
+    public static final int ROLE_SHIFT = 2;
+    public static final byte ROLE_UNKNOWN = 0;
+    public static final byte ROLE_ALTERNATE_BACKUP = 1;
+    public static final byte ROLE_ROOT = 2;
+    public static final byte ROLE_DESIGNATED = 3;
+
+    /** Lengths of each type of BPDU */
+    private static final int TCN_LENGTH = 4;
+    private static final int CONFIG_LENGTH = 35;
+    private static final int RST_LENGTH = 36;
+
+    protected short protocolId;
+    protected byte version;
+    protected byte type;
+    protected byte flags;
+    protected long rootId;
+    protected int rootPathCost;
+    protected long bridgeId;
+    protected short portId;
+    protected short messageAge;
+    protected short maxAge;
+    protected short helloTime;
+    protected short forwardDelay;
+    protected boolean isTruncated;
+
+    public BPDU() {
+        super();
+        this.version = VERSION_RSTP;
+        this.type = TYPE_RST;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public BPDU setVersion(byte version) {
+        this.version = version;
+        return this;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public BPDU setType(byte type) {
+        this.type = type;
+        return this;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public BPDU setFlags(byte flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    /**
+     * @return true if every bit of a flag is set
+     */
+    public boolean hasFlag(byte flag) {
+        return (this.flags & flag) == flag;
+    }
+
+    /**
+     * @return the role of the sending port, ROLE_UNKNOWN for BPDUs other
+     *         than RST BPDUs
+     */
+    public byte getPortRole() {
+        return (this.type == TYPE_RST)
+                ? (byte) ((this.flags >> ROLE_SHIFT) & 0x3) : ROLE_UNKNOWN;
+    }
+
+    public long getRootId() {
+        return rootId;
+    }
+
+    public BPDU setRootId(long rootId) {
+        this.rootId = rootId;
+        return this;
+    }
+
+    public int getRootPathCost() {
+        return rootPathCost;
+    }
+
+    public BPDU setRootPathCost(int rootPathCost) {
+        this.rootPathCost = rootPathCost;
+        return this;
+    }
+
+    public long getBridgeId() {
+        return bridgeId;
+    }
+
+    public BPDU setBridgeId(long bridgeId) {
+        this.bridgeId = bridgeId;
+        return this;
+    }
+
+    public short getPortId() {
+        return portId;
+    }
+
+    public BPDU setPortId(short portId) {
+        this.portId = portId;
+        return this;
+    }
+
+    public short getMessageAge() {
+        return messageAge;
+    }
+
+    public BPDU setMessageAge(short messageAge) {
+        this.messageAge = messageAge;
+        return this;
+    }
+
+    public short getMaxAge() {
+        return maxAge;
+    }
+
+    public BPDU setMaxAge(short maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public short getHelloTime() {
+        return helloTime;
+    }
+
+    public BPDU setHelloTime(short helloTime) {
+        this.helloTime = helloTime;
+        return this;
+    }
+
+    public short getForwardDelay() {
+        return forwardDelay;
+    }
+
+    public BPDU setForwardDelay(short forwardDelay) {
+        this.forwardDelay = forwardDelay;
+        return this;
+    }
+
+    public byte[] serialize() {
+        return serializeToArray();
+    }
+
+    @Override
+    public int getSerializedLength() {
+        if (this.type == TYPE_TCN)
+            return TCN_LENGTH;
+        return (this.type == TYPE_RST) ? RST_LENGTH : CONFIG_LENGTH;
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
+        bb.putShort(this.protocolId);
+        bb.put(this.version);
+        bb.put(this.type);
+        if (this.type != TYPE_TCN) {
+            bb.put(this.flags);
+            bb.putLong(this.rootId);
+            bb.putInt(this.rootPathCost);
+            bb.putLong(this.bridgeId);
+            bb.putShort(this.portId);
+            bb.putShort(this.messageAge);
+            bb.putShort(this.maxAge);
+            bb.putShort(this.helloTime);
+            bb.putShort(this.forwardDelay);
+            // version 1 length, always 0
+            if (this.type == TYPE_RST)
+                bb.put((byte) 0);
+        }
+
+        if (this.parent instanceof LLC) {
+            ((LLC) this.parent).setDsap(LLC.SAP_STP);
+            ((LLC) this.parent).setSsap(LLC.SAP_STP);
+        }
+        return bb.position() - start;
+    }
+
+    /**
+     * @return true if the BPDU was too short to hold the fields its type
+     *         needs, which are then left unset
+     */
+    public boolean isTruncated() {
+        return isTruncated;
+    }
+
+    @Override
+    public IPacket deserialize(byte[] data, int offset, int length) {
+        ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+        this.isTruncated = true;
+        if (length < TCN_LENGTH)
+            return this;
+        this.protocolId = bb.getShort();
+        this.version = bb.get();
+        this.type = bb.get();
+        this.isTruncated = (this.type != TYPE_TCN
+                && bb.remaining() < CONFIG_LENGTH - TCN_LENGTH);
+        if (this.type == TYPE_TCN || this.isTruncated)
+            return this;
+        this.flags = bb.get();
+        this.rootId = bb.getLong();
+        this.rootPathCost = bb.getInt();
+        this.bridgeId = bb.getLong();
+        this.portId = bb.getShort();
+        this.messageAge = bb.getShort();
+        this.maxAge = bb.getShort();
+        this.helloTime = bb.getShort();
+        this.forwardDelay = bb.getShort();
+        return this;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 5827;
+        int result = super.hashCode();
+        result = prime * result + type;
+        result = prime * result + flags;
+        result = prime * result + Long.hashCode(rootId);
+        result = prime * result + rootPathCost;
+        result = prime * result + Long.hashCode(bridgeId);
+        result = prime * result + portId;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!super.equals(obj))
+            return false;
+        if (!(obj instanceof BPDU))
+            return false;
+        BPDU other = (BPDU) obj;
+        return protocolId == other.protocolId && version == other.version
+                && type == other.type && flags == other.flags
+                && rootId == other.rootId && rootPathCost == other.rootPathCost
+                && bridgeId == other.bridgeId && portId == other.portId
+                && messageAge == other.messageAge && maxAge == other.maxAge
+                && helloTime == other.helloTime
+                && forwardDelay == other.forwardDelay;
+    }
+}
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 
 /**
 *
@@ -26,6 +27,21 @@ public abstract class BasePacket implements IPacket {
     protected IPacket parent;
     protected IPacket payload;
 
+    /**
+     * Undecoded bytes of the payload. Payloads are decoded the first time
+     * {@link #getPayload()} is called; until then they are kept as a slice of
+     * the buffer the packet was deserialized from, and are serialized again
+     * unchanged. Null once the payload is decoded or replaced.
+     */
+    protected byte[] rawPayload;
+    protected int rawPayloadOffset;
+    protected int rawPayloadLength;
+
+    /** Whether the packet was taken from a {@link PacketPool}, and whether
+     *  it is currently in one */
+    boolean pooled;
+    boolean free;
+
     /**
      * @return the parent
      */
@@ -48,6 +64,14 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (rawPayload != null) {
+            IPacket decoded = createPayload();
+            decoded.setParent(this);
+            payload = decoded.deserialize(rawPayload, rawPayloadOffset,
+                    rawPayloadLength);
+            payload.setParent(this);
+            rawPayload = null;
+        }
         return payload;
     }
 
@@ -57,8 +81,102 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.rawPayload = null;
         return this;
     }
+
+    /**
+     * Return this packet to the state it was constructed in, so it can be
+     * reused to deserialize another packet. The payload is dropped, not
+     * reset.
+     */
+    public void reset() {
+        this.parent = null;
+        this.payload = null;
+        this.rawPayload = null;
+        this.rawPayloadOffset = 0;
+        this.rawPayloadLength = 0;
+    }
+
+    /**
+     * Keep the bytes of the payload undecoded until the payload is needed.
+     * Called by deserialize in place of decoding the payload.
+     * @param data buffer holding the payload; not copied
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     */
+    protected void setRawPayload(byte[] data, int offset, int length) {
+        this.payload = null;
+        this.rawPayload = data;
+        this.rawPayloadOffset = offset;
+        this.rawPayloadLength = length;
+    }
+
+    /**
+     * Create an empty packet of the type this packet's payload holds, based
+     * on the header fields already deserialized.
+     * @return a new packet to deserialize the payload into
+     */
+    protected IPacket createPayload() {
+        return PacketPool.data();
+    }
+
+    /**
+     * @return the serialized length of the payload; 0 if there is none
+     */
+    protected int getPayloadLength() {
+        if (rawPayload != null)
+            return rawPayloadLength;
+        return (payload == null) ? 0 : payload.getSerializedLength();
+    }
+
+    /**
+     * Serialize the payload into a buffer. An undecoded payload is copied
+     * in unchanged.
+     * @param bb buffer to write the payload into at its position
+     */
+    protected void serializePayload(ByteBuffer bb) {
+        if (rawPayload != null) {
+            bb.put(rawPayload, rawPayloadOffset, rawPayloadLength);
+        } else if (payload != null) {
+            payload.setParent(this);
+            payload.serialize(bb);
+        }
+    }
+
+    /**
+     * Serialize this packet into a new array of the size it needs. For
+     * packets that implement serialize(ByteBuffer).
+     * @return a byte[] containing this packet and payloads
+     */
+    protected byte[] serializeToArray() {
+        byte[] data = new byte[getSerializedLength()];
+        serialize(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Packets that only implement serialize() are serialized to find their
+     * length.
+     */
+    @Override
+    public int getSerializedLength() {
+        byte[] data = serialize();
+        return (data == null) ? 0 : data.length;
+    }
+
+    /**
+     * Packets that only implement serialize() are serialized to an array
+     * that is then copied into the buffer.
+     */
+    @Override
+    public int serialize(ByteBuffer bb) {
+        byte[] data = serialize();
+        if (data == null)
+            return 0;
+        bb.put(data);
+        return data.length;
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +191,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +208,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -26,6 +27,10 @@ import java.util.Arrays;
 public class Data extends BasePacket {
     protected byte[] data;
 
+    /** Array of a reset packet, reused by deserialize if it is the size
+     *  needed */
+    private byte[] spare;
+
     /**
      * 
      */
@@ -58,9 +63,36 @@ public class Data extends BasePacket {
         return this.data;
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        if (this.data != null)
+            this.spare = this.data;
+        this.data = null;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return (this.data == null) ? 0 : this.data.length;
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        if (this.data == null)
+            return 0;
+        bb.put(this.data);
+        return this.data.length;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
-        this.data = Arrays.copyOfRange(data, offset, data.length);
+        if (this.spare != null && this.spare.length == length) {
+            System.arraycopy(data, offset, this.spare, 0, length);
+            this.data = this.spare;
+            this.spare = null;
+        } else {
+            this.data = Arrays.copyOfRange(data, offset, offset + length);
+        }
         return this;
     }
 
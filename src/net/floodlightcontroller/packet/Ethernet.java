@@ -18,9 +18,6 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.openflow.util.HexString;
 
@@ -36,18 +33,22 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_LLDP = (short) 0x88cc;
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
+    /** Largest value of the type field that is an 802.3 length, rather than
+     *  an EtherType; frames with a length carry an 802.2 LLC header */
+    public static final int MAX_LENGTH_FIELD = 1500;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
-    public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
+    /** Payload factories keyed by EtherType; register new protocols here */
+    public static final PayloadRegistry etherTypeRegistry = new PayloadRegistry();
 
     static {
-        etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
-        etherTypeClassMap.put(TYPE_ARP, ARP.class);
-        etherTypeClassMap.put(TYPE_RARP, ARP.class);
-        etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
+        etherTypeRegistry.register(TYPE_ARP, ARP::new);
+        etherTypeRegistry.register(TYPE_RARP, ARP::new);
+        etherTypeRegistry.register(TYPE_IPv4, PacketPool::ipv4);
     }
 
-    protected MACAddress destinationMACAddress;
-    protected MACAddress sourceMACAddress;
+    /** MAC addresses in the lower 48 bits */
+    protected long destinationMACAddress;
+    protected long sourceMACAddress;
     protected byte priorityCode;
     protected short vlanID;
     protected short etherType;
@@ -60,18 +61,36 @@ public class Ethernet extends BasePacket {
         super();
         this.vlanID = VLAN_UNTAGGED;
     }
+
+    @Override
+    public void reset() {
+        super.reset();
+        this.destinationMACAddress = 0;
+        this.sourceMACAddress = 0;
+        this.priorityCode = 0;
+        this.vlanID = VLAN_UNTAGGED;
+        this.etherType = 0;
+        this.pad = false;
+    }
     
     /**
      * @return the destination MAC as a byte array
      */
     public byte[] getDestinationMACAddress() {
-        return destinationMACAddress.toBytes();
+        return MACAddress.toBytes(destinationMACAddress);
     }
     
     /**
      * @return the destination MAC
      */
     public MACAddress getDestinationMAC() {
+        return MACAddress.valueOf(destinationMACAddress);
+    }
+
+    /**
+     * @return the destination MAC in the lower 48 bits
+     */
+    public long getDestinationMACLong() {
         return destinationMACAddress;
     }
 
@@ -79,7 +98,7 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(byte[] destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress).toLong();
         return this;
     }
 
@@ -87,7 +106,16 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(String destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress).toLong();
+        return this;
+    }
+
+    /**
+     * @param destinationMACAddress the destination MAC to set, in the lower
+     *        48 bits
+     */
+    public Ethernet setDestinationMACLong(long destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress & MACAddress.BROADCAST;
         return this;
     }
 
@@ -95,13 +123,20 @@ public class Ethernet extends BasePacket {
      * @return the source MACAddress as a byte array
      */
     public byte[] getSourceMACAddress() {
-        return sourceMACAddress.toBytes();
+        return MACAddress.toBytes(sourceMACAddress);
     }
     
     /**
      * @return the source MACAddress
      */
     public MACAddress getSourceMAC() {
+        return MACAddress.valueOf(sourceMACAddress);
+    }
+
+    /**
+     * @return the source MAC in the lower 48 bits
+     */
+    public long getSourceMACLong() {
         return sourceMACAddress;
     }
 
@@ -109,7 +144,7 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(byte[] sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress).toLong();
         return this;
     }
 
@@ -117,7 +152,15 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(String sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress).toLong();
+        return this;
+    }
+
+    /**
+     * @param sourceMACAddress the source MAC to set, in the lower 48 bits
+     */
+    public Ethernet setSourceMACLong(long sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress & MACAddress.BROADCAST;
         return this;
     }
 
@@ -170,15 +213,14 @@ public class Ethernet extends BasePacket {
      * @return True if the Ethernet frame is broadcast, false otherwise
      */
     public boolean isBroadcast() {
-        assert(destinationMACAddress.length() == 6);
-        return destinationMACAddress.isBroadcast();
+        return destinationMACAddress == MACAddress.BROADCAST;
     }
     
     /**
      * @return True is the Ethernet frame is multicast, False otherwise
      */
     public boolean isMulticast() {
-        return destinationMACAddress.isMulticast();
+        return !isBroadcast() && (destinationMACAddress & 0x010000000000L) != 0;
     }
     /**
      * Pad this packet to 60 bytes minimum, filling with zeros?
@@ -198,31 +240,37 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        return serializeToArray();
+    }
+
+    @Override
+    public int getSerializedLength() {
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          getPayloadLength();
         if (pad && length < 60) {
             length = 60;
         }
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.put(destinationMACAddress.toBytes());
-        bb.put(sourceMACAddress.toBytes());
+        return length;
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
+        bb.putShort((short) (destinationMACAddress >>> 32));
+        bb.putInt((int) destinationMACAddress);
+        bb.putShort((short) (sourceMACAddress >>> 32));
+        bb.putInt((int) sourceMACAddress);
         if (vlanID != VLAN_UNTAGGED) {
             bb.putShort((short) 0x8100);
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
-        bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        bb.putShort(hasLengthField() ? (short) getPayloadLength() : etherType);
+        serializePayload(bb);
         if (pad) {
-            Arrays.fill(data, bb.position(), data.length, (byte)0x0);
+            while (bb.position() - start < 60)
+                bb.put((byte)0x0);
         }
-        return data;
+        return bb.position() - start;
     }
 
     @Override
@@ -230,17 +278,10 @@ public class Ethernet extends BasePacket {
         if (length <= 0)
             return null;
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-        if (this.destinationMACAddress == null)
-            this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(dstAddr);
-        this.destinationMACAddress = MACAddress.valueOf(dstAddr);
-
-        if (this.sourceMACAddress == null)
-            this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(srcAddr);
-        this.sourceMACAddress = MACAddress.valueOf(srcAddr);
+        this.destinationMACAddress = ((bb.getShort() & 0xffffL) << 32)
+                | (bb.getInt() & 0xffffffffL);
+        this.sourceMACAddress = ((bb.getShort() & 0xffffL) << 32)
+                | (bb.getInt() & 0xffffffffL);
 
         short etherType = bb.getShort();
         if (etherType == (short) 0x8100) {
@@ -253,22 +294,30 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        // Padding follows the payload of a frame that gives its length
+        int payloadLength = bb.limit() - bb.position();
+        if (hasLengthField())
+            payloadLength = Math.min(payloadLength, etherType & 0xffff);
+        setRawPayload(data, bb.position(), payloadLength);
         return this;
     }
 
+    /**
+     * @return true if the type field holds the length of the payload, an
+     *         802.2 LLC header and its payload, rather than an EtherType
+     */
+    public boolean hasLengthField() {
+        return (this.etherType & 0xffff) <= MAX_LENGTH_FIELD;
+    }
+
+    @Override
+    protected IPacket createPayload() {
+        if (hasLengthField())
+            return new LLC();
+        IPacket payload = Ethernet.etherTypeRegistry.create(this.etherType);
+        return (payload == null) ? PacketPool.data() : payload;
+    }
+
     /**
      * Checks to see if a string is a valid MAC address.
      * @param macAddress
@@ -305,7 +354,7 @@ public class Ethernet extends BasePacket {
      * @return a long containing the mac address bytes
      */
     public static long toLong(byte[] macAddress) {
-        return MACAddress.valueOf(macAddress).toLong();
+        return MACAddress.toLong(macAddress);
     }
 
     /**
@@ -314,7 +363,7 @@ public class Ethernet extends BasePacket {
      * @return the bytes of the mac address
      */
     public static byte[] toByteArray(long macAddress) {
-        return MACAddress.valueOf(macAddress).toBytes();
+        return MACAddress.toBytes(macAddress);
     }
     
     /* (non-Javadoc)
@@ -324,12 +373,12 @@ public class Ethernet extends BasePacket {
     public int hashCode() {
         final int prime = 7867;
         int result = super.hashCode();
-        result = prime * result + destinationMACAddress.hashCode();
+        result = prime * result + Long.hashCode(destinationMACAddress);
         result = prime * result + etherType;
         result = prime * result + vlanID;
         result = prime * result + priorityCode;
         result = prime * result + (pad ? 1231 : 1237);
-        result = prime * result + sourceMACAddress.hashCode();
+        result = prime * result + Long.hashCode(sourceMACAddress);
         return result;
     }
 
@@ -345,7 +394,7 @@ public class Ethernet extends BasePacket {
         if (!(obj instanceof Ethernet))
             return false;
         Ethernet other = (Ethernet) obj;
-        if (!destinationMACAddress.equals(other.destinationMACAddress))
+        if (destinationMACAddress != other.destinationMACAddress)
             return false;
         if (priorityCode != other.priorityCode)
             return false;
@@ -355,7 +404,7 @@ public class Ethernet extends BasePacket {
             return false;
         if (pad != other.pad)
             return false;
-        if (!sourceMACAddress.equals(other.sourceMACAddress))
+        if (sourceMACAddress != other.sourceMACAddress)
             return false;
         return true;
     }
@@ -24,12 +24,34 @@ import java.nio.ByteBuffer;
  * @author shudong.zhou@bigswitch.com
  */
 public class ICMP extends BasePacket {
+    public static final byte TYPE_ECHO_REPLY = 0x0;
+    public static final byte TYPE_DESTINATION_UNREACHABLE = 0x3;
     public static final byte TYPE_ECHO_REQUEST = 0x8;
+    public static final byte TYPE_TIME_EXCEEDED = 0xb;
+
+    public static final byte CODE_NET_UNREACHABLE = 0x0;
+    public static final byte CODE_HOST_UNREACHABLE = 0x1;
+    public static final byte CODE_PORT_UNREACHABLE = 0x3;
+    public static final byte CODE_FRAGMENTATION_NEEDED = 0x4;
+    public static final byte CODE_TTL_EXCEEDED = 0x0;
 
     protected byte icmpType;
     protected byte icmpCode;
     protected short checksum;
 
+    /**
+     * @param icmpType an ICMP type
+     * @return true if the type is an error message, which must never cause
+     *         another error message to be sent (RFC 1122)
+     */
+    public static boolean isError(byte icmpType) {
+        return icmpType == TYPE_DESTINATION_UNREACHABLE
+                || icmpType == 0x4 // source quench
+                || icmpType == 0x5 // redirect
+                || icmpType == TYPE_TIME_EXCEEDED
+                || icmpType == 0xc; // parameter problem
+    }
+
     /**
      * @return the icmpType
      */
@@ -82,45 +104,45 @@ public class ICMP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
+        return serializeToArray();
+    }
 
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public int getSerializedLength() {
+        return 4 + getPayloadLength();
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
+        int length = getSerializedLength();
 
         bb.put(this.icmpType);
         bb.put(this.icmpCode);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayload(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_ICMP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + 2 * i);
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (bb.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(2, this.checksum);
+            bb.putShort(start + 2, this.checksum);
         }
-        return data;
+        return bb.position() - start;
     }
 
     /* (non-Javadoc)
@@ -164,9 +186,7 @@ public class ICMP extends BasePacket {
         this.icmpCode = bb.get();
         this.checksum = bb.getShort();
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        setRawPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
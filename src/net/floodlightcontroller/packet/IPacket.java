@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -60,6 +62,24 @@ public interface IPacket {
      */
     public byte[] serialize();
 
+    /**
+     * Computes the number of bytes serialize() will produce for this packet
+     * and all payloads, without serializing them
+     * @return the serialized length
+     */
+    public int getSerializedLength();
+
+    /**
+     * Sets all payloads parent packet if applicable, then serializes this
+     * packet and all payloads into a big-endian buffer, starting at its
+     * position, without allocating intermediate arrays. Fields computed by
+     * serialize() are computed the same way.
+     * @param bb buffer with at least getSerializedLength() bytes remaining;
+     *        its position is advanced past the packet
+     * @return the number of bytes written
+     */
+    public int serialize(ByteBuffer bb);
+
     /**
      * Deserializes this packet layer and all possible payloads
      * @param data
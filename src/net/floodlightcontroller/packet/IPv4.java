@@ -23,8 +23,6 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -34,13 +32,15 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
-    public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
+    public static final byte FLAG_DONT_FRAGMENT = 0x2;
+    public static final byte FLAG_MORE_FRAGMENTS = 0x1;
+    /** Payload factories keyed by IP protocol; register new protocols here */
+    public static final PayloadRegistry protocolRegistry = new PayloadRegistry();
 
     static {
-        protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
-        protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
-        protocolClassMap.put(PROTOCOL_TCP, TCP.class);
-        protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+        protocolRegistry.register(PROTOCOL_ICMP, ICMP::new);
+        protocolRegistry.register(PROTOCOL_TCP, TCP::new);
+        protocolRegistry.register(PROTOCOL_UDP, PacketPool::udp);
     }
 
     protected byte version;
@@ -68,6 +68,25 @@ public class IPv4 extends BasePacket {
         isTruncated = false;
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        this.version = 4;
+        this.headerLength = 0;
+        this.diffServ = 0;
+        this.totalLength = 0;
+        this.identification = 0;
+        this.flags = 0;
+        this.fragmentOffset = 0;
+        this.ttl = 0;
+        this.protocol = 0;
+        this.checksum = 0;
+        this.sourceAddress = 0;
+        this.destinationAddress = 0;
+        this.options = null;
+        this.isTruncated = false;
+    }
+
     /**
      * @return the version
      */
@@ -215,6 +234,33 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Computes the header checksum from the header fields, as serialize
+     * would, without serializing the packet or its payload.
+     * @return the checksum the header should carry
+     */
+    public short computeChecksum() {
+        int optionsLength = (this.options == null) ? 0 : this.options.length / 4;
+        int headerLength = 5 + optionsLength;
+        int totalLength = headerLength * 4 + getPayloadLength();
+        int accumulation = ((((this.version & 0xf) << 4) | (headerLength & 0xf)) << 8)
+                + (this.diffServ & 0xff)
+                + (totalLength & 0xffff)
+                + (this.identification & 0xffff)
+                + ((((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff)) & 0xffff)
+                + ((this.ttl & 0xff) << 8) + (this.protocol & 0xff)
+                + (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff)
+                + (this.destinationAddress >>> 16)
+                + (this.destinationAddress & 0xffff);
+        for (int i = 0; i < optionsLength * 4; i += 2) {
+            accumulation += ((this.options[i] & 0xff) << 8)
+                    | (this.options[i + 1] & 0xff);
+        }
+        accumulation = (accumulation >>> 16) + (accumulation & 0xffff);
+        accumulation += accumulation >>> 16;
+        return (short) (~accumulation & 0xffff);
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -287,22 +333,25 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        return serializeToArray();
+    }
+
+    @Override
+    public int getSerializedLength() {
+        int optionsLength = (this.options == null) ? 0 : this.options.length;
+        return 20 + optionsLength + getPayloadLength();
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
 
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
         this.headerLength = (byte) (5 + optionsLength);
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
-
-        byte[] data = new byte[this.totalLength];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        this.totalLength = (short) (this.headerLength * 4 + getPayloadLength());
 
         bb.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
         bb.put(this.diffServ);
@@ -316,22 +365,24 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayload(bb);
+
+        // the payload may have set the protocol
+        bb.put(start + 9, this.protocol);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
             for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + 2 * i);
             }
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
+            accumulation += accumulation >>> 16;
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(10, this.checksum);
+            bb.putShort(start + 10, this.checksum);
         }
-        return data;
+        return bb.position() - start;
     }
 
     @Override
@@ -360,19 +411,7 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        setRawPayload(data, bb.position(), bb.limit()-bb.position());
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -382,6 +421,270 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    @Override
+    protected IPacket createPayload() {
+        IPacket payload = IPv4.protocolRegistry.create(this.protocol & 0xff);
+        return (payload == null) ? PacketPool.data() : payload;
+    }
+
+    /**
+     * Reads the ports of a TCP or UDP packet that is not a fragment. Ports
+     * are read from the undecoded payload if it has not been decoded, so
+     * this does not decode it.
+     * @return the source port in the upper 16 bits and the destination port
+     *         in the lower 16 bits; 0 for other packets
+     */
+    public int getTransportPorts() {
+        if ((this.protocol != PROTOCOL_TCP && this.protocol != PROTOCOL_UDP)
+                || this.fragmentOffset != 0
+                || (this.flags & FLAG_MORE_FRAGMENTS) != 0)
+            return 0;
+        if (this.rawPayload != null) {
+            if (this.rawPayloadLength < 4)
+                return 0;
+            return ((this.rawPayload[this.rawPayloadOffset] & 0xff) << 24)
+                    | ((this.rawPayload[this.rawPayloadOffset + 1] & 0xff) << 16)
+                    | ((this.rawPayload[this.rawPayloadOffset + 2] & 0xff) << 8)
+                    | (this.rawPayload[this.rawPayloadOffset + 3] & 0xff);
+        } else if (this.payload instanceof TCP) {
+            TCP tcp = (TCP) this.payload;
+            return (tcp.getSourcePort() << 16) | (tcp.getDestinationPort() & 0xffff);
+        } else if (this.payload instanceof UDP) {
+            UDP udp = (UDP) this.payload;
+            return (udp.getSourcePort() << 16) | (udp.getDestinationPort() & 0xffff);
+        }
+        return 0;
+    }
+
+    /**
+     * Hashes the flow this packet belongs to: its addresses, protocol and,
+     * for TCP and UDP packets that are not fragments, its ports. Every
+     * packet of a flow hashes alike, so choosing among paths by this hash
+     * keeps a flow's packets in order.
+     * @return the hash
+     */
+    public int flowHash() {
+        // Combine the fields, then mix them with the MurmurHash3 finalizer
+        int hash = this.sourceAddress;
+        hash = hash * 31 + this.destinationAddress;
+        hash = hash * 31 + (this.protocol & 0xff);
+        hash = hash * 31 + getTransportPorts();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Rewrites the source address and, for TCP and UDP packets that are not
+     * fragments, the source port, as a NAT does. The header checksum and
+     * the TCP or UDP checksum are adjusted for the changed words (RFC 1624)
+     * rather than recomputed; an undecoded payload is patched in place, so
+     * this does not decode it.
+     * @param address the new source address
+     * @param port the new source port; ignored for other packets
+     */
+    public void rewriteSource(int address, short port) {
+        rewrite(true, address, port);
+    }
+
+    /**
+     * Rewrites the destination address and, for TCP and UDP packets that
+     * are not fragments, the destination port, adjusting checksums as
+     * {@link #rewriteSource(int, short)} does.
+     * @param address the new destination address
+     * @param port the new destination port; ignored for other packets
+     */
+    public void rewriteDestination(int address, short port) {
+        rewrite(false, address, port);
+    }
+
+    private void rewrite(boolean source, int address, short port) {
+        int oldAddress = source ? this.sourceAddress : this.destinationAddress;
+        if (source)
+            this.sourceAddress = address;
+        else
+            this.destinationAddress = address;
+        // a checksum of 0 is computed when serialized
+        if (this.checksum != 0)
+            this.checksum = adjustChecksum(this.checksum, oldAddress, address);
+
+        // The transport checksum covers the addresses, so it changes even
+        // where the port does not
+        if ((this.protocol != PROTOCOL_TCP && this.protocol != PROTOCOL_UDP)
+                || this.fragmentOffset != 0
+                || (this.flags & FLAG_MORE_FRAGMENTS) != 0)
+            return;
+        boolean tcp = (this.protocol == PROTOCOL_TCP);
+        if (this.rawPayload != null) {
+            int portOffset = this.rawPayloadOffset + (source ? 0 : 2);
+            int checksumOffset = this.rawPayloadOffset + (tcp ? 16 : 6);
+            if (this.rawPayloadLength < (tcp ? 18 : 8))
+                return;
+            short oldPort = (short) (((this.rawPayload[portOffset] & 0xff) << 8)
+                    | (this.rawPayload[portOffset + 1] & 0xff));
+            short sum = (short) (((this.rawPayload[checksumOffset] & 0xff) << 8)
+                    | (this.rawPayload[checksumOffset + 1] & 0xff));
+            sum = adjustTransportChecksum(tcp, sum, oldAddress, address,
+                    oldPort, port);
+            this.rawPayload[portOffset] = (byte) (port >> 8);
+            this.rawPayload[portOffset + 1] = (byte) port;
+            this.rawPayload[checksumOffset] = (byte) (sum >> 8);
+            this.rawPayload[checksumOffset + 1] = (byte) sum;
+        } else if (this.payload instanceof TCP) {
+            TCP segment = (TCP) this.payload;
+            short oldPort = source ? segment.getSourcePort()
+                    : segment.getDestinationPort();
+            segment.setChecksum(adjustTransportChecksum(true,
+                    segment.getChecksum(), oldAddress, address, oldPort, port));
+            if (source)
+                segment.setSourcePort(port);
+            else
+                segment.setDestinationPort(port);
+        } else if (this.payload instanceof UDP) {
+            UDP datagram = (UDP) this.payload;
+            short oldPort = source ? datagram.getSourcePort()
+                    : datagram.getDestinationPort();
+            datagram.setChecksum(adjustTransportChecksum(false,
+                    datagram.getChecksum(), oldAddress, address, oldPort, port));
+            if (source)
+                datagram.setSourcePort(port);
+            else
+                datagram.setDestinationPort(port);
+        }
+    }
+
+    private static short adjustTransportChecksum(boolean tcp, short checksum,
+            int oldAddress, int address, short oldPort, short port) {
+        // a UDP checksum of 0 means there is none, and a computed 0 is sent
+        // as 0xffff; a TCP checksum of 0 is computed when serialized
+        if (checksum == 0)
+            return 0;
+        checksum = adjustChecksum(checksum, oldAddress, address);
+        checksum = adjustChecksum(checksum, oldPort & 0xffff, port & 0xffff);
+        return (!tcp && checksum == 0) ? (short) 0xffff : checksum;
+    }
+
+    /**
+     * Adjusts a ones' complement checksum for a changed 32-bit value, as in
+     * RFC 1624: HC' = ~(~HC + ~m + m') over each 16-bit half.
+     */
+    private static short adjustChecksum(short checksum, int oldValue, int newValue) {
+        int sum = (~checksum & 0xffff)
+                + (~oldValue >>> 16 & 0xffff) + (~oldValue & 0xffff)
+                + (newValue >>> 16) + (newValue & 0xffff);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        return (short) ~sum;
+    }
+
+    /**
+     * Copies the part of the packet an ICMP error quotes: the header and the
+     * first 8 bytes of the payload (RFC 792).
+     * @return the header and up to 8 bytes of payload, as serialized
+     */
+    public byte[] getIcmpQuote() {
+        byte[] data = serialize();
+        return Arrays.copyOf(data,
+                Math.min(data.length, (this.headerLength & 0xf) * 4 + 8));
+    }
+
+    /**
+     * Splits the packet into fragments no longer than an MTU (RFC 791). The
+     * payload is serialized at most once, and each fragment refers to its
+     * slice of the serialized payload rather than a copy, so the payload is
+     * copied only as each fragment is serialized. The first fragment
+     * carries all the options, later ones only those whose copied flag is
+     * set; each fragment's checksum is computed when it is serialized.
+     * @param mtu largest total length of a fragment, in bytes
+     * @return the fragments, in order; null if the MTU leaves no room for 8
+     *         bytes of payload in a fragment
+     */
+    public IPv4[] fragment(int mtu) {
+        byte[] data;
+        int dataOffset;
+        int dataLength;
+        if (this.rawPayload != null) {
+            data = this.rawPayload;
+            dataOffset = this.rawPayloadOffset;
+            dataLength = this.rawPayloadLength;
+        } else {
+            data = (this.payload == null) ? new byte[0] : this.payload.serialize();
+            dataOffset = 0;
+            dataLength = data.length;
+        }
+
+        // Payload lengths other than the last fragment's are multiples of 8,
+        // since offsets are counted in 8-byte units
+        byte[] laterOptions = copiedOptions(this.options);
+        int firstLength = (mtu - 20 - ((this.options == null) ? 0
+                : this.options.length)) & ~7;
+        int laterLength = (mtu - 20 - ((laterOptions == null) ? 0
+                : laterOptions.length)) & ~7;
+        if (firstLength < 8 || laterLength < 8)
+            return null;
+
+        int count = 1;
+        if (dataLength > firstLength)
+            count += (dataLength - firstLength + laterLength - 1) / laterLength;
+        IPv4[] fragments = new IPv4[count];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(dataLength - position,
+                    (i == 0) ? firstLength : laterLength);
+            IPv4 fragment = new IPv4();
+            fragment.diffServ = this.diffServ;
+            fragment.identification = this.identification;
+            fragment.flags = (i < count - 1)
+                    ? (byte) (this.flags | FLAG_MORE_FRAGMENTS) : this.flags;
+            fragment.fragmentOffset = (short) (this.fragmentOffset + position / 8);
+            fragment.ttl = this.ttl;
+            fragment.protocol = this.protocol;
+            fragment.sourceAddress = this.sourceAddress;
+            fragment.destinationAddress = this.destinationAddress;
+            fragment.options = (i == 0) ? this.options : laterOptions;
+            fragment.setRawPayload(data, dataOffset + position, length);
+            fragments[i] = fragment;
+            position += length;
+        }
+        return fragments;
+    }
+
+    /**
+     * @return the options whose copied flag is set, padded to a multiple of
+     *         4 bytes; null if there are none
+     */
+    private static byte[] copiedOptions(byte[] options) {
+        if (options == null)
+            return null;
+        byte[] copied = new byte[options.length];
+        int length = 0;
+        int i = 0;
+        while (i < options.length) {
+            int type = options[i] & 0xff;
+            // end of option list, and no-operation, are single bytes
+            if (type == 0)
+                break;
+            if (type == 1) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= options.length)
+                break;
+            int optionLength = options[i + 1] & 0xff;
+            if (optionLength < 2 || i + optionLength > options.length)
+                break;
+            if ((type & 0x80) != 0) {
+                System.arraycopy(options, i, copied, length, optionLength);
+                length += optionLength;
+            }
+            i += optionLength;
+        }
+        return (length == 0) ? null : Arrays.copyOf(copied, (length + 3) & ~3);
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
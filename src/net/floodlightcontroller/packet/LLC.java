@@ -0,0 +1,122 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An 802.2 LLC header, which 802.3 frames whose type field holds a length
+ * carry in place of an EtherType. Only unnumbered (3-byte) headers are
+ * supported. The payload is decoded by the protocol registered for the
+ * destination SAP.
+ */
+public class LLC extends BasePacket {
+    /** SAP of the spanning tree protocols */
+    public static final byte SAP_STP = 0x42;
+
+    /** Control field of an unnumbered information frame */
+    public static final byte CONTROL_UI = 0x03;
+
+    /** Payload factories keyed by destination SAP */
+    public static final PayloadRegistry sapRegistry = new PayloadRegistry();
+
+    static {
+        sapRegistry.register(SAP_STP & 0xff, BPDU::new);
+    }
+
+    protected byte dsap;
+    protected byte ssap;
+    protected byte control;
+
+    public LLC() {
+        super();
+        this.control = CONTROL_UI;
+    }
+
+    public byte getDsap() {
+        return dsap;
+    }
+
+    public LLC setDsap(byte dsap) {
+        this.dsap = dsap;
+        return this;
+    }
+
+    public byte getSsap() {
+        return ssap;
+    }
+
+    public LLC setSsap(byte ssap) {
+        this.ssap = ssap;
+        return this;
+    }
+
+    public byte getControl() {
+        return control;
+    }
+
+    public LLC setControl(byte control) {
+        this.control = control;
+        return this;
+    }
+
+    public byte[] serialize() {
+        return serializeToArray();
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return 3 + getPayloadLength();
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
+        bb.put(this.dsap);
+        bb.put(this.ssap);
+        bb.put(this.control);
+        serializePayload(bb);
+
+        // the payload may have set the SAPs
+        bb.put(start, this.dsap);
+        bb.put(start + 1, this.ssap);
+        return bb.position() - start;
+    }
+
+    @Override
+    public IPacket deserialize(byte[] data, int offset, int length) {
+        ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+        this.dsap = bb.get();
+        this.ssap = bb.get();
+        this.control = bb.get();
+        setRawPayload(data, bb.position(), bb.limit() - bb.position());
+        return this;
+    }
+
+    @Override
+    protected IPacket createPayload() {
+        IPacket payload = LLC.sapRegistry.create(this.dsap & 0xff);
+        return (payload == null) ? PacketPool.data() : payload;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 5821;
+        int result = super.hashCode();
+        result = prime * result + dsap;
+        result = prime * result + ssap;
+        result = prime * result + control;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!super.equals(obj))
+            return false;
+        if (!(obj instanceof LLC))
+            return false;
+        LLC other = (LLC) obj;
+        return dsap == other.dsap && ssap == other.ssap
+                && control == other.control;
+    }
+}
@@ -1,18 +1,27 @@
 package net.floodlightcontroller.packet;
 
-import java.util.Arrays;
-
 /**
- * The class representing MAC address.
+ * The class representing MAC address. The address is held in the lower 48
+ * bits of a {@code long}; code on the forwarding path can use the static
+ * conversions to work with {@code long} addresses directly.
  *
  * @author Sho Shimizu (sho.shimizu@gmail.com)
  */
 public class MACAddress {
     public static final int MAC_ADDRESS_LENGTH = 6;
-    private byte[] address = new byte[MAC_ADDRESS_LENGTH];
+
+    /** Largest value of a MAC address, the broadcast address */
+    public static final long BROADCAST = 0xffffffffffffL;
+
+    /** The address in the lower 48 bits */
+    private final long address;
 
     public MACAddress(byte[] address) {
-        this.address = Arrays.copyOf(address, MAC_ADDRESS_LENGTH);
+        this.address = toLong(address);
+    }
+
+    private MACAddress(long address) {
+        this.address = address & BROADCAST;
     }
 
     /**
@@ -29,13 +38,13 @@ public class MACAddress {
                     " separated pairwise by :'s.");
         }
 
-        byte[] addressInBytes = new byte[MAC_ADDRESS_LENGTH];
+        long value = 0;
         for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
             String element = elements[i];
-            addressInBytes[i] = (byte)Integer.parseInt(element, 16);
+            value = (value << 8) | (Integer.parseInt(element, 16) & 0xff);
         }
 
-        return new MACAddress(addressInBytes);
+        return new MACAddress(value);
     }
 
     /**
@@ -60,16 +69,50 @@ public class MACAddress {
      * @throws IllegalArgumentException if the long value cannot be parsed as a MAC address.
      */
     public static MACAddress valueOf(long address) {
-        byte[] addressInBytes = new byte[] {
-                (byte)((address >> 40) & 0xff),
-                (byte)((address >> 32) & 0xff),
-                (byte)((address >> 24) & 0xff),
-                (byte)((address >> 16) & 0xff),
-                (byte)((address >> 8 ) & 0xff),
-                (byte)((address >> 0) & 0xff)
-        };
+        return new MACAddress(address);
+    }
+
+    /**
+     * Converts the first six bytes of an array to a MAC address in a {@code long}.
+     * @param address the bytes of the MAC address; missing bytes are taken as zero.
+     * @return the MAC address in the lower 48 bits of a {@code long}.
+     */
+    public static long toLong(byte[] address) {
+        long mac = 0;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            mac = (mac << 8) | ((i < address.length) ? (address[i] & 0xffL) : 0);
+        }
+        return mac;
+    }
+
+    /**
+     * Converts a MAC address in a {@code long} to a {@code byte} array.
+     * @param address the MAC address in the lower 48 bits of a {@code long}.
+     * @return a new array holding the six bytes of the MAC address.
+     */
+    public static byte[] toBytes(long address) {
+        byte[] bytes = new byte[MAC_ADDRESS_LENGTH];
+        for (int i = MAC_ADDRESS_LENGTH - 1; i >= 0; i--) {
+            bytes[i] = (byte) address;
+            address >>>= 8;
+        }
+        return bytes;
+    }
 
-        return new MACAddress(addressInBytes);
+    /**
+     * Formats a MAC address in a {@code long} as colon-separated hex digits.
+     * @param address the MAC address in the lower 48 bits of a {@code long}.
+     * @return the MAC address as a {@code String}.
+     */
+    public static String toString(long address) {
+        StringBuilder builder = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (builder.length() > 0) {
+                builder.append(":");
+            }
+            builder.append(String.format("%02X", (address >>> shift) & 0xff));
+        }
+        return builder.toString();
     }
 
     /**
@@ -77,7 +120,7 @@ public class MACAddress {
      * @return the length of the {@code MACAddress}.
      */
     public int length() {
-        return address.length;
+        return MAC_ADDRESS_LENGTH;
     }
 
     /**
@@ -85,7 +128,7 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code byte} array.
      */
     public byte[] toBytes() {
-        return Arrays.copyOf(address, address.length);
+        return toBytes(address);
     }
 
     /**
@@ -93,12 +136,7 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code long}.
      */
     public long toLong() {
-        long mac = 0;
-        for (int i = 0; i < 6; i++) {
-            long t = (address[i] & 0xffL) << ((5 - i) * 8);
-            mac |= t;
-        }
-        return mac;
+        return address;
     }
 
     /**
@@ -106,11 +144,7 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the broadcast address.
      */
     public boolean isBroadcast() {
-        for (byte b : address) {
-            if (b != -1) // checks if equal to 0xff
-                return false;
-        }
-        return true;
+        return address == BROADCAST;
     }
 
     /**
@@ -121,7 +155,7 @@ public class MACAddress {
         if (isBroadcast()) {
             return false;
         }
-        return (address[0] & 0x01) != 0;
+        return (address & 0x010000000000L) != 0;
     }
 
     @Override
@@ -135,23 +169,16 @@ public class MACAddress {
         }
 
         MACAddress other = (MACAddress)o;
-        return Arrays.equals(this.address, other.address);
+        return this.address == other.address;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.address);
+        return Long.hashCode(this.address);
     }
 
     @Override
     public String toString() {
-        StringBuilder builder = new StringBuilder();
-        for (byte b: address) {
-            if (builder.length() > 0) {
-                builder.append(":");
-            }
-            builder.append(String.format("%02X", b & 0xFF));
-        }
-        return builder.toString();
+        return toString(address);
     }
 }
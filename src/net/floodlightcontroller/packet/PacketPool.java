@@ -0,0 +1,146 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Per-thread pools of the packet objects decoded from every received frame:
+ * Ethernet, IPv4, UDP and Data. A transport takes the Ethernet for a frame
+ * from the pool, the payloads decoded from it are taken from the pool too,
+ * and the whole chain is reset and returned with {@link #release} once the
+ * frame has been handled, so steady-state forwarding reuses the same objects.
+ *
+ * Pooling is off unless the vnet.packetPool system property is true or it
+ * is turned on with {@link #setEnabled}; while it is off, every method
+ * allocates or does nothing as before. With pooling on, code handling a
+ * received packet must not keep a reference to it, or to any packet decoded
+ * from it, after it is released.
+ */
+public class PacketPool {
+    /** Most objects of each type kept by one thread */
+    public static final int MAX_POOLED = 64;
+
+    private static volatile boolean enabled =
+            Boolean.getBoolean("vnet.packetPool");
+
+    private static final ThreadLocal<PacketPool> pools =
+            ThreadLocal.withInitial(PacketPool::new);
+
+    private final BasePacket[] ethernet = new BasePacket[MAX_POOLED];
+    private final BasePacket[] ipv4 = new BasePacket[MAX_POOLED];
+    private final BasePacket[] udp = new BasePacket[MAX_POOLED];
+    private final BasePacket[] data = new BasePacket[MAX_POOLED];
+    private int ethernetCount;
+    private int ipv4Count;
+    private int udpCount;
+    private int dataCount;
+
+    private PacketPool() {
+    }
+
+    /**
+     * @return true if packets are being pooled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn pooling on or off. Packets taken while pooling was on are still
+     * returned when released.
+     * @param enabled true to pool packets
+     */
+    public static void setEnabled(boolean enabled) {
+        PacketPool.enabled = enabled;
+    }
+
+    /**
+     * @return an Ethernet packet in its initial state
+     */
+    public static Ethernet ethernet() {
+        if (!enabled)
+            return new Ethernet();
+        PacketPool pool = pools.get();
+        Ethernet packet = (pool.ethernetCount > 0)
+                ? (Ethernet) pool.ethernet[--pool.ethernetCount]
+                : new Ethernet();
+        return take(packet);
+    }
+
+    /**
+     * @return an IPv4 packet in its initial state
+     */
+    public static IPv4 ipv4() {
+        if (!enabled)
+            return new IPv4();
+        PacketPool pool = pools.get();
+        IPv4 packet = (pool.ipv4Count > 0)
+                ? (IPv4) pool.ipv4[--pool.ipv4Count]
+                : new IPv4();
+        return take(packet);
+    }
+
+    /**
+     * @return a UDP packet in its initial state
+     */
+    public static UDP udp() {
+        if (!enabled)
+            return new UDP();
+        PacketPool pool = pools.get();
+        UDP packet = (pool.udpCount > 0)
+                ? (UDP) pool.udp[--pool.udpCount]
+                : new UDP();
+        return take(packet);
+    }
+
+    /**
+     * @return an empty Data packet
+     */
+    public static Data data() {
+        if (!enabled)
+            return new Data();
+        PacketPool pool = pools.get();
+        Data packet = (pool.dataCount > 0)
+                ? (Data) pool.data[--pool.dataCount]
+                : new Data();
+        return take(packet);
+    }
+
+    private static <T extends BasePacket> T take(T packet) {
+        packet.pooled = true;
+        packet.free = false;
+        return packet;
+    }
+
+    /**
+     * Reset a packet and its payloads and return those that were taken from
+     * a pool to the current thread's pool. Payloads that were never decoded
+     * are not decoded. Packets that did not come from a pool, and their
+     * payloads, are left alone.
+     * @param packet the outermost packet of a received frame; may be null
+     */
+    public static void release(IPacket packet) {
+        PacketPool pool = null;
+        while (packet instanceof BasePacket) {
+            BasePacket current = (BasePacket) packet;
+            if (!current.pooled || current.free)
+                return;
+            packet = current.payload;
+            current.reset();
+            current.free = true;
+
+            if (null == pool)
+                pool = pools.get();
+            if (current instanceof Ethernet) {
+                if (pool.ethernetCount < MAX_POOLED)
+                    pool.ethernet[pool.ethernetCount++] = current;
+            } else if (current instanceof IPv4) {
+                if (pool.ipv4Count < MAX_POOLED)
+                    pool.ipv4[pool.ipv4Count++] = current;
+            } else if (current instanceof UDP) {
+                if (pool.udpCount < MAX_POOLED)
+                    pool.udp[pool.udpCount++] = current;
+            } else if (current instanceof Data) {
+                if (pool.dataCount < MAX_POOLED)
+                    pool.data[pool.dataCount++] = current;
+            }
+        }
+    }
+}
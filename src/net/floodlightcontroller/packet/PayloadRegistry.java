@@ -0,0 +1,65 @@
+package net.floodlightcontroller.packet;
+
+import java.util.function.Supplier;
+
+/**
+ * Maps the 16-bit demultiplexing keys of a protocol header (an EtherType,
+ * IP protocol number or port) to factories for the payload they carry.
+ * Lookups index a two-level table, so decoding a payload is a direct call
+ * with no boxing, hashing or reflection. Register factories during startup,
+ * before packets are decoded on other threads.
+ */
+public class PayloadRegistry {
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** Factories; pages are allocated when a key in them is registered */
+    private final Supplier<?>[][] pages;
+
+    public PayloadRegistry() {
+        this.pages = new Supplier<?>[1 << (16 - PAGE_BITS)][];
+    }
+
+    /**
+     * Register the factory for a key, replacing any factory already
+     * registered for it.
+     * @param key the key, an unsigned 16-bit value
+     * @param factory creates an empty payload packet; null to remove the key
+     */
+    public void register(int key, Supplier<? extends IPacket> factory) {
+        key &= 0xffff;
+        Supplier<?>[] page = this.pages[key >>> PAGE_BITS];
+        if (page == null) {
+            if (factory == null)
+                return;
+            page = new Supplier<?>[PAGE_SIZE];
+            this.pages[key >>> PAGE_BITS] = page;
+        }
+        page[key & PAGE_MASK] = factory;
+    }
+
+    /**
+     * @param key the key, an unsigned 16-bit value
+     * @return true if a factory is registered for the key
+     */
+    public boolean contains(int key) {
+        return lookup(key) != null;
+    }
+
+    /**
+     * Create an empty payload packet for a key.
+     * @param key the key, an unsigned 16-bit value
+     * @return a new packet; null if no factory is registered for the key
+     */
+    public IPacket create(int key) {
+        Supplier<?> factory = lookup(key);
+        return (factory == null) ? null : (IPacket) factory.get();
+    }
+
+    private Supplier<?> lookup(int key) {
+        key &= 0xffff;
+        Supplier<?>[] page = this.pages[key >>> PAGE_BITS];
+        return (page == null) ? null : page[key & PAGE_MASK];
+    }
+}
@@ -41,18 +41,23 @@ public class RIPv2 extends BasePacket
 
 	@Override
 	public byte[] serialize() 
-    {
-		int length = 1 + 1 + 2 + this.entries.size() * (5*4);
-		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
+    { return this.serializeToArray(); }
+
+	@Override
+	public int getSerializedLength()
+	{ return 1 + 1 + 2 + this.entries.size() * (5*4); }
 
+	@Override
+	public int serialize(ByteBuffer bb)
+	{
+		int start = bb.position();
 		bb.put(this.command);
 		bb.put(this.version);
 		bb.putShort((short)0); // Put padding
 		for (RIPv2Entry entry : this.entries)
-		{ bb.put(entry.serialize()); }
+		{ entry.serialize(bb); }
 
-		return data;
+		return bb.position() - start;
 	}
 
 	@Override
@@ -100,16 +100,22 @@ public class RIPv2Entry
     {
         int entrySize = 2*2 + 4*4;
         byte[] serialData = new byte[entrySize];
-        ByteBuffer buffer = ByteBuffer.wrap(serialData);
+        this.serialize(ByteBuffer.wrap(serialData));
+        return serialData;
+    }
 
+    /**
+     * Serialize this entry into a buffer at its position.
+     * @param buffer buffer with at least 20 bytes remaining
+     */
+    public void serialize(ByteBuffer buffer)
+    {
         buffer.putShort(this.familyIdentifier);
         buffer.putShort(this.tagValue);
         buffer.putInt(this.networkAddr);
         buffer.putInt(this.maskValue);
         buffer.putInt(this.gatewayAddr);
         buffer.putInt(this.hopCount);
-        
-        return serialData;
     }
 
     public RIPv2Entry deserialize(byte[] data, int offset, int length) 
@@ -151,19 +151,21 @@ public class TCP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length;
+        return serializeToArray();
+    }
+
+    @Override
+    public int getSerializedLength() {
+        int offset = (dataOffset == 0) ? 5 : dataOffset;
+        return (offset << 2) + getPayloadLength();
+    }
+
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
-        length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
-
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        int length = getSerializedLength();
 
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
@@ -180,15 +182,13 @@ public class TCP extends BasePacket {
             for (int i = 0; i < padding; i++)
                 bb.put((byte) 0);
         }
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayload(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_TCP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -203,19 +203,19 @@ public class TCP extends BasePacket {
             }
 
             for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + 2 * i);
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (bb.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(16, this.checksum);
+            bb.putShort(start + 16, this.checksum);
         }
-        return data;
+        return bb.position() - start;
     }
 
     /* (non-Javadoc)
@@ -282,9 +282,7 @@ public class TCP extends BasePacket {
             }
         }
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        setRawPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
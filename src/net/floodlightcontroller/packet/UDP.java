@@ -18,22 +18,20 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class UDP extends BasePacket {
-    public static Map<Short, Class<? extends IPacket>> decodeMap;
+    /** Payload factories keyed by port; register new protocols here */
+    public static final PayloadRegistry portRegistry = new PayloadRegistry();
     public static short DHCP_SERVER_PORT = (short)67;
     public static short DHCP_CLIENT_PORT = (short)68;
     public static short RIP_PORT = (short)520;
 
     static {
-        decodeMap = new HashMap<Short, Class<? extends IPacket>>();
-        UDP.decodeMap.put(RIP_PORT, RIPv2.class);
+        portRegistry.register(RIP_PORT, RIPv2::new);
     }
 
     protected short sourcePort;
@@ -41,6 +39,15 @@ public class UDP extends BasePacket {
     protected short length;
     protected short checksum;
 
+    @Override
+    public void reset() {
+        super.reset();
+        this.sourcePort = 0;
+        this.destinationPort = 0;
+        this.length = 0;
+        this.checksum = 0;
+    }
+
     /**
      * @return the sourcePort
      */
@@ -106,31 +113,30 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        return serializeToArray();
+    }
 
-        this.length = (short) (8 + ((payloadData == null) ? 0
-                : payloadData.length));
+    @Override
+    public int getSerializedLength() {
+        return 8 + getPayloadLength();
+    }
 
-        byte[] data = new byte[this.length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public int serialize(ByteBuffer bb) {
+        int start = bb.position();
+        this.length = (short) getSerializedLength();
 
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
         bb.putShort(this.length);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayload(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_UDP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -145,19 +151,19 @@ public class UDP extends BasePacket {
             }
 
             for (int i = 0; i < this.length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + 2 * i);
             }
             // pad to an even number of shorts
             if (this.length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (bb.get(start + this.length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(6, this.checksum);
+            bb.putShort(start + 6, this.checksum);
         }
-        return data;
+        return bb.position() - start;
     }
 
     /* (non-Javadoc)
@@ -205,23 +211,16 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else {
-            this.payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        setRawPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
+
+    @Override
+    protected IPacket createPayload() {
+        // Prefer the destination port, then the source port
+        IPacket payload = UDP.portRegistry.create(this.destinationPort);
+        if (payload == null)
+            payload = UDP.portRegistry.create(this.sourcePort);
+        return (payload == null) ? PacketPool.data() : payload;
+    }
 }